@@ -0,0 +1,152 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+
+/**
+ * クラスパス上のスクリプトファイルの取得元。デフォルトのScriptRepository。
+ * クラスローダを指定しなければ、呼び出し時のスレッドのコンテキスト
+ * クラスローダを用いる。ファイルシステム上のリソースはファイルとして扱い、
+ * jar内のリソースなどはURLから読み込む。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ClasspathScriptRepository implements ScriptRepository {
+
+	private final ClassLoader _classLoader;
+
+	public ClasspathScriptRepository() {
+		this(null);
+	}
+
+	/**
+	 * @param classLoader スクリプトファイルを探すクラスローダ。nullなら
+	 * コンテキストクラスローダ。
+	 */
+	public ClasspathScriptRepository(ClassLoader classLoader) {
+		_classLoader = classLoader;
+	}
+
+	protected ClassLoader getClassLoader() {
+		if(_classLoader != null) {
+			return _classLoader;
+		}
+		return Thread.currentThread().getContextClassLoader();
+	}
+
+	public ScriptSource getSource(String path) throws IOException {
+		if(path == null || path.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		URL url = getClassLoader().getResource(path);
+		if(url == null) {
+			return null;
+		}
+		File file = toFile(url);
+		if(file != null) {
+			return new FileScriptSource(path, file);
+		}
+		return new URLScriptSource(path, url);
+	}
+
+	/**
+	 * @param url リソースのURL。
+	 * @return ファイルシステム上のファイルであればそのファイル、
+	 * そうでなければnull。
+	 */
+	static File toFile(URL url) {
+		if("file".equals(url.getProtocol())) {
+			try {
+				File file = new File(url.toURI());
+				if(file.isFile()) {
+					return file;
+				}
+			} catch(URISyntaxException e) {
+				// ファイルとして扱わない。
+			} catch(IllegalArgumentException e) {
+				// ファイルとして扱わない。
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * jar内などの、URLで読み込むスクリプトファイル。更新の確認では
+	 * 内容を開かない。ファイルシステム上のjarであればjarファイルの更新日時を、
+	 * それ以外はURLConnectionの更新日時を用いる。
+	 */
+	private static class URLScriptSource extends ScriptSource {
+
+		private final URL _url;
+
+		URLScriptSource(String path, URL url) throws IOException {
+			super(path, getLastModified(url));
+			_url = url;
+		}
+
+		private static long getLastModified(URL url) throws IOException {
+			URLConnection connection = url.openConnection();
+			if(connection instanceof JarURLConnection) {
+				// 接続せずにjarファイルのURLを得る。
+				File jar = toFile(((JarURLConnection) connection).getJarFileURL());
+				if(jar != null) {
+					return jar.lastModified();
+				}
+			}
+			// キャッシュされたJarFileの古い情報を避ける。
+			connection.setUseCaches(false);
+			if(connection instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection) connection;
+				http.setRequestMethod("HEAD");
+				try {
+					return http.getLastModified();
+				} finally {
+					http.disconnect();
+				}
+			}
+			return connection.getLastModified();
+		}
+
+		protected ByteBuffer readContent() throws IOException {
+			URLConnection connection = _url.openConnection();
+			connection.setUseCaches(false);
+			InputStream stream = connection.getInputStream();
+			try {
+				return ByteBuffer.wrap(ScriptEngineUtil.readFully(stream));
+			} finally {
+				stream.close();
+			}
+		}
+
+		protected long getCurrentLastModified() {
+			try {
+				return getLastModified(_url);
+			} catch(IOException e) {
+				return 0;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SAOクラス毎のコンパイル済みスクリプトと、そのSAOメソッドの呼び出し計画を
+ * まとめて保持する。呼び出し計画がコンパイル済みスクリプトと一緒に
+ * キャッシュから破棄されるよう、S2SaoInterceptorはこの単位でキャッシュする。
+ * S2SaoInterceptorのキャッシュはSAOクラスを弱参照で保持するため、ここからも
+ * SAOメソッドを弱参照でしか参照しない。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+final class CompiledScript {
+
+	private final Object _compiled;
+	private final ConcurrentMap<Object, InvocationPlan> _plans =
+		new ConcurrentHashMap<Object, InvocationPlan>();
+	private final ReferenceQueue<Object> _staleMethods =
+		new ReferenceQueue<Object>();
+	private volatile ScriptSource _source;
+
+	CompiledScript(Object compiled) {
+		this(compiled, null);
+	}
+
+	/**
+	 * @param compiled コンパイル済みスクリプト。
+	 * @param source 更新の検出に用いるスクリプトファイル。検出しないならnull。
+	 */
+	CompiledScript(Object compiled, ScriptSource source) {
+		_compiled = compiled;
+		_source = source;
+	}
+
+	/**
+	 * @return コンパイル済みスクリプト。スクリプトファイルが無ければnull。
+	 */
+	Object getCompiledScript() {
+		return _compiled;
+	}
+
+	InvocationPlan getPlan(Method method) {
+		return _plans.get(WeakKey.lookup(method));
+	}
+
+	void putPlan(Method method, InvocationPlan plan) {
+		Reference<?> stale;
+		while((stale = _staleMethods.poll()) != null) {
+			_plans.remove(stale);
+		}
+		_plans.put(new WeakKey(method, _staleMethods), plan);
+	}
+
+	/**
+	 * @return 更新の検出に用いるスクリプトファイル。検出しないならnull。
+	 */
+	ScriptSource getSource() {
+		return _source;
+	}
+
+	void setSource(ScriptSource source) {
+		_source = source;
+	}
+
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * スレッドセーフなコンパイル済みスクリプトのキャッシュ。同じキーに対する
+ * 同時のロード要求は一つにまとめられ、ロードは一度しか行われない。
+ * ロード結果がnullの場合もキャッシュする。最大エントリ数を設定すると
+ * 登録順に古いものから破棄し、ソフト参照を有効にするとメモリ不足時に
+ * GCによる破棄を許す。キーを弱参照で保持すると、キーがGCで破棄された
+ * エントリも破棄する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class CompiledScriptCache {
+
+	/**
+	 * キャッシュに無いエントリをロードするコールバック。
+	 */
+	public interface Loader {
+
+		/**
+		 * @param key ロード対象のキー。
+		 * @return ロード結果。nullも可。
+		 * @throws Exception ロード時例外。キャッシュはされない。
+		 */
+		Object load(Object key) throws Throwable;
+
+	}
+
+	private static final Object NULL_VALUE = new Object();
+	private static final Object COLLECTED = new Object();
+
+	private final ConcurrentMap<Object, Entry> _entries =
+		new ConcurrentHashMap<Object, Entry>();
+	private final Queue<Entry> _order = new ConcurrentLinkedQueue<Entry>();
+	private final ReferenceQueue<Object> _staleKeys;
+	private final AtomicLong _hitCount = new AtomicLong();
+	private final AtomicLong _missCount = new AtomicLong();
+	private final AtomicLong _evictionCount = new AtomicLong();
+	private volatile int _maxSize;
+	private volatile boolean _softReferences;
+	private volatile boolean _recordingHits = true;
+
+	/**
+	 * キーを強参照で保持するキャッシュを作成する。
+	 */
+	public CompiledScriptCache() {
+		this(false);
+	}
+
+	/**
+	 * @param weakKeys キーを弱参照で保持するならtrue。キーの比較には
+	 * equalsを用いる。値がキーを参照していると、キーは破棄されない。
+	 */
+	public CompiledScriptCache(boolean weakKeys) {
+		_staleKeys = weakKeys ? new ReferenceQueue<Object>() : null;
+	}
+
+	public boolean isWeakKeys() {
+		return _staleKeys != null;
+	}
+
+	/**
+	 * 最大エントリ数の設定。0以下なら無制限（デフォルト）。
+	 * @param maxSize 最大エントリ数。
+	 */
+	public void setMaxSize(int maxSize) {
+		_maxSize = maxSize;
+		evictIfNecessary();
+	}
+
+	public int getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * ロード結果をソフト参照で保持するかどうかの設定。デフォルトはfalse。
+	 * 設定以降にロードされたエントリから有効になる。
+	 * @param softReferences ソフト参照で保持するならtrue。
+	 */
+	public void setSoftReferences(boolean softReferences) {
+		_softReferences = softReferences;
+	}
+
+	public boolean isSoftReferences() {
+		return _softReferences;
+	}
+
+	/**
+	 * ヒット数を数えるかどうかの設定。デフォルトはtrue。ヒットの度に
+	 * 共有のカウンタを更新するため、ヒットの多いキャッシュでは
+	 * 数えないことで競合を避けられる。ミス数と破棄数は常に数える。
+	 * @param recordingHits ヒット数を数えるならtrue。
+	 */
+	public void setRecordingHits(boolean recordingHits) {
+		_recordingHits = recordingHits;
+	}
+
+	public boolean isRecordingHits() {
+		return _recordingHits;
+	}
+
+	/**
+	 * キーに対応する値を取得する。キャッシュに無い場合はloaderでロードする。
+	 * 同じキーを別スレッドがロード中であれば、その完了を待って結果を共有する。
+	 * @param key キー。
+	 * @param loader キャッシュに無い場合のロード処理。
+	 * @return キャッシュ済み、あるいはロードした値。
+	 * @throws Exception ロード時例外。
+	 */
+	public Object get(Object key, Loader loader) throws Throwable {
+		if(key == null || loader == null) {
+			throw new IllegalArgumentException();
+		}
+		Object lookup = getLookupKey(key);
+		for(;;) {
+			Entry entry = _entries.get(lookup);
+			if(entry == null) {
+				expungeStaleKeys();
+				Entry created = new Entry(getStoredKey(key));
+				entry = _entries.putIfAbsent(created._key, created);
+				if(entry == null) {
+					_missCount.incrementAndGet();
+					return load(key, created, loader);
+				}
+			}
+			Object value = entry.await();
+			if(value != COLLECTED) {
+				if(_recordingHits) {
+					_hitCount.incrementAndGet();
+				}
+				return value;
+			}
+			if(removeEntry(entry)) {
+				_evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	private Object load(Object key, Entry entry, Loader loader)
+			throws Throwable {
+		Object value;
+		try {
+			value = loader.load(key);
+		} catch(Throwable t) {
+			_entries.remove(entry._key, entry);
+			entry.fail(t);
+			throw t;
+		}
+		entry.set(value, _softReferences);
+		// 後から最大エントリ数を設定されても登録順に破棄できるよう、
+		// 無制限の間も登録順を記録する。
+		_order.add(entry);
+		evictIfNecessary();
+		return value;
+	}
+
+	private Object getLookupKey(Object key) {
+		return _staleKeys != null ? WeakKey.lookup(key) : key;
+	}
+
+	private Object getStoredKey(Object key) {
+		return _staleKeys != null ? new WeakKey(key, _staleKeys) : key;
+	}
+
+	/**
+	 * エントリをマップと登録順の両方から取り除く。
+	 * @return 取り除いたならtrue。既に取り除かれていればfalse。
+	 */
+	private boolean removeEntry(Entry entry) {
+		if(_entries.remove(entry._key, entry)) {
+			_order.remove(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * キーがGCで破棄されたエントリを取り除く。
+	 */
+	private void expungeStaleKeys() {
+		if(_staleKeys == null) {
+			return;
+		}
+		Reference<?> stale;
+		while((stale = _staleKeys.poll()) != null) {
+			Entry entry = _entries.remove(stale);
+			if(entry != null) {
+				_order.remove(entry);
+				_evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void evictIfNecessary() {
+		int maxSize = _maxSize;
+		if(maxSize <= 0) {
+			return;
+		}
+		while(_entries.size() > maxSize) {
+			Entry eldest = _order.poll();
+			if(eldest == null) {
+				break;
+			}
+			if(_entries.remove(eldest._key, eldest)) {
+				_evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * ロード済みのエントリの値を置き換える。エントリが無いかロード中なら
+	 * 何もしない。置き換え前に取得された値は、取得した側でそのまま使われる。
+	 * @param key キー。
+	 * @param value 新しい値。nullも可。
+	 * @return 置き換えたならtrue。
+	 */
+	public boolean replace(Object key, Object value) {
+		if(key == null) {
+			throw new IllegalArgumentException();
+		}
+		Entry entry = _entries.get(getLookupKey(key));
+		if(entry == null || entry.isLoaded() == false) {
+			return false;
+		}
+		Entry replacement = new Entry(entry._key);
+		replacement.set(value, _softReferences);
+		if(_entries.replace(entry._key, entry, replacement)) {
+			if(_order.remove(entry)) {
+				_order.add(replacement);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * ロード済みの値を、ロードも待機もせずに取得する。
+	 * @param key キー。
+	 * @return ロード済みの値。エントリが無い、ロード中、ロードに失敗した、
+	 * あるいはGCで破棄された場合はnull。
+	 */
+	public Object peek(Object key) {
+		if(key == null) {
+			throw new IllegalArgumentException();
+		}
+		Entry entry = _entries.get(getLookupKey(key));
+		if(entry == null || entry.isLoaded() == false) {
+			return null;
+		}
+		Object value = entry.getValue();
+		return value != COLLECTED ? value : null;
+	}
+
+	/**
+	 * @return 現在のエントリのキーの一覧。GCで破棄されたキーは含まない。
+	 */
+	public List<Object> keys() {
+		expungeStaleKeys();
+		List<Object> keys = new ArrayList<Object>(_entries.size());
+		for(Object key : _entries.keySet()) {
+			if(key instanceof WeakKey) {
+				key = ((WeakKey) key).get();
+			}
+			if(key != null) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * キーに対応するエントリを破棄する。
+	 * @param key キー。
+	 */
+	public void remove(Object key) {
+		if(key == null) {
+			throw new IllegalArgumentException();
+		}
+		Entry entry = _entries.remove(getLookupKey(key));
+		if(entry != null) {
+			_order.remove(entry);
+		}
+	}
+
+	/**
+	 * 全てのエントリを破棄する。統計値はそのまま。
+	 */
+	public void clear() {
+		_entries.clear();
+		_order.clear();
+	}
+
+	public int size() {
+		expungeStaleKeys();
+		return _entries.size();
+	}
+
+	public long getHitCount() {
+		return _hitCount.get();
+	}
+
+	public long getMissCount() {
+		return _missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return _evictionCount.get();
+	}
+
+	public String toString() {
+		return "CompiledScriptCache[size=" + size()
+			+ ", hit=" + getHitCount()
+			+ ", miss=" + getMissCount()
+			+ ", eviction=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * ロード中、あるいはロード済みの値を保持する。ロード中のスレッドは
+	 * 再帰的なロードの検出のためだけに、ロードが終わるまで保持する。
+	 */
+	private static final class Entry {
+
+		private final Object _key;
+		private final CountDownLatch _latch = new CountDownLatch(1);
+		private volatile Thread _owner = Thread.currentThread();
+		private volatile Object _value;
+		private volatile Throwable _failure;
+
+		Entry(Object key) {
+			_key = key;
+		}
+
+		void set(Object value, boolean soft) {
+			if(value == null) {
+				_value = NULL_VALUE;
+			} else if(soft) {
+				_value = new SoftReference<Object>(value);
+			} else {
+				_value = value;
+			}
+			_owner = null;
+			_latch.countDown();
+		}
+
+		boolean isLoaded() {
+			return _latch.getCount() == 0 && _failure == null;
+		}
+
+		void fail(Throwable failure) {
+			_failure = failure;
+			_owner = null;
+			_latch.countDown();
+		}
+
+		Object await() throws Throwable {
+			if(_latch.getCount() > 0) {
+				if(_owner == Thread.currentThread()) {
+					// ロード中に同じキーを要求されると、自分自身を待ってしまう。
+					throw new IllegalStateException("recursive load");
+				}
+				boolean interrupted = false;
+				for(;;) {
+					try {
+						_latch.await();
+						break;
+					} catch(InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(_failure != null) {
+				throw _failure;
+			}
+			return getValue();
+		}
+
+		/**
+		 * @return ロード済みの値。GCで破棄されていればCOLLECTED。
+		 */
+		Object getValue() {
+			Object value = _value;
+			if(value == NULL_VALUE) {
+				return null;
+			} else if(value instanceof Reference) {
+				Object referent = ((Reference) value).get();
+				return referent != null ? referent : COLLECTED;
+			}
+			return value;
+		}
+
+	}
+
+}
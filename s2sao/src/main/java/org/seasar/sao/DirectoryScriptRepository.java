@@ -0,0 +1,67 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * ファイルシステム上のディレクトリを起点とするスクリプトファイルの取得元。
+ * ディレクトリの外を指すパスは見つからないものとして扱う。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class DirectoryScriptRepository implements ScriptRepository {
+
+	private final File _directory;
+
+	/**
+	 * @param directory スクリプトファイルを置いたディレクトリのパス。
+	 */
+	public DirectoryScriptRepository(String directory) {
+		this(new File(directory));
+	}
+
+	/**
+	 * @param directory スクリプトファイルを置いたディレクトリ。
+	 */
+	public DirectoryScriptRepository(File directory) {
+		if(directory == null) {
+			throw new IllegalArgumentException();
+		}
+		try {
+			_directory = directory.getCanonicalFile();
+		} catch(IOException e) {
+			throw new IllegalArgumentException(directory.getPath());
+		}
+	}
+
+	public File getDirectory() {
+		return _directory;
+	}
+
+	public ScriptSource getSource(String path) throws IOException {
+		if(path == null || path.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		File file = new File(_directory, path).getCanonicalFile();
+		if(file.getPath().startsWith(_directory.getPath() + File.separator) == false
+				|| file.isFile() == false) {
+			return null;
+		}
+		return new FileScriptSource(path, file);
+	}
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SAOメソッドの1回の呼び出しに許す、経過時間とCPU時間の上限。
+ * start()で呼び出しスレッドに計測器を結び付けると、監視スレッドが上限の
+ * 超過を検出して計測器に印を付ける。監視スレッドは一定間隔で実行中の
+ * 計測器を走査するだけで、呼び出し毎にタスクを登録しない。スクリプトエンジンは実行中に
+ * checkCurrent()を繰り返し呼び出し、印が付いていれば
+ * ScriptBudgetExceededExceptionで実行を打ち切る。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public final class ExecutionBudget implements Serializable {
+
+	private static final long serialVersionUID = 6914637180284329812L;
+	private static final ThreadLocal<Meter> CURRENT = new ThreadLocal<Meter>();
+
+	private final long _wallTime;
+	private final long _cpuTime;
+
+	/**
+	 * @param wallTime 経過時間の上限（ミリ秒）。0なら無制限。
+	 * @param cpuTime CPU時間の上限（ミリ秒）。0なら無制限。
+	 */
+	public ExecutionBudget(long wallTime, long cpuTime) {
+		if(wallTime < 0 || cpuTime < 0) {
+			throw new IllegalArgumentException();
+		}
+		_wallTime = wallTime;
+		_cpuTime = cpuTime;
+	}
+
+	public long getWallTime() {
+		return _wallTime;
+	}
+
+	public long getCpuTime() {
+		return _cpuTime;
+	}
+
+	/**
+	 * @return 上限が一つも無ければtrue。
+	 */
+	public boolean isUnlimited() {
+		return _wallTime == 0 && _cpuTime == 0;
+	}
+
+	/**
+	 * 計測を開始し、呼び出しスレッドの現在の計測器とする。計測器は入れ子に
+	 * でき、内側の計測中も外側の上限は有効。
+	 * @return 新しい計測器。終了時にstop()を呼ぶこと。
+	 */
+	public Meter start() {
+		Meter meter = new Meter(this, CURRENT.get());
+		CURRENT.set(meter);
+		Watchdog.register(meter);
+		return meter;
+	}
+
+	/**
+	 * @return 呼び出しスレッドの現在の計測器。無ければnull。
+	 */
+	public static Meter current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * 呼び出しスレッドの計測器が上限を超えていれば、例外を投げる。
+	 * @throws ScriptBudgetExceededException 上限を超えていた場合。
+	 */
+	public static void checkCurrent() {
+		Meter meter = CURRENT.get();
+		if(meter != null) {
+			meter.check();
+		}
+	}
+
+	/**
+	 * @return 監視スレッドが走査している計測中の計測器の数。
+	 */
+	static int getActiveMeterCount() {
+		return Watchdog.getActiveCount();
+	}
+
+	public String toString() {
+		return "ExecutionBudget[wallTime=" + _wallTime
+			+ ", cpuTime=" + _cpuTime + "]";
+	}
+
+	/**
+	 * 1回の呼び出しの計測器。
+	 */
+	public static final class Meter {
+
+		private final ExecutionBudget _budget;
+		private final Meter _previous;
+		private final Thread _thread;
+		private final long _startCpuTime;
+		private final List<Runnable> _interruptHandlers =
+			new CopyOnWriteArrayList<Runnable>();
+		private final long _startTime;
+		private volatile String _exceeded;
+		private boolean _stopped;
+
+		Meter(ExecutionBudget budget, Meter previous) {
+			_budget = budget;
+			_previous = previous;
+			_thread = Thread.currentThread();
+			_startTime = System.nanoTime();
+			_startCpuTime = budget._cpuTime > 0 ? Watchdog.getCpuTime(_thread) : -1;
+		}
+
+		/**
+		 * 監視スレッドから呼ばれ、上限を超えていれば超過を記録する。
+		 * @param now 監視スレッドの現在時刻（System.nanoTime()）。
+		 */
+		void poll(long now) {
+			if(_budget._wallTime > 0 && now - _startTime
+					> TimeUnit.MILLISECONDS.toNanos(_budget._wallTime)) {
+				expire(ScriptBudgetExceededException.WALL_TIME);
+			} else if(_startCpuTime >= 0) {
+				long used = Watchdog.getCpuTime(_thread) - _startCpuTime;
+				if(used > TimeUnit.MILLISECONDS.toNanos(_budget._cpuTime)) {
+					expire(ScriptBudgetExceededException.CPU_TIME);
+				}
+			}
+		}
+
+		public ExecutionBudget getBudget() {
+			return _budget;
+		}
+
+		/**
+		 * 上限の超過を記録し、登録済みの割り込みハンドラを実行する。
+		 * @param kind 超過した上限の種類。
+		 */
+		void expire(String kind) {
+			synchronized(this) {
+				if(_stopped || _exceeded != null) {
+					return;
+				}
+				_exceeded = kind;
+			}
+			Watchdog.unregister(this);
+			for(Runnable handler : _interruptHandlers) {
+				handler.run();
+			}
+		}
+
+		/**
+		 * @return この計測器自身が上限を超えていればtrue。
+		 */
+		public boolean isExceeded() {
+			return _exceeded != null;
+		}
+
+		/**
+		 * この計測器か、外側の計測器が上限を超えていれば例外を投げる。
+		 * @throws ScriptBudgetExceededException 上限を超えていた場合。
+		 */
+		public void check() {
+			for(Meter meter = this; meter != null; meter = meter._previous) {
+				if(meter._exceeded != null) {
+					throw meter.createException();
+				}
+			}
+		}
+
+		/**
+		 * @return この計測器の超過を表す例外。超えていなければnull。
+		 */
+		public ScriptBudgetExceededException createException() {
+			String kind = _exceeded;
+			if(kind == null) {
+				return null;
+			}
+			long limit = ScriptBudgetExceededException.WALL_TIME.equals(kind)
+				? _budget._wallTime : _budget._cpuTime;
+			return new ScriptBudgetExceededException(kind, limit);
+		}
+
+		/**
+		 * 上限を超えた際に監視スレッドから呼ばれるハンドラを登録する。
+		 * checkCurrent()を呼べないスクリプト処理系で、実行中のスクリプトに
+		 * 割り込むために用いる。
+		 * @param handler 割り込みハンドラ。
+		 */
+		public void addInterruptHandler(Runnable handler) {
+			if(handler == null) {
+				throw new IllegalArgumentException();
+			}
+			_interruptHandlers.add(handler);
+			if(_exceeded != null) {
+				handler.run();
+			}
+		}
+
+		public void removeInterruptHandler(Runnable handler) {
+			_interruptHandlers.remove(handler);
+		}
+
+		/**
+		 * 計測を終了し、呼び出しスレッドの現在の計測器を外側のものに戻す。
+		 */
+		public void stop() {
+			synchronized(this) {
+				_stopped = true;
+			}
+			Watchdog.unregister(this);
+			if(CURRENT.get() == this) {
+				if(_previous != null) {
+					CURRENT.set(_previous);
+				} else {
+					CURRENT.remove();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * 全ての計測器で共有する監視スレッド。TICK毎に計測中の計測器を走査する。
+	 * 呼び出し毎にタスクを登録して取り消すと、J2SE 5.0では取り消した
+	 * タスクが期限までキューに残るため、計測器の集合を持つ形とした。
+	 * 上限の判定はTICKの粒度で遅れ得る。
+	 */
+	private static final class Watchdog {
+
+		static final long TICK = 5;
+
+		static final ConcurrentMap<Meter, Boolean> ACTIVE =
+			new ConcurrentHashMap<Meter, Boolean>();
+
+		static final ScheduledExecutorService EXECUTOR =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ExecutionBudget-watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		static {
+			EXECUTOR.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					if(ACTIVE.isEmpty()) {
+						return;
+					}
+					long now = System.nanoTime();
+					for(Meter meter : ACTIVE.keySet()) {
+						try {
+							meter.poll(now);
+						} catch(RuntimeException e) {
+							// 一つの割り込みハンドラの失敗で監視を止めない。
+						}
+					}
+				}
+			}, TICK, TICK, TimeUnit.MILLISECONDS);
+		}
+
+		static void register(Meter meter) {
+			if(meter._budget.isUnlimited() == false) {
+				ACTIVE.put(meter, Boolean.TRUE);
+			}
+		}
+
+		static void unregister(Meter meter) {
+			ACTIVE.remove(meter);
+		}
+
+		static int getActiveCount() {
+			return ACTIVE.size();
+		}
+
+		static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+		/**
+		 * @return スレッドのCPU時間（ナノ秒）。計測できなければ-1。
+		 */
+		static long getCpuTime(Thread thread) {
+			if(THREADS.isThreadCpuTimeSupported() == false
+					|| THREADS.isThreadCpuTimeEnabled() == false) {
+				return -1;
+			}
+			return THREADS.getThreadCpuTime(thread.getId());
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ファイルシステム上のスクリプトファイル。内容はヒープに読み込む。
+ * メモリマップはGCまで解放されず、Windowsではその間ファイルを更新・削除
+ * できなくなるため用いない。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+class FileScriptSource extends ScriptSource {
+
+	private final File _file;
+
+	FileScriptSource(String path, File file) {
+		super(path, file.lastModified());
+		_file = file;
+	}
+
+	protected ByteBuffer readContent() throws IOException {
+		FileInputStream stream = new FileInputStream(_file);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException(_file + " is too large.");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			stream.close();
+		}
+	}
+
+	protected long getCurrentLastModified() {
+		return _file.lastModified();
+	}
+
+}
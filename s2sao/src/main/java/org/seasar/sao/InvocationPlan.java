@@ -0,0 +1,177 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * SAOメソッド毎に一度だけ解決される、呼び出し計画。コンパイル済みスクリプトと
+ * 解決済みのスクリプトメソッド、実行時間の上限、引数の変換方法を保持する。
+ * スクリプトメソッドを持たないSAOメソッドは
+ * {@link #PROCEED}で表し、そのまま元のメソッドを実行する。返りに期待される型は、
+ * そのクラスローダを保持しないよう弱参照で保持する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public final class InvocationPlan {
+
+	/**
+	 * SAOメソッドの引数を、スクリプトメソッドに渡す引数へ変換する。
+	 * SAOメソッドの引数の型から計画の作成時に一度だけ選ばれる。
+	 */
+	public interface ArgumentConverter {
+
+		/**
+		 * @param args SAOメソッドの引数。
+		 * @return スクリプトメソッドに渡す引数。
+		 */
+		Object[] convert(Object[] args);
+
+	}
+
+	/**
+	 * 引数をそのまま渡す変換。
+	 */
+	public static final ArgumentConverter AS_IS = new ArgumentConverter() {
+		public Object[] convert(Object[] args) {
+			return args;
+		}
+	};
+
+	/**
+	 * 可変長引数の配列を展開し、個別の引数として渡す変換。
+	 */
+	public static final ArgumentConverter SPREAD_VARARGS =
+		new ArgumentConverter() {
+			public Object[] convert(Object[] args) {
+				if(args == null || args.length == 0) {
+					return args;
+				}
+				Object last = args[args.length - 1];
+				if(last instanceof Object[] == false) {
+					return args;
+				}
+				Object[] varargs = (Object[]) last;
+				Object[] ret = new Object[args.length - 1 + varargs.length];
+				System.arraycopy(args, 0, ret, 0, args.length - 1);
+				System.arraycopy(varargs, 0, ret, args.length - 1, varargs.length);
+				return ret;
+			}
+		};
+
+	/**
+	 * スクリプト化されていないSAOメソッドを表す計画。
+	 */
+	public static final InvocationPlan PROCEED =
+		new InvocationPlan(null, null, null, null);
+
+	private final Object _compiled;
+	private final Object _function;
+	private final String _functionName;
+	private final WeakReference<Class<?>> _returnType;
+	private final ExecutionBudget _budget;
+	private final ArgumentConverter _argumentConverter;
+
+	public InvocationPlan(Object compiled, Object function,
+			String functionName, Class<?> returnType) {
+		this(compiled, function, functionName, returnType, null);
+	}
+
+	public InvocationPlan(Object compiled, Object function,
+			String functionName, Class<?> returnType,
+			ExecutionBudget budget) {
+		this(compiled, function, functionName, returnType, budget, AS_IS);
+	}
+
+	public InvocationPlan(Object compiled, Object function,
+			String functionName, Class<?> returnType,
+			ExecutionBudget budget, ArgumentConverter argumentConverter) {
+		if(argumentConverter == null) {
+			throw new IllegalArgumentException();
+		}
+		_compiled = compiled;
+		_function = function;
+		_functionName = functionName;
+		_returnType = returnType != null
+			? new WeakReference<Class<?>>(returnType) : null;
+		_budget = budget;
+		_argumentConverter = argumentConverter;
+	}
+
+	/**
+	 * @return スクリプトメソッドを実行すべきなら、true。
+	 */
+	public boolean isScripted() {
+		return _function != null;
+	}
+
+	/**
+	 * @return コンパイル済みスクリプト。
+	 */
+	public Object getCompiledScript() {
+		return _compiled;
+	}
+
+	/**
+	 * @return ScriptEngine#getFunctionで解決済みのスクリプトメソッド。
+	 */
+	public Object getFunction() {
+		return _function;
+	}
+
+	/**
+	 * @return スクリプトメソッド名。
+	 */
+	public String getFunctionName() {
+		return _functionName;
+	}
+
+	/**
+	 * @return 返りに期待される型。
+	 */
+	public Class<?> getReturnType() {
+		return _returnType != null ? _returnType.get() : null;
+	}
+
+	/**
+	 * @return 実行時間の上限。無制限ならnull。
+	 */
+	public ExecutionBudget getBudget() {
+		return _budget;
+	}
+
+	/**
+	 * @return 引数の変換方法。
+	 */
+	public ArgumentConverter getArgumentConverter() {
+		return _argumentConverter;
+	}
+
+	/**
+	 * @param args SAOメソッドの引数。
+	 * @return スクリプトメソッドに渡す引数。
+	 */
+	public Object[] convertArguments(Object[] args) {
+		return _argumentConverter.convert(args);
+	}
+
+	public String toString() {
+		if(isScripted()) {
+			return "InvocationPlan[" + _functionName + "]";
+		}
+		return "InvocationPlan[proceed]";
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * メモリ上のスクリプトファイルの取得元。テストや、スクリプトを生成する
+ * アプリケーションで用いる。最終更新時刻の代わりに、登録毎に増える版数を持つ。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class MemoryScriptRepository implements ScriptRepository {
+
+	private final ConcurrentMap<String, MemoryScriptSource> _sources =
+		new ConcurrentHashMap<String, MemoryScriptSource>();
+	private final AtomicLong _version = new AtomicLong();
+
+	/**
+	 * スクリプトファイルを登録する。同じパスのスクリプトファイルは置き換える。
+	 * @param path スクリプトファイルのパス。
+	 * @param content 内容。
+	 * @return 登録したスクリプトファイル。
+	 */
+	public ScriptSource put(String path, byte[] content) {
+		if(path == null || content == null) {
+			throw new IllegalArgumentException();
+		}
+		MemoryScriptSource source = new MemoryScriptSource(
+				path, _version.incrementAndGet(), content.clone());
+		_sources.put(path, source);
+		return source;
+	}
+
+	/**
+	 * スクリプトファイルを登録する。
+	 * @param path スクリプトファイルのパス。
+	 * @param content 内容。
+	 * @param encoding 内容のエンコーディング。
+	 * @return 登録したスクリプトファイル。
+	 * @throws UnsupportedEncodingException エンコーディングが不正な場合。
+	 */
+	public ScriptSource put(String path, String content, String encoding)
+			throws UnsupportedEncodingException {
+		if(content == null) {
+			throw new IllegalArgumentException();
+		}
+		return put(path, content.getBytes(encoding));
+	}
+
+	/**
+	 * @param path 削除するスクリプトファイルのパス。
+	 */
+	public void remove(String path) {
+		_sources.remove(path);
+	}
+
+	public ScriptSource getSource(String path) {
+		if(path == null || path.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		return _sources.get(path);
+	}
+
+	private class MemoryScriptSource extends ScriptSource {
+
+		private final byte[] _bytes;
+
+		MemoryScriptSource(String path, long version, byte[] bytes) {
+			super(path, version);
+			_bytes = bytes;
+		}
+
+		protected ByteBuffer readContent() {
+			return ByteBuffer.wrap(_bytes);
+		}
+
+		protected long getCurrentLastModified() {
+			MemoryScriptSource current = _sources.get(getPath());
+			return current != null ? current.getLastModified() : 0;
+		}
+
+	}
+
+}
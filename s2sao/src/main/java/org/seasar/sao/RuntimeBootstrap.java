@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * スクリプト処理系ランタイムの遅延初期化。最初にget()を呼んだスレッドで
+ * 初期化するか、start()で別スレッドの初期化を先に始めておく。初期化中に
+ * get()を呼んだスレッドは、初期化をやり直さずに完了を待つ。
+ * 初期化に失敗した場合は、以後のget()も同じ例外を投げる。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public abstract class RuntimeBootstrap<T> {
+
+	private final String _name;
+	private final FutureTask<T> _task;
+	private boolean _started;
+
+	/**
+	 * @param name 初期化スレッドの名前。
+	 */
+	public RuntimeBootstrap(String name) {
+		_name = name;
+		_task = new FutureTask<T>(new Callable<T>() {
+			public T call() throws Exception {
+				return create();
+			}
+		});
+	}
+
+	/**
+	 * ランタイムを生成する。一度だけ呼ばれる。
+	 * @return 初期化済みのランタイム。
+	 * @throws Exception 初期化時例外。
+	 */
+	protected abstract T create() throws Exception;
+
+	/**
+	 * デーモンスレッドで初期化を始める。初期化済み、初期化中なら何もしない。
+	 */
+	public synchronized void start() {
+		if(_started || _task.isDone()) {
+			return;
+		}
+		Thread thread = new Thread(_task, _name);
+		thread.setDaemon(true);
+		thread.start();
+		_started = true;
+	}
+
+	/**
+	 * @return 初期化済みならtrue。
+	 */
+	public boolean isDone() {
+		return _task.isDone();
+	}
+
+	/**
+	 * 初期化済みのランタイムを返す。初期化が始まっていなければこのスレッドで
+	 * 初期化し、別スレッドで初期化中ならその完了を待つ。
+	 * @return 初期化済みのランタイム。
+	 */
+	public T get() {
+		// 既に実行中、実行済みのFutureTaskのrun()は何もしない。
+		_task.run();
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return _task.get();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(_name + " failed.", cause);
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
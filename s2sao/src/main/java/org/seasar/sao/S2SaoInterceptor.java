@@ -1,93 +1,515 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao;
-
-import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.Map;
-import java.util.WeakHashMap;
-
-import org.aopalliance.intercept.MethodInterceptor;
-import org.aopalliance.intercept.MethodInvocation;
-
-/**
- * SAOsAC^[Zv^B
- * @author Masataka Kurihara (Gluegent,Inc.)
- */
-public class S2SaoInterceptor implements MethodInterceptor, Serializable {
-
-	private static final long serialVersionUID = -8933490145398891686L;
-	private ScriptEngine _scriptEngine;
-	private Map<Class<?>, Object> _scriptCache =
-		new WeakHashMap<Class<?>, Object>();
-
-	/**
-	 * XNvgGW̐ݒB
-	 * @param scriptEngine XNvgGWB
-	 */
-	public void setScriptEngine(ScriptEngine scriptEngine) {
-		if(scriptEngine == null) {
-			throw new IllegalArgumentException();
-		}
-		_scriptEngine = scriptEngine;
-	}
-	
-	/**
-	 * XNvgGW̎擾B炩DIĂȂƗOB
-	 * @return XNvgGWB 
-	 */
-	protected ScriptEngine getScriptEngine() {
-		if(_scriptEngine == null) {
-			throw new IllegalStateException();
-		}
-		return _scriptEngine;
-	}
-	
-	/**
-	 * RpCς݃XNvg擾B
-	 * @param sao ΏۂSAONX^B
-	 * @return YRpCς݃XNvgB
-	 * @throws Exception VKɃXNvgRpCۂɐOB
-	 */
-	protected Object getCompiledScript(Class<?> sao) throws Throwable {
-		Object script = _scriptCache.get(sao);
-		if(script == null) {
-			ScriptEngine engine = getScriptEngine();
-			script = engine.compile(sao);
-			_scriptCache.put(sao, script);
-		}
-		return script;
-	}
-
-	public Object invoke(MethodInvocation invocation) throws Throwable {
-		if(invocation == null) {
-			throw new IllegalArgumentException();
-		}
-		Method method = invocation.getMethod();
-		Class<?> sao = method.getDeclaringClass();
-		Object script = getCompiledScript(sao);
-		if(script != null) {
-			ScriptEngine engine = getScriptEngine();
-			if(engine.hasFunction(script, method)) {
-				Object[] args = invocation.getArguments();
-				return engine.invoke(script, method, args,
-						method.getReturnType());
-			}
-		}
-		return invocation.proceed();
-	}
-
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * SAO操作を行う、インターセプタ。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class S2SaoInterceptor implements MethodInterceptor, Serializable {
+
+	private static final long serialVersionUID = -8933490145398891686L;
+	private ScriptEngine _scriptEngine;
+	private CompiledScriptCache _scriptCache = new CompiledScriptCache(true);
+	private CompiledScriptCache.Loader _scriptLoader = new ScriptLoader();
+	private final ConcurrentMap<Object, PlanEntry> _plans =
+		new ConcurrentHashMap<Object, PlanEntry>();
+	private final ReferenceQueue<Object> _staleMethods =
+		new ReferenceQueue<Object>();
+	private final AtomicInteger _generation = new AtomicInteger();
+	private boolean _spreadingVarargs;
+	private ScriptRegistry _scriptRegistry = ScriptRegistry.getDefault();
+	private long _wallTimeBudget;
+	private long _cpuTimeBudget;
+	private AtomicLong _budgetExceededCount = new AtomicLong();
+	private long _reloadInterval;
+	private transient ScheduledExecutorService _reloader;
+	private AtomicLong _reloadCount = new AtomicLong();
+	private AtomicLong _reloadFailureCount = new AtomicLong();
+	private volatile Throwable _lastReloadFailure;
+
+	/**
+	 * スクリプトエンジンの設定。
+	 * @param scriptEngine スクリプトエンジン。
+	 */
+	public void setScriptEngine(ScriptEngine scriptEngine) {
+		if(scriptEngine == null) {
+			throw new IllegalArgumentException();
+		}
+		_scriptEngine = scriptEngine;
+	}
+	
+	/**
+	 * スクリプトエンジンの取得。あらかじめDIされていないと例外。
+	 * @return スクリプトエンジン。 
+	 */
+	protected ScriptEngine getScriptEngine() {
+		if(_scriptEngine == null) {
+			throw new IllegalStateException();
+		}
+		return _scriptEngine;
+	}
+
+	/**
+	 * コンパイル済みスクリプトの登録簿の設定。デフォルトはJVM全体で共有する
+	 * ScriptRegistry.getDefault()で、同じエンジンの同じスクリプトファイルは
+	 * インターセプタをまたいで一度だけコンパイルされる。
+	 * @param scriptRegistry コンパイル済みスクリプトの登録簿。
+	 */
+	public void setScriptRegistry(ScriptRegistry scriptRegistry) {
+		if(scriptRegistry == null) {
+			throw new IllegalArgumentException();
+		}
+		_scriptRegistry = scriptRegistry;
+	}
+
+	public ScriptRegistry getScriptRegistry() {
+		return _scriptRegistry;
+	}
+
+	/**
+	 * キャッシュするコンパイル済みスクリプトの最大数の設定。
+	 * 0以下なら無制限（デフォルト）。
+	 * @param maxCachedScripts キャッシュするSAOクラス数の上限。
+	 */
+	public void setMaxCachedScripts(int maxCachedScripts) {
+		_scriptCache.setMaxSize(maxCachedScripts);
+	}
+
+	/**
+	 * コンパイル済みスクリプトをソフト参照でキャッシュするかどうかの設定。
+	 * @param softReferences ソフト参照でキャッシュするならtrue。
+	 */
+	public void setSoftReferences(boolean softReferences) {
+		_scriptCache.setSoftReferences(softReferences);
+	}
+
+	/**
+	 * コンパイル済みスクリプトのキャッシュの取得。ヒット数などの統計に用いる。
+	 * キャッシュはSAOクラスを弱参照で保持するため、HOT deployで破棄された
+	 * SAOクラスのエントリはGCで破棄される。
+	 * @return コンパイル済みスクリプトのキャッシュ。
+	 */
+	public CompiledScriptCache getScriptCache() {
+		return _scriptCache;
+	}
+	
+	/**
+	 * ScriptBudgetの指定が無いSAOメソッドに適用する、経過時間の上限の設定。
+	 * @param wallTimeBudget 経過時間の上限（ミリ秒）。0なら無制限（デフォルト）。
+	 */
+	public void setWallTimeBudget(long wallTimeBudget) {
+		if(wallTimeBudget < 0) {
+			throw new IllegalArgumentException();
+		}
+		if(_wallTimeBudget != wallTimeBudget) {
+			_wallTimeBudget = wallTimeBudget;
+			// 呼び出し計画とコンパイルの形を新しい上限に合わせる。
+			_scriptCache.clear();
+			_generation.incrementAndGet();
+		}
+	}
+
+	public long getWallTimeBudget() {
+		return _wallTimeBudget;
+	}
+
+	/**
+	 * ScriptBudgetの指定が無いSAOメソッドに適用する、CPU時間の上限の設定。
+	 * JVMがスレッドのCPU時間を計測できない場合は無視される。
+	 * @param cpuTimeBudget CPU時間の上限（ミリ秒）。0なら無制限（デフォルト）。
+	 */
+	public void setCpuTimeBudget(long cpuTimeBudget) {
+		if(cpuTimeBudget < 0) {
+			throw new IllegalArgumentException();
+		}
+		if(_cpuTimeBudget != cpuTimeBudget) {
+			_cpuTimeBudget = cpuTimeBudget;
+			_scriptCache.clear();
+			_generation.incrementAndGet();
+		}
+	}
+
+	public long getCpuTimeBudget() {
+		return _cpuTimeBudget;
+	}
+
+	/**
+	 * 可変長引数のSAOメソッドで、引数の配列を展開してスクリプトメソッドに
+	 * 渡すかどうかの設定。デフォルトはfalseで、配列を最後の引数として渡す。
+	 * 設定以降に作成された呼び出し計画から有効になる。
+	 * @param spreadingVarargs 展開するならtrue。
+	 */
+	public void setSpreadingVarargs(boolean spreadingVarargs) {
+		_spreadingVarargs = spreadingVarargs;
+		_generation.incrementAndGet();
+	}
+
+	public boolean isSpreadingVarargs() {
+		return _spreadingVarargs;
+	}
+
+	/**
+	 * @return 実行時間の上限を超えて打ち切った呼び出しの数。
+	 */
+	public long getBudgetExceededCount() {
+		return _budgetExceededCount.get();
+	}
+
+	/**
+	 * スクリプトファイルの更新を検出する間隔の設定。0より大きければ、
+	 * 別スレッドがこの間隔でロード済みのスクリプトファイルの最終更新時刻と
+	 * 内容を調べ、更新されたスクリプトだけを再コンパイルしてキャッシュの
+	 * コンパイル済みスクリプトと置き換える。実行中の呼び出しは古いスクリプトの
+	 * まま終わり、以降の呼び出しから新しいスクリプトを使う。再コンパイルに
+	 * 失敗した場合や、スクリプトファイルが削除された場合は、古いスクリプトを
+	 * 使い続ける。設定以降にロードされたスクリプトが対象となる。
+	 * @param reloadInterval 更新を検出する間隔（ミリ秒）。0なら検出しない（デフォルト）。
+	 */
+	public synchronized void setReloadInterval(long reloadInterval) {
+		if(reloadInterval < 0) {
+			throw new IllegalArgumentException();
+		}
+		_reloadInterval = reloadInterval;
+		if(_reloader != null) {
+			_reloader.shutdown();
+			_reloader = null;
+		}
+		if(reloadInterval > 0) {
+			_reloader = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "S2SaoInterceptor-reload");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			_reloader.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkForUpdates();
+				}
+			}, reloadInterval, reloadInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized long getReloadInterval() {
+		return _reloadInterval;
+	}
+
+	/**
+	 * スクリプトファイルの更新を検出するスレッドを止める。S2Containerの
+	 * destroyMethodとして登録すること。
+	 */
+	public void destroy() {
+		setReloadInterval(0);
+	}
+
+	/**
+	 * @return 更新を検出して置き換えたスクリプトの数。
+	 */
+	public long getReloadCount() {
+		return _reloadCount.get();
+	}
+
+	/**
+	 * @return 更新を検出したが、再コンパイルに失敗したスクリプトの数。
+	 */
+	public long getReloadFailureCount() {
+		return _reloadFailureCount.get();
+	}
+
+	/**
+	 * @return 最後の再コンパイル時例外。無ければnull。
+	 */
+	public Throwable getLastReloadFailure() {
+		return _lastReloadFailure;
+	}
+
+	/**
+	 * ロード済みのスクリプトファイルの更新を調べ、更新されていれば
+	 * 再コンパイルして置き換える。setReloadIntervalで設定した間隔で
+	 * 別スレッドから呼ばれる。
+	 */
+	public void checkForUpdates() {
+		for(Object key : _scriptCache.keys()) {
+			Class<?> sao = (Class<?>) key;
+			CompiledScript script = (CompiledScript) _scriptCache.peek(sao);
+			if(script == null) {
+				continue;
+			}
+			ScriptSource source = script.getSource();
+			if(source == null || source.isModified() == false) {
+				continue;
+			}
+			try {
+				ScriptSource current = getScriptEngine().getScriptSource(sao);
+				if(current == null) {
+					continue;
+				}
+				if(current.getHash().equals(source.getHash())) {
+					script.setSource(current);
+				} else {
+					reload(sao, current);
+				}
+			} catch(Throwable t) {
+				_reloadFailureCount.incrementAndGet();
+				_lastReloadFailure = t;
+			}
+		}
+	}
+
+	/**
+	 * SAOクラスのスクリプトを再コンパイルし、キャッシュの
+	 * コンパイル済みスクリプトと置き換える。キャッシュから既に破棄されて
+	 * いれば、次の呼び出し時にロードされるため何もしない。
+	 * @param sao 処理対象のSAOクラス型。
+	 * @param source 更新されたスクリプトファイル。
+	 * @throws Exception スクリプトコンパイル時例外。
+	 */
+	protected void reload(Class<?> sao, ScriptSource source) throws Throwable {
+		CompiledScript script = new CompiledScript(_scriptRegistry.compile(
+				getScriptEngine(), source, isBudgeted(sao)), source);
+		if(_scriptCache.replace(sao, script)) {
+			_generation.incrementAndGet();
+			_reloadCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * SAOメソッドに適用する実行時間の上限を取得する。ScriptBudgetの指定が
+	 * あればそれを、無ければこのインターセプタの設定を用いる。
+	 * @param method 実行中のSAOメソッド。
+	 * @return 実行時間の上限。無制限ならnull。
+	 */
+	protected ExecutionBudget getExecutionBudget(Method method) {
+		ExecutionBudget budget;
+		if(method.isAnnotationPresent(ScriptBudget.class)) {
+			ScriptBudget annotation = method.getAnnotation(ScriptBudget.class);
+			budget = new ExecutionBudget(
+					annotation.wallTime(), annotation.cpuTime());
+		} else {
+			budget = new ExecutionBudget(_wallTimeBudget, _cpuTimeBudget);
+		}
+		return budget.isUnlimited() ? null : budget;
+	}
+
+	/**
+	 * SAOクラスのいずれかのメソッドに実行時間の上限が適用され得るかどうか。
+	 * 適用され得るSAOのスクリプトは、上限を超えた時点で打ち切れるよう
+	 * ScriptEngine.compileInterruptibleでコンパイルする。
+	 * @param sao 処理対象のSAOクラス型。
+	 * @return このインターセプタに上限が設定されているか、ScriptBudgetを
+	 * 指定したメソッドがあればtrue。
+	 */
+	protected boolean isBudgeted(Class<?> sao) {
+		if(_wallTimeBudget > 0 || _cpuTimeBudget > 0) {
+			return true;
+		}
+		for(Method method : sao.getMethods()) {
+			if(method.isAnnotationPresent(ScriptBudget.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * コンパイル済みスクリプトを取得する。
+	 * @param sao 処理対象のSAOクラス型。
+	 * @return 該当するコンパイル済みスクリプト。
+	 * @throws Exception 新規にスクリプトコンパイルした際に生じる例外。
+	 */
+	protected Object getCompiledScript(Class<?> sao) throws Throwable {
+		return getScript(sao).getCompiledScript();
+	}
+
+	private CompiledScript getScript(Class<?> sao) throws Throwable {
+		return (CompiledScript) _scriptCache.get(sao, _scriptLoader);
+	}
+
+	/**
+	 * SAOメソッドの呼び出し計画を取得する。計画はメソッド毎に一度だけ作成される。
+	 * 作成済みの計画はメソッドをキーとする表から一度の検索で取得し、
+	 * 再コンパイルや上限の変更で世代が変わっていれば、SAOクラス毎の
+	 * コンパイル済みスクリプトから取得し直す。表は計画を弱参照で保持するため、
+	 * キャッシュから破棄されたコンパイル済みスクリプトを引き留めない。
+	 * @param method 実行中のSAOメソッド。
+	 * @return 該当する呼び出し計画。
+	 * @throws Exception 新規にスクリプトコンパイルした際に生じる例外。
+	 */
+	protected InvocationPlan getInvocationPlan(Method method)
+			throws Throwable {
+		int generation = _generation.get();
+		PlanEntry entry = _plans.get(WeakKey.lookup(method));
+		if(entry != null && entry._generation == generation) {
+			InvocationPlan plan = entry.get();
+			if(plan != null) {
+				return plan;
+			}
+		}
+		CompiledScript script = getScript(method.getDeclaringClass());
+		InvocationPlan plan = script.getPlan(method);
+		if(plan == null) {
+			plan = createInvocationPlan(script.getCompiledScript(), method);
+			script.putPlan(method, plan);
+		}
+		Reference<?> stale;
+		while((stale = _staleMethods.poll()) != null) {
+			_plans.remove(stale);
+		}
+		_plans.put(new WeakKey(method, _staleMethods),
+				new PlanEntry(plan, generation));
+		return plan;
+	}
+
+	/**
+	 * SAOメソッドに対応するスクリプトメソッドを解決し、呼び出し計画を作成する。
+	 * @param compiled コンパイル済みスクリプト。nullも可。
+	 * @param method 実行中のSAOメソッド。
+	 * @return 新規の呼び出し計画。スクリプトメソッドが無ければ、
+	 * InvocationPlan.PROCEED。
+	 */
+	protected InvocationPlan createInvocationPlan(Object compiled,
+			Method method) {
+		if(compiled != null) {
+			Object function = getScriptEngine().getFunction(compiled, method);
+			if(function != null) {
+				return new InvocationPlan(compiled, function,
+						ScriptEngineUtil.getScriptMethodName(method),
+						method.getReturnType(), getExecutionBudget(method),
+						getArgumentConverter(method));
+			}
+		}
+		return InvocationPlan.PROCEED;
+	}
+
+	/**
+	 * SAOメソッドの引数の変換方法を選ぶ。
+	 * @param method 実行中のSAOメソッド。
+	 * @return 引数の変換方法。
+	 */
+	protected InvocationPlan.ArgumentConverter getArgumentConverter(
+			Method method) {
+		if(_spreadingVarargs && method.isVarArgs()) {
+			return InvocationPlan.SPREAD_VARARGS;
+		}
+		return InvocationPlan.AS_IS;
+	}
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if(invocation == null) {
+			throw new IllegalArgumentException();
+		}
+		InvocationPlan plan = getInvocationPlan(invocation.getMethod());
+		if(plan.isScripted()) {
+			Object[] args = plan.convertArguments(invocation.getArguments());
+			ExecutionBudget budget = plan.getBudget();
+			if(budget == null) {
+				return getScriptEngine().invokeFunction(
+						plan.getCompiledScript(), plan.getFunction(),
+						args, plan.getReturnType());
+			}
+			return invokeWithBudget(plan, budget, args);
+		}
+		return invocation.proceed();
+	}
+
+	/**
+	 * 実行時間を計測しながらスクリプトメソッドを実行する。上限を超えていれば、
+	 * スクリプトエンジンが投げた例外に関わらずScriptBudgetExceededExceptionで
+	 * 終了する。エンジンが実行中に打ち切れなかった場合も、戻った時点で
+	 * 超過していれば例外とする。
+	 */
+	private Object invokeWithBudget(InvocationPlan plan,
+			ExecutionBudget budget, Object[] args) throws Throwable {
+		ExecutionBudget.Meter meter = budget.start();
+		try {
+			Object ret = getScriptEngine().invokeFunction(
+					plan.getCompiledScript(), plan.getFunction(),
+					args, plan.getReturnType());
+			meter.check();
+			return ret;
+		} catch(Throwable t) {
+			if(meter.isExceeded()) {
+				_budgetExceededCount.incrementAndGet();
+				if(t instanceof ScriptBudgetExceededException) {
+					throw t;
+				}
+				throw meter.createException();
+			}
+			throw t;
+		} finally {
+			meter.stop();
+		}
+	}
+
+	/**
+	 * メソッド毎の呼び出し計画の表のエントリ。計画はSAOクラス毎の
+	 * CompiledScriptが保持しており、ここからは弱参照でしか参照しない。
+	 */
+	private static final class PlanEntry extends WeakReference<InvocationPlan> {
+
+		final int _generation;
+
+		PlanEntry(InvocationPlan plan, int generation) {
+			super(plan);
+			_generation = generation;
+		}
+
+	}
+
+	private class ScriptLoader implements CompiledScriptCache.Loader {
+
+		public Object load(Object key) throws Throwable {
+			Class<?> sao = (Class<?>) key;
+			ScriptEngine engine = getScriptEngine();
+			ScriptSource source = engine.getScriptSource(sao);
+			if(source == null) {
+				return new CompiledScript(null);
+			}
+			Object compiled = _scriptRegistry.compile(
+					engine, source, isBudgeted(sao));
+			// ロードに伴って他のSAOクラスのエントリが破棄され得るため、
+			// 作成済みの呼び出し計画を確かめ直させる。
+			_generation.incrementAndGet();
+			if(getReloadInterval() > 0) {
+				// コンパイル中の更新も検出できるよう、コンパイル前に取得した
+				// スクリプトファイルを保持する。
+				return new CompiledScript(compiled, source);
+			}
+			return new CompiledScript(compiled);
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+/**
+ * スクリプトメソッドの実行が、ScriptBudgetなどで指定した実行時間の上限を
+ * 超えたことを表す例外。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptBudgetExceededException extends RuntimeException {
+
+	/**
+	 * 経過時間の上限を超えた。
+	 */
+	public static final String WALL_TIME = "wallTime";
+
+	/**
+	 * CPU時間の上限を超えた。
+	 */
+	public static final String CPU_TIME = "cpuTime";
+
+	private static final long serialVersionUID = -2278104583766003526L;
+	private String _kind;
+	private long _limit;
+
+	public ScriptBudgetExceededException(String kind, long limit) {
+		super("script execution exceeded " + kind + " budget of "
+				+ limit + "ms");
+		_kind = kind;
+		_limit = limit;
+	}
+
+	/**
+	 * @return WALL_TIMEかCPU_TIME。
+	 */
+	public String getKind() {
+		return _kind;
+	}
+
+	/**
+	 * @return 超過した上限（ミリ秒）。
+	 */
+	public long getLimit() {
+		return _limit;
+	}
+
+}
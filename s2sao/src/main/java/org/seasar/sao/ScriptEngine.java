@@ -1,58 +1,110 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao;
-
-import java.io.Serializable;
-import java.lang.reflect.Method;
-
-/**
- * XNvgsGWB̓IȃXNvgnɎpӂA
- * S2SaoInterceptorDIB
- * @author Masataka Kurihara (Gluegent,Inc.)
- */
-public interface ScriptEngine extends Serializable {
-
-	/**
-	 * SAONX^AΉXNvgt@CARpCB
-	 * XNvgt@CȂꍇAnullԂB
-	 * @param sao ΏSAÕNX^B 
-	 * @return ΉXNvgt@C̃RpCʁB
-	 * @throws Exception XNvgt@C̃RpCOB
-	 */
-	Object compile(Class<?> sao) throws Throwable;
-
-	/**
-	 * RpCς݃XNvgɁAsׂXNvg\bh܂܂Ă邩
-	 * ǂeXgB
-	 * @param compiled RpCς݃XNvgB
-	 * @param method sSAO\bhB
-	 * @return sׂXNvg\bh΁AtrueԂB
-	 */
-	boolean hasFunction(Object compiled, Method method);
-
-	/**
-	 * XNvg\bhsB
-	 * @param compiled RpCς݃XNvgB
-	 * @param method sSAO\bhB
-	 * @param args sSAO\bhɓnꂽB
-	 * @param expectedClass ԂɊ҂^B
-	 * @return Java^ɕϊς݂̃XNvg\bhsʁB
-	 * @throws Exception XNvg\bh̎sOB
-	 */
-	Object invoke(Object compiled, Method method, Object[] args,
-			Class<?> expectedClass) throws Throwable;
-	
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+/**
+ * スクリプト操作を行うエンジン。具体的なスクリプト処理系毎に実装を用意し、
+ * S2SaoInterceptorにDIする。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public interface ScriptEngine extends Serializable {
+
+	/**
+	 * SAOクラス型に対応するスクリプトファイルを、ScriptRepositoryから取得する。
+	 * @param sao 処理対象SAOのクラス型。
+	 * @return スクリプトファイル。見つからなければnull。
+	 * @throws IOException 取得時例外。
+	 */
+	ScriptSource getScriptSource(Class<?> sao) throws IOException;
+
+	/**
+	 * SAOクラス型から、対応するスクリプトファイルを検索し、コンパイルする。
+	 * スクリプトファイルが見つからなかった場合、nullを返す。
+	 * @param sao 処理対象SAOのクラス型。 
+	 * @return 対応するスクリプトファイルのコンパイル結果。
+	 * @throws Exception スクリプトファイルのコンパイル時例外。
+	 */
+	Object compile(Class<?> sao) throws Throwable;
+
+	/**
+	 * 取得済みのスクリプトファイルをコンパイルする。スクリプトファイルを
+	 * 読み直さずに、渡された内容をそのままコンパイルすること。
+	 * コンパイル結果はSAOクラス型に依存せず、同じスクリプトファイルに
+	 * 束縛された全てのSAOで共有される。
+	 * @param source スクリプトファイル。
+	 * @return スクリプトファイルのコンパイル結果。
+	 * @throws Exception スクリプトファイルのコンパイル時例外。
+	 */
+	Object compile(ScriptSource source) throws Throwable;
+
+	/**
+	 * 実行時間の上限（ExecutionBudget）付きで呼ばれ得るSAOのスクリプト
+	 * ファイルをコンパイルする。上限を超えた時点で実行中のスクリプトメソッドを
+	 * 打ち切れる形でコンパイルすること。どの形でも打ち切れる処理系では、
+	 * compile(ScriptSource)と同じでよい。
+	 * @param source スクリプトファイル。
+	 * @return スクリプトファイルのコンパイル結果。
+	 * @throws Exception スクリプトファイルのコンパイル時例外。
+	 */
+	Object compileInterruptible(ScriptSource source) throws Throwable;
+
+	/**
+	 * コンパイル済みスクリプト中に、実行すべきスクリプトメソッドが含まれているか
+	 * どうかをテストする。
+	 * @param compiled コンパイル済みスクリプト。
+	 * @param method 実行中のSAOメソッド。
+	 * @return 実行すべきスクリプトメソッドが見つかれば、trueを返す。
+	 */
+	boolean hasFunction(Object compiled, Method method);
+
+	/**
+	 * スクリプトメソッドを実行する。
+	 * @param compiled コンパイル済みスクリプト。
+	 * @param method 実行中のSAOメソッド。
+	 * @param args 実行中のSAOメソッドに渡された引数。
+	 * @param expectedClass 返りに期待される型。
+	 * @return Java型に変換済みのスクリプトメソッド実行結果。
+	 * @throws Exception スクリプトメソッドの実行時例外。
+	 */
+	Object invoke(Object compiled, Method method, Object[] args,
+			Class<?> expectedClass) throws Throwable;
+
+	/**
+	 * コンパイル済みスクリプトから、SAOメソッドに対応するスクリプトメソッドを
+	 * 解決する。戻り値はエンジン固有のハンドルで、invokeFunctionにそのまま渡す。
+	 * @param compiled コンパイル済みスクリプト。
+	 * @param method 解決対象のSAOメソッド。
+	 * @return 解決済みのスクリプトメソッド。見つからなければnull。
+	 */
+	Object getFunction(Object compiled, Method method);
+
+	/**
+	 * getFunctionで解決済みのスクリプトメソッドを実行する。
+	 * @param compiled コンパイル済みスクリプト。
+	 * @param function getFunctionで解決済みのスクリプトメソッド。
+	 * @param args 実行中のSAOメソッドに渡された引数。
+	 * @param expectedClass 返りに期待される型。
+	 * @return Java型に変換済みのスクリプトメソッド実行結果。
+	 * @throws Exception スクリプトメソッドの実行時例外。
+	 */
+	Object invokeFunction(Object compiled, Object function, Object[] args,
+			Class<?> expectedClass) throws Throwable;
+
+}
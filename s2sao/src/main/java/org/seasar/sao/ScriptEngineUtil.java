@@ -1,48 +1,122 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao;
-
-import java.io.InputStream;
-import java.lang.reflect.Method;
-
-/**
- * @author bowez
- */
-public class ScriptEngineUtil {
-
-    public static final InputStream getScriptStream(String path) {
-        if (path == null || path.length() == 0) {
-            throw new IllegalArgumentException();
-        }
-        ClassLoader loader = Thread.currentThread().getContextClassLoader();
-        return loader.getResourceAsStream(path);
-    }
-
-    public static final String getScriptMethodName(Method method) {
-        if (method == null) {
-            throw new IllegalArgumentException();
-        }
-        if (method.isAnnotationPresent(MethodBinding.class)) {
-            MethodBinding binding = method.getAnnotation(MethodBinding.class);
-            String value = binding.value();
-            if (value.length() > 0) {
-                return value;
-            }
-        }
-        return method.getName();
-    }
-
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author bowez
+ */
+public class ScriptEngineUtil {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * コンテキストクラスローダからスクリプトを読み込むストリームを返します。
+     * 読み込めなければnullです。
+     * 
+     * @param path スクリプトファイルのパス
+     * @return スクリプトの内容のストリーム
+     * @deprecated {@link ClasspathScriptRepository#getSource(String)}を使ってください。
+     */
+    @Deprecated
+    public static final InputStream getScriptStream(String path) {
+        if (path == null || path.length() == 0) {
+            throw new IllegalArgumentException();
+        }
+        try {
+            ScriptSource source = new ClasspathScriptRepository().getSource(path);
+            return source != null ? source.openStream() : null;
+        }
+        catch (IOException e) {
+            // ClassLoader.getResourceAsStreamと同じく、読み込めなければnullです。
+            return null;
+        }
+    }
+
+    public static final String getScriptMethodName(Method method) {
+        if (method == null) {
+            throw new IllegalArgumentException();
+        }
+        if (method.isAnnotationPresent(MethodBinding.class)) {
+            MethodBinding binding = method.getAnnotation(MethodBinding.class);
+            String value = binding.value();
+            if (value.length() > 0) {
+                return value;
+            }
+        }
+        return method.getName();
+    }
+
+    /**
+     * ストリームの内容を全て読み込みます。ストリームは閉じません。
+     * 
+     * @param stream 読み込むストリーム
+     * @return ストリームの内容
+     * @throws IOException 読み込み時例外
+     */
+    public static final byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * スクリプトの内容のハッシュ（SHA-1の16進文字列）を求めます。
+     * コンパイル結果のキャッシュで、内容の変更を検出するために使います。
+     * 
+     * @param source スクリプトの内容
+     * @return ハッシュ
+     */
+    public static final String hash(byte[] source) {
+        return hash(ByteBuffer.wrap(source));
+    }
+
+    /**
+     * スクリプトの内容のハッシュ（SHA-1の16進文字列）を求めます。
+     * バッファの位置は進みます。
+     * 
+     * @param source スクリプトの内容
+     * @return ハッシュ
+     */
+    public static final String hash(ByteBuffer source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        digest.update(source);
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 非同期に実行中のスクリプトメソッドの結果。戻り値がFutureのSAOメソッドを
+ * スクリプトが中断した場合に、スクリプトエンジンが呼び出し元へ返す。
+ * 中断したスクリプトは別スレッドで再開され、終了時にこのFutureを完了させる。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptFuture implements Future<Object> {
+
+	private final CountDownLatch _done = new CountDownLatch(1);
+	private final List<Runnable> _listeners = new CopyOnWriteArrayList<Runnable>();
+	private volatile Object _value;
+	private volatile Throwable _error;
+	private volatile boolean _cancelled;
+
+	/**
+	 * @param value 結果。
+	 * @return 完了済みのFuture。
+	 */
+	public static ScriptFuture completed(Object value) {
+		ScriptFuture future = new ScriptFuture();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * 結果を設定して完了させる。完了済みなら何もしない。
+	 * @param value 結果。
+	 * @return 完了させたならtrue。
+	 */
+	public boolean complete(Object value) {
+		synchronized(_done) {
+			if(isDone()) {
+				return false;
+			}
+			_value = value;
+			_done.countDown();
+		}
+		fireDone();
+		return true;
+	}
+
+	/**
+	 * 例外を設定して完了させる。完了済みなら何もしない。
+	 * @param error スクリプトの実行時例外。
+	 * @return 完了させたならtrue。
+	 */
+	public boolean fail(Throwable error) {
+		if(error == null) {
+			throw new IllegalArgumentException();
+		}
+		synchronized(_done) {
+			if(isDone()) {
+				return false;
+			}
+			_error = error;
+			_done.countDown();
+		}
+		fireDone();
+		return true;
+	}
+
+	/**
+	 * 中断中のスクリプトは止められないため、再開後の結果を捨てるだけとなる。
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(_done) {
+			if(isDone()) {
+				return false;
+			}
+			_cancelled = true;
+			_done.countDown();
+		}
+		fireDone();
+		return true;
+	}
+
+	public boolean isCancelled() {
+		return _cancelled;
+	}
+
+	public boolean isDone() {
+		return _done.getCount() == 0;
+	}
+
+	public Object get() throws InterruptedException, ExecutionException {
+		_done.await();
+		return getResult();
+	}
+
+	public Object get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if(_done.await(timeout, unit) == false) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private Object getResult() throws ExecutionException {
+		if(_cancelled) {
+			throw new CancellationException();
+		}
+		if(_error != null) {
+			throw new ExecutionException(_error);
+		}
+		return _value;
+	}
+
+	/**
+	 * 完了時に呼ばれるリスナを登録する。完了済みならその場で呼ぶ。
+	 * リスナは完了させたスレッドで呼ばれる。
+	 * @param listener リスナ。
+	 */
+	public void addListener(Runnable listener) {
+		if(listener == null) {
+			throw new IllegalArgumentException();
+		}
+		_listeners.add(listener);
+		if(isDone() && _listeners.remove(listener)) {
+			listener.run();
+		}
+	}
+
+	private void fireDone() {
+		for(Runnable listener : _listeners) {
+			if(_listeners.remove(listener)) {
+				listener.run();
+			}
+		}
+	}
+
+	public String toString() {
+		if(isDone() == false) {
+			return "ScriptFuture[pending]";
+		} else if(_cancelled) {
+			return "ScriptFuture[cancelled]";
+		} else if(_error != null) {
+			return "ScriptFuture[failed: " + _error + "]";
+		}
+		return "ScriptFuture[" + _value + "]";
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JVM全体で共有する、コンパイル済みスクリプトの登録簿。スクリプトエンジン、
+ * スクリプトファイルのパス、内容のハッシュの組をキーとするため、同じ
+ * スクリプトファイルに束縛された複数のSAOや、子コンテナ毎の
+ * S2SaoInterceptorが同じエンジンを使う場合、スクリプトはJVMで一度だけ
+ * コンパイルされる。
+ * 
+ * コンパイル済みスクリプトはソフト参照で保持する。利用中のものは
+ * S2SaoInterceptorのキャッシュから参照されるため破棄されず、S2SaoInterceptorの
+ * キャッシュから破棄されたものはメモリ不足時にGCで破棄できる。スクリプト
+ * エンジンは弱参照で保持する。同じパスの内容が変わって再コンパイルすると、
+ * 古い内容のエントリは破棄する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptRegistry {
+
+	private static final ScriptRegistry DEFAULT = new ScriptRegistry();
+
+	/**
+	 * @return JVM全体で共有するデフォルトの登録簿。
+	 */
+	public static ScriptRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	private final Map<ScriptEngine, EngineScripts> _engines =
+		new WeakHashMap<ScriptEngine, EngineScripts>();
+
+	private synchronized EngineScripts getEngineScripts(ScriptEngine engine) {
+		EngineScripts scripts = _engines.get(engine);
+		if(scripts == null) {
+			scripts = new EngineScripts(engine.getClass().getSimpleName());
+			_engines.put(engine, scripts);
+		}
+		return scripts;
+	}
+
+	private synchronized List<EngineScripts> getAllEngineScripts() {
+		return new ArrayList<EngineScripts>(_engines.values());
+	}
+
+	/**
+	 * スクリプトファイルのコンパイル済みスクリプトを取得する。
+	 * compile(engine, source, false)と同じ。
+	 * @param engine スクリプトエンジン。
+	 * @param source SAOクラスに対応するスクリプトファイル。
+	 * @return コンパイル済みスクリプト。
+	 * @throws Exception スクリプトコンパイル時例外。
+	 */
+	public Object compile(ScriptEngine engine, ScriptSource source)
+			throws Throwable {
+		return compile(engine, source, false);
+	}
+
+	/**
+	 * スクリプトファイルのコンパイル済みスクリプトを取得する。登録されて
+	 * いなければ、エンジンでスクリプトファイルをコンパイルして登録する。
+	 * コンパイルにはハッシュを求めたScriptSourceをそのまま渡すため、
+	 * 登録のキーとコンパイル結果の内容は常に一致する。
+	 * 同じキーを別スレッドがコンパイル中であれば、その完了を待って結果を共有する。
+	 * @param engine スクリプトエンジン。
+	 * @param source SAOクラスに対応するスクリプトファイル。
+	 * @param interruptible 実行時間の上限付きで呼ばれ得るならtrue。
+	 * ScriptEngine.compileInterruptibleでコンパイルし、別のエントリとする。
+	 * @return コンパイル済みスクリプト。
+	 * @throws Exception スクリプトコンパイル時例外。
+	 */
+	public Object compile(final ScriptEngine engine,
+			final ScriptSource source, final boolean interruptible)
+			throws Throwable {
+		if(engine == null || source == null) {
+			throw new IllegalArgumentException();
+		}
+		EngineScripts scripts = getEngineScripts(engine);
+		String path = source.getPath();
+		ScriptInfo info = new ScriptInfo(path, source.getHash(),
+				source.getContent().remaining(), source.getLastModified());
+		Object compiled = scripts._cache.get(info.getKey(interruptible),
+				new CompiledScriptCache.Loader() {
+					public Object load(Object key) throws Throwable {
+						if(interruptible) {
+							return engine.compileInterruptible(source);
+						}
+						return engine.compile(source);
+					}
+				});
+		updateLatest(scripts, info);
+		return compiled;
+	}
+
+	/**
+	 * パス毎の最新のスクリプトファイルを更新し、古い内容のエントリを破棄する。
+	 * 古い内容のコンパイルが新しい内容より後に終わっても最新を戻さないよう、
+	 * 最終更新時刻が古いものでは置き換えない。
+	 */
+	private void updateLatest(EngineScripts scripts, ScriptInfo info) {
+		for(;;) {
+			ScriptInfo previous = scripts._latest.get(info._path);
+			if(previous == null) {
+				if(scripts._latest.putIfAbsent(info._path, info) == null) {
+					return;
+				}
+				continue;
+			}
+			if(previous._hash.equals(info._hash)
+					|| info._lastModified < previous._lastModified) {
+				return;
+			}
+			if(scripts._latest.replace(info._path, previous, info)) {
+				scripts._cache.remove(previous.getKey(false));
+				scripts._cache.remove(previous.getKey(true));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 全てのエントリを破棄する。統計値はそのまま。
+	 */
+	public void clear() {
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			scripts._cache.clear();
+			scripts._latest.clear();
+		}
+	}
+
+	/**
+	 * @return 登録されているスクリプトファイルの数。GCで破棄されたものも含む。
+	 */
+	public int size() {
+		int size = 0;
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			size += scripts._latest.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return 登録されているスクリプトファイルの大きさの合計（バイト）。
+	 */
+	public long getSourceBytes() {
+		long bytes = 0;
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			for(ScriptInfo info : scripts._latest.values()) {
+				bytes += info._size;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return コンパイル済みスクリプトを共有できた回数。
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			count += scripts._cache.getHitCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return コンパイルした回数。
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			count += scripts._cache.getMissCount();
+		}
+		return count;
+	}
+
+	/**
+	 * 登録されているスクリプトファイルの一覧。一行に一つ、スクリプトエンジン、
+	 * パス、スクリプトファイルの大きさ、ハッシュの先頭を出力する。
+	 * @return 一覧の文字列。
+	 */
+	public String getReport() {
+		List<String> lines = new ArrayList<String>();
+		for(EngineScripts scripts : getAllEngineScripts()) {
+			for(ScriptInfo info : scripts._latest.values()) {
+				lines.add(scripts._engineName + " " + info);
+			}
+		}
+		Collections.sort(lines);
+		StringBuilder report = new StringBuilder();
+		report.append(this).append('\n');
+		for(String line : lines) {
+			report.append(line).append('\n');
+		}
+		return report.toString();
+	}
+
+	public String toString() {
+		return "ScriptRegistry[size=" + size()
+			+ ", sourceBytes=" + getSourceBytes()
+			+ ", hit=" + getHitCount()
+			+ ", miss=" + getMissCount() + "]";
+	}
+
+	/**
+	 * スクリプトエンジン毎のコンパイル済みスクリプト。
+	 */
+	private static final class EngineScripts {
+
+		private final String _engineName;
+		private final CompiledScriptCache _cache = new CompiledScriptCache();
+		private final ConcurrentMap<String, ScriptInfo> _latest =
+			new ConcurrentHashMap<String, ScriptInfo>();
+
+		EngineScripts(String engineName) {
+			_engineName = engineName;
+			_cache.setSoftReferences(true);
+		}
+
+	}
+
+	/**
+	 * 登録されているスクリプトファイルの情報。
+	 */
+	private static final class ScriptInfo {
+
+		private final String _path;
+		private final String _hash;
+		private final int _size;
+		private final long _lastModified;
+
+		ScriptInfo(String path, String hash, int size, long lastModified) {
+			_path = path;
+			_hash = hash;
+			_size = size;
+			_lastModified = lastModified;
+		}
+
+		String getKey(boolean interruptible) {
+			return _path + "#" + _hash + (interruptible ? "#interruptible" : "");
+		}
+
+		public String toString() {
+			return _path + " " + _size + " bytes " + _hash.substring(0, 8);
+		}
+
+	}
+
+}
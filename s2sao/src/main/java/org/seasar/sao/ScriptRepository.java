@@ -0,0 +1,34 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.IOException;
+
+/**
+ * スクリプトファイルの取得元。スクリプトエンジンはSAOクラス型に対応する
+ * パスで、ここからスクリプトファイルを取得する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public interface ScriptRepository {
+
+	/**
+	 * @param path スクリプトファイルのパス。
+	 * @return スクリプトファイル。見つからなければnull。
+	 * @throws IOException 取得時例外。
+	 */
+	ScriptSource getSource(String path) throws IOException;
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ScriptRepositoryから取得したスクリプトファイル。内容、最終更新時刻、
+ * 内容のハッシュを持つ。内容は最初に要求された時点で一度だけ読み込む。
+ * isModified()は最終更新時刻だけを調べるため、内容を読み直さずに
+ * 更新の有無を判断できる。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public abstract class ScriptSource {
+
+	private final String _path;
+	private final long _lastModified;
+	private ByteBuffer _content;
+	private String _hash;
+
+	/**
+	 * @param path スクリプトファイルのパス。
+	 * @param lastModified 最終更新時刻。不明なら0。
+	 */
+	protected ScriptSource(String path, long lastModified) {
+		if(path == null) {
+			throw new IllegalArgumentException();
+		}
+		_path = path;
+		_lastModified = lastModified;
+	}
+
+	/**
+	 * @return スクリプトファイルのパス。
+	 */
+	public String getPath() {
+		return _path;
+	}
+
+	/**
+	 * @return 取得時点の最終更新時刻。不明なら0。
+	 */
+	public long getLastModified() {
+		return _lastModified;
+	}
+
+	/**
+	 * 内容を読み込む。一度だけ呼ばれる。
+	 * @return 内容。
+	 * @throws IOException 読み込み時例外。
+	 */
+	protected abstract ByteBuffer readContent() throws IOException;
+
+	/**
+	 * 現在の最終更新時刻を調べる。
+	 * @return 現在の最終更新時刻。削除されたか不明なら0。
+	 */
+	protected abstract long getCurrentLastModified();
+
+	/**
+	 * @return 内容。呼び出し毎に独立した位置を持つ読み込み専用のバッファ。
+	 * @throws IOException 読み込み時例外。
+	 */
+	public synchronized ByteBuffer getContent() throws IOException {
+		if(_content == null) {
+			_content = readContent();
+		}
+		return _content.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return 内容のコピー。
+	 * @throws IOException 読み込み時例外。
+	 */
+	public byte[] getBytes() throws IOException {
+		ByteBuffer content = getContent();
+		byte[] bytes = new byte[content.remaining()];
+		content.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return 内容を読むストリーム。
+	 * @throws IOException 読み込み時例外。
+	 */
+	public InputStream openStream() throws IOException {
+		return new ByteArrayInputStream(getBytes());
+	}
+
+	/**
+	 * @return 内容のハッシュ（SHA-1の16進文字列）。
+	 * @throws IOException 読み込み時例外。
+	 */
+	public synchronized String getHash() throws IOException {
+		if(_hash == null) {
+			_hash = ScriptEngineUtil.hash(getContent());
+		}
+		return _hash;
+	}
+
+	/**
+	 * 取得後に更新されたかどうかを、最終更新時刻だけで調べる。最終更新時刻が
+	 * 不明な場合もtrueを返すので、内容が変わったかどうかはハッシュで確かめる。
+	 * @return 更新された可能性があればtrue。
+	 */
+	public boolean isModified() {
+		long current = getCurrentLastModified();
+		return current == 0 || current != _lastModified;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "[" + _path + "]";
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * 参照先をGCから守らない、マップのキー。参照先同士がequalsなら等しい。
+ * 参照先が破棄されたキーは、自分自身とだけ等しい。検索には
+ * {@link #lookup(Object)}で作る、参照を持たない一時キーを用いる。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+final class WeakKey extends WeakReference<Object> {
+
+	private final int _hash;
+
+	WeakKey(Object referent, ReferenceQueue<Object> queue) {
+		super(referent, queue);
+		if(referent == null) {
+			throw new IllegalArgumentException();
+		}
+		_hash = referent.hashCode();
+	}
+
+	/**
+	 * 検索用の一時キーを作成する。WeakKeyと比較でき、参照オブジェクトを
+	 * 生成しない。
+	 * @param key 検索するキー。
+	 * @return 一時キー。
+	 */
+	static Object lookup(Object key) {
+		if(key == null) {
+			throw new IllegalArgumentException();
+		}
+		return new Lookup(key);
+	}
+
+	public int hashCode() {
+		return _hash;
+	}
+
+	public boolean equals(Object other) {
+		if(this == other) {
+			return true;
+		}
+		Object referent = get();
+		if(referent == null) {
+			return false;
+		}
+		if(other instanceof WeakKey) {
+			return referent.equals(((WeakKey) other).get());
+		} else if(other instanceof Lookup) {
+			return referent.equals(((Lookup) other)._key);
+		}
+		return false;
+	}
+
+	private static final class Lookup {
+
+		private final Object _key;
+
+		Lookup(Object key) {
+			_key = key;
+		}
+
+		public int hashCode() {
+			return _key.hashCode();
+		}
+
+		public boolean equals(Object other) {
+			if(other instanceof WeakKey) {
+				return _key.equals(((WeakKey) other).get());
+			} else if(other instanceof Lookup) {
+				return _key.equals(((Lookup) other)._key);
+			}
+			return false;
+		}
+
+	}
+
+}
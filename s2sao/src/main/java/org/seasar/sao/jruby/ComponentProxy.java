@@ -0,0 +1,183 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jruby.IRuby;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.javasupport.JavaObject;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.seasar.framework.container.S2Container;
+
+/**
+ * JRubyランタイム毎の、コンポーネントのプロキシです。
+ * 
+ * コンポーネントのJavaクラス毎に、S2ComponentProxyモジュールをincludeした
+ * JavaObjectのサブクラスを一つ定義し、コンポーネントはそのクラスのインスタンスとして
+ * ラップします。オブジェクト毎に特異クラスを作らないため、JRubyのメソッドキャッシュが
+ * 効きます。
+ * 
+ * シングルトンのコンポーネントのラッパはキャッシュします。キーはコンポーネントの
+ * 同一性で比較する弱参照で、ラッパは軟参照で保持します。ラッパはメモリが
+ * 不足すれば解放され、その後コンポーネントが使われなくなればエントリも消えるため、
+ * キャッシュがリークすることはありません。
+ * 
+ * @author bowez
+ */
+class ComponentProxy {
+    static final String VARIABLE_NAME = "__s2sao_component_proxy__";
+    
+    final IRuby runtime;
+    final RubyModule module;
+    final ConcurrentMap<Class<?>, RubyClass> proxyClasses =
+        new ConcurrentHashMap<Class<?>, RubyClass>();
+    final ConcurrentMap<IdentityKey, SoftReference<IRubyObject>> singletons =
+        new ConcurrentHashMap<IdentityKey, SoftReference<IRubyObject>>();
+    final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    ComponentProxy(IRuby runtime, RubyModule module) {
+        this.runtime = runtime;
+        this.module = module;
+    }
+
+    /**
+     * S2ComponentProxyモジュールに登録されたプロキシを返します。
+     * 
+     * @param runtime
+     * @param module S2ComponentProxyモジュール
+     * @return
+     */
+    static ComponentProxy get(IRuby runtime, RubyModule module) {
+        IRubyObject variable = module.getInstanceVariable(VARIABLE_NAME);
+        if (variable instanceof JavaObject) {
+            return (ComponentProxy) ((JavaObject) variable).getValue();
+        }
+        synchronized (module) {
+            variable = module.getInstanceVariable(VARIABLE_NAME);
+            if (variable instanceof JavaObject) {
+                return (ComponentProxy) ((JavaObject) variable).getValue();
+            }
+            ComponentProxy proxy = new ComponentProxy(runtime, module);
+            module.setInstanceVariable(VARIABLE_NAME, JavaObject.wrap(runtime, proxy));
+            return proxy;
+        }
+    }
+
+    /**
+     * コンポーネントをJavaクラス毎のプロキシクラスのインスタンスでラップします。
+     * 
+     * @param component nullでないコンポーネント
+     * @param singleton シングルトンのコンポーネントならtrue。ラッパをキャッシュします。
+     * @return
+     */
+    IRubyObject wrap(Object component, boolean singleton) {
+        if (!singleton) {
+            return new ComponentObject(runtime, getProxyClass(component.getClass()), component);
+        }
+        expunge();
+        SoftReference<IRubyObject> ref = singletons.get(new IdentityKey(component, null));
+        IRubyObject obj = ref != null ? ref.get() : null;
+        if (obj == null) {
+            obj = new ComponentObject(runtime, getProxyClass(component.getClass()), component);
+            if (component instanceof S2Container) {
+                // 名前空間を辿れるよう、子のS2Containerにもコンポーネント名のメソッドを定義します。
+                RubyComponentUtil.defineComponentAccessors(runtime, obj.getSingletonClass(),
+                        (S2Container) component, false);
+            }
+            singletons.put(new IdentityKey(component, queue), new SoftReference<IRubyObject>(obj));
+        }
+        return obj;
+    }
+
+    RubyClass getProxyClass(Class<?> javaClass) {
+        RubyClass proxyClass = proxyClasses.get(javaClass);
+        if (proxyClass == null) {
+            synchronized (this) {
+                proxyClass = proxyClasses.get(javaClass);
+                if (proxyClass == null) {
+                    RubyClass javaObjectClass = runtime.getModule("Java").getClass("JavaObject");
+                    proxyClass = module.defineClassUnder(
+                            getProxyClassName(javaClass), javaObjectClass);
+                    proxyClass.includeModule(module);
+                    proxyClasses.put(javaClass, proxyClass);
+                }
+            }
+        }
+        return proxyClass;
+    }
+
+    static String getProxyClassName(Class<?> javaClass) {
+        StringBuilder name = new StringBuilder("Java_");
+        String className = javaClass.getName();
+        for (int i = 0; i < className.length(); i++) {
+            char c = className.charAt(i);
+            name.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return name.toString();
+    }
+
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) {
+            singletons.remove(ref);
+        }
+    }
+
+    /**
+     * 参照先の同一性で比較する弱参照のキーです。
+     */
+    static class IdentityKey extends WeakReference<Object> {
+        final int hash;
+        
+        IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof IdentityKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) obj).get();
+        }
+    }
+
+    /**
+     * プロキシクラスのインスタンスとなるJavaObjectです。
+     */
+    static class ComponentObject extends JavaObject {
+        ComponentObject(IRuby runtime, RubyClass proxyClass, Object value) {
+            super(runtime, proxyClass, value);
+        }
+    }
+}
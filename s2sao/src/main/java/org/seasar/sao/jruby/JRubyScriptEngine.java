@@ -1,145 +1,464 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.jruby;
-
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Method;
-
-import org.jruby.IRuby;
-import org.jruby.Ruby;
-import org.jruby.RubyModule;
-import org.jruby.javasupport.JavaUtil;
-import org.jruby.runtime.Arity;
-import org.jruby.runtime.builtin.IRubyObject;
-import org.jruby.runtime.callback.Callback;
-import org.seasar.framework.container.S2Container;
-import org.seasar.sao.ScriptBinding;
-import org.seasar.sao.ScriptEngine;
-
-import static org.seasar.sao.ScriptEngineUtil.*;
-
-/**
- * 
- * @author bowez
- */
-public class JRubyScriptEngine implements ScriptEngine {
-    private static final long serialVersionUID = 8821201315656298440L;
-
-    IRuby jRubyRuntime = Ruby.getDefaultInstance();
-    S2Container container;
-    
-    public JRubyScriptEngine(S2Container container) {
-        this.container = container;
-    }
-
-    public IRuby getRuntime() {
-        return jRubyRuntime;
-    }
-
-    public void setRuntime(IRuby rubyRuntime) {
-        if (jRubyRuntime == null) {
-            throw new IllegalArgumentException("JRubyRuntime cannot be null.");
-        }
-        jRubyRuntime = rubyRuntime;
-    }
-
-    protected String getScriptFilePath(Class<?> sao) {
-        if (sao == null) {
-            throw new IllegalArgumentException();
-        }
-        if (sao.isAnnotationPresent(ScriptBinding.class)) {
-            ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
-            String value = binding.value();
-            if (value.length() > 0) {
-                return value;
-            }
-        }
-        String path = sao.getName();
-        path = path.replace('.', '/') + ".rb";
-        return path;
-    }
-
-    public Object compile(Class<?> sao) throws Exception {
-        String path = getScriptFilePath(sao);
-        InputStream stream = getScriptStream(path);
-        if (stream != null) {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-                jRubyRuntime.eval(jRubyRuntime.parse(reader, path));
-                IRubyObject main = jRubyRuntime.getTopSelf();
-                RubyModule s2module = getS2ContainerModule(jRubyRuntime, container);
-                if (!main.isKindOf(s2module)) {
-                    main.extendObject(s2module);
-                }
-                return main;
-            }
-            finally {
-                stream.close();
-            }
-        }
-        return null;
-    }
-
-    public boolean hasFunction(Object compiled, Method method) {
-        IRubyObject main = IRubyObject.class.cast(compiled);
-        return main.respondsTo(getScriptMethodName(method));
-    }
-
-    public Object invoke(Object compiled, Method method, Object[] args,
-            Class<?> expectedClass) throws Throwable {
-        IRubyObject main = IRubyObject.class.cast(compiled);
-        IRubyObject[] rubyArgs = JavaUtil.convertJavaArrayToRuby(jRubyRuntime, args);
-        IRubyObject result = main.callMethod(getScriptMethodName(method), rubyArgs);
-        return JavaUtil.convertRubyToJava(result);
-    }
-
-    protected RubyModule getS2ContainerModule(IRuby runtime, S2Container container) {
-        RubyModule module = runtime.getModule("S2Container");
-        if (module == null) {
-            module = runtime.defineModule("S2Container");
-            module.defineModuleFunction("method_missing", 
-                    new TopSelfMethodMissingHandler(container, runtime));
-        }
-        return module;
-    }
-
-    static class TopSelfMethodMissingHandler implements Callback {
-        final S2Container container;
-        final IRuby runtime;
-        
-        TopSelfMethodMissingHandler(S2Container container, IRuby runtime) {
-            this.container = container;
-            this.runtime = runtime;
-        }
-
-        public IRubyObject execute(IRubyObject recv, IRubyObject[] args) {
-            if (0 < args.length) {
-                String name = args[0].asSymbol();
-                if (container.hasComponentDef(name)) {
-                    Object component = container.getComponent(name);
-                    return RubyComponentUtil.convertJavaToRuby(runtime, component);
-                }
-            }
-            return recv.callMethod("method_missing", args);
-        }
-
-        public Arity getArity() {
-            return Arity.required(1);
-        }
-    }
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jruby.IRuby;
+import org.jruby.Ruby;
+import org.jruby.RubyModule;
+import org.jruby.RubyThread;
+import org.jruby.ast.Node;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.callback.Callback;
+import org.seasar.framework.container.S2Container;
+import org.seasar.sao.ClasspathScriptRepository;
+import org.seasar.sao.ExecutionBudget;
+import org.seasar.sao.RuntimeBootstrap;
+import org.seasar.sao.ScriptBinding;
+import org.seasar.sao.ScriptEngine;
+import org.seasar.sao.ScriptRepository;
+import org.seasar.sao.ScriptSource;
+
+import static org.seasar.sao.ScriptEngineUtil.*;
+
+/**
+ * 
+ * @author bowez
+ */
+public class JRubyScriptEngine implements ScriptEngine {
+    private static final long serialVersionUID = 8821201315656298440L;
+
+    public static final String scriptRepository_BINDING = "bindingType=none";
+    volatile IRuby jRubyRuntime;
+    final RuntimeBootstrap<IRuby> bootstrap =
+        new RuntimeBootstrap<IRuby>("JRubyScriptEngine-bootstrap") {
+            protected IRuby create() {
+                return Ruby.getDefaultInstance();
+            }
+        };
+    S2Container container;
+    ScriptRepository scriptRepository = new ClasspathScriptRepository();
+    final ConcurrentMap<String, ParsedScript> astCache =
+        new ConcurrentHashMap<String, ParsedScript>();
+    int poolSize = 0;
+    volatile RubyRuntimePool pool;
+    
+    public JRubyScriptEngine(S2Container container) {
+        this.container = container;
+    }
+
+    /**
+     * JRubyランタイムのプールの大きさを設定します。1以上にすると、
+     * SAOスクリプトをプールのランタイム毎に読み込み、呼び出し毎にランタイムを
+     * 一つ借りて実行します。並行する呼び出し同士がランタイムを共有しないため、
+     * 呼び出しはコア数に応じて並列に実行できます。ランタイムが全て
+     * 貸し出し中なら、返却を待ちます。0以下ならgetRuntime()の一つの
+     * ランタイムを全ての呼び出しで共有します（デフォルト）。
+     * 
+     * @param poolSize プールするランタイムの数。
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        pool = null;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    RubyRuntimePool getPool() {
+        RubyRuntimePool result = pool;
+        if (result == null) {
+            synchronized (this) {
+                result = pool;
+                if (result == null) {
+                    result = new RubyRuntimePool(this, poolSize);
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 別スレッドでJRubyランタイムの生成を始めます。プールの大きさが1以上なら、
+     * 代わりにプールのランタイムを別スレッドで生成します。diconのinitMethodに
+     * 指定すると、コンテナの構築と並行して初期化できます。生成中に呼ばれた
+     * SAOメソッドは、生成をやり直さずに完了を待ちます。
+     */
+    public void bootstrap() {
+        if (poolSize <= 0 && jRubyRuntime == null) {
+            bootstrap.start();
+        }
+        if (0 < poolSize) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    getPool();
+                }
+            }, "JRubyScriptEngine-pool");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * JRubyランタイムを返します。setRuntime()で設定されていなければ、
+     * 最初の呼び出し時に生成します。bootstrap()で生成中なら完了を待ちます。
+     */
+    public IRuby getRuntime() {
+        IRuby runtime = jRubyRuntime;
+        if (runtime == null) {
+            IRuby created = bootstrap.get();
+            synchronized (this) {
+                if (jRubyRuntime == null) {
+                    jRubyRuntime = created;
+                }
+                runtime = jRubyRuntime;
+            }
+        }
+        return runtime;
+    }
+
+    public synchronized void setRuntime(IRuby rubyRuntime) {
+        if (rubyRuntime == null) {
+            throw new IllegalArgumentException("JRubyRuntime cannot be null.");
+        }
+        jRubyRuntime = rubyRuntime;
+    }
+
+    /**
+     * SAOスクリプトの取得元を設定します。デフォルトはクラスパスです。
+     */
+    public void setScriptRepository(ScriptRepository scriptRepository) {
+        if (scriptRepository == null) {
+            throw new IllegalArgumentException();
+        }
+        this.scriptRepository = scriptRepository;
+    }
+
+    public ScriptRepository getScriptRepository() {
+        return scriptRepository;
+    }
+
+    public ScriptSource getScriptSource(Class<?> sao) throws IOException {
+        return scriptRepository.getSource(getScriptFilePath(sao));
+    }
+
+    public String getScriptFilePath(Class<?> sao) {
+        if (sao == null) {
+            throw new IllegalArgumentException();
+        }
+        if (sao.isAnnotationPresent(ScriptBinding.class)) {
+            ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
+            String value = binding.value();
+            if (value.length() > 0) {
+                return value;
+            }
+        }
+        String path = sao.getName();
+        path = path.replace('.', '/') + ".rb";
+        return path;
+    }
+
+    public Object compile(Class<?> sao) throws Exception {
+        ScriptSource source = getScriptSource(sao);
+        if (source == null) {
+            return null;
+        }
+        return compile(source);
+    }
+
+    /**
+     * SAOスクリプトを、スクリプトファイル毎の無名モジュールの中で評価し、
+     * そのモジュールとS2Containerモジュールを取り込んだオブジェクトを返します。
+     * トップレベルのdefはモジュールのメソッドになるため、同名のメソッドを
+     * 定義したSAOスクリプト同士が互いを上書きすることはありません。
+     * S2Containerモジュールには、その時点のコンポーネント名毎のメソッドを定義します。
+     * 構文解析済みのASTはスクリプトファイルのパスと内容のハッシュで
+     * キャッシュし、内容が変わらない限り再解析しません。
+     */
+    public Object compile(ScriptSource source) throws Exception {
+        Node node = getNode(source);
+        if (0 < poolSize) {
+            return compilePooled(node);
+        }
+        return load(getRuntime(), node);
+    }
+
+    /**
+     * スレッドへの割り込みによる打ち切りはコンパイルの形に依らないため、
+     * {@link #compile(ScriptSource)}と同じです。
+     */
+    public Object compileInterruptible(ScriptSource source) throws Exception {
+        return compile(source);
+    }
+
+    /**
+     * プールモードでのコンパイルです。借りたランタイムでSAOスクリプトを
+     * 読み込み、空いている他のランタイムにも読み込んでおきます。
+     */
+    Object compilePooled(Node node) throws Exception {
+        RubyRuntimePool pool = getPool();
+        PooledScript script = new PooledScript(node);
+        RubyRuntimePool.PooledRuntime runtime = pool.checkout();
+        try {
+            script.template = runtime.getSaoObject(script);
+        }
+        finally {
+            pool.checkin(runtime);
+        }
+        pool.prewarm(script);
+        return script;
+    }
+
+    /**
+     * スクリプトファイルのパスと内容に対応するASTを、キャッシュから
+     * 取得します。キャッシュに無いか内容が変わっていれば構文解析します。
+     * プールモードでは、共有のランタイムを作らずに借りたランタイムで
+     * 構文解析します。
+     */
+    Node getNode(ScriptSource source) throws Exception {
+        String path = source.getPath();
+        String hash = source.getHash();
+        ParsedScript cached = astCache.get(path);
+        if (cached != null && cached.hash.equals(hash)) {
+            return cached.node;
+        }
+        Reader reader = new StringReader(new String(source.getBytes()));
+        Node node;
+        if (0 < poolSize) {
+            RubyRuntimePool pool = getPool();
+            RubyRuntimePool.PooledRuntime runtime = pool.checkout();
+            try {
+                node = runtime.ruby.parse(reader, path);
+            }
+            finally {
+                pool.checkin(runtime);
+            }
+        }
+        else {
+            node = getRuntime().parse(reader, path);
+        }
+        astCache.put(path, new ParsedScript(hash, node));
+        return node;
+    }
+
+    /**
+     * ASTをランタイムの新しい無名モジュールの中で評価し、
+     * SAOオブジェクトを生成します。
+     */
+    IRubyObject load(IRuby runtime, final Node node) {
+        final RubyModule module = RubyModule.newModule(runtime, null);
+        module.executeUnder(new Callback() {
+            public IRubyObject execute(IRubyObject recv, IRubyObject[] args) {
+                return module.eval(node);
+            }
+
+            public Arity getArity() {
+                return Arity.noArguments();
+            }
+        }, new IRubyObject[0]);
+        IRubyObject self = runtime.getObject().callMethod("new");
+        RubyModule containerModule = getS2ContainerModule(runtime, container);
+        RubyComponentUtil.defineComponentAccessors(runtime, containerModule, container, true);
+        self.extendObject(containerModule);
+        self.extendObject(module);
+        return self;
+    }
+
+    public boolean hasFunction(Object compiled, Method method) {
+        return getFunction(compiled, method) != null;
+    }
+
+    public Object invoke(Object compiled, Method method, Object[] args,
+            Class<?> expectedClass) throws Throwable {
+        Object function = getFunction(compiled, method);
+        if (function == null) {
+            function = new RubyFunction(getSaoObject(compiled), getScriptMethodName(method));
+        }
+        return invokeFunction(compiled, function, args, expectedClass);
+    }
+
+    /**
+     * SAOメソッドに対応するスクリプトメソッドを解決し、{@link RubyFunction}
+     * として返します。プールモードでは一つ目のSAOオブジェクトについて
+     * 解決し、他のランタイムでは最初の呼び出し時に解決し直します。
+     */
+    public Object getFunction(Object compiled, Method method) {
+        IRubyObject main = getSaoObject(compiled);
+        String name = getScriptMethodName(method);
+        if (main.respondsTo(name)) {
+            return new RubyFunction(main, name);
+        }
+        return null;
+    }
+
+    IRubyObject getSaoObject(Object compiled) {
+        if (compiled instanceof PooledScript) {
+            return ((PooledScript) compiled).template;
+        }
+        return IRubyObject.class.cast(compiled);
+    }
+
+    public Object invokeFunction(Object compiled, Object function,
+            Object[] args, Class<?> expectedClass) throws Throwable {
+        RubyFunction resolved = RubyFunction.class.cast(function);
+        if (compiled instanceof PooledScript) {
+            RubyRuntimePool pool = getPool();
+            RubyRuntimePool.PooledRuntime runtime = pool.checkout();
+            try {
+                return call(runtime.ruby,
+                        runtime.getFunction((PooledScript) compiled, resolved), args);
+            }
+            finally {
+                pool.checkin(runtime);
+            }
+        }
+        return call(getRuntime(), resolved, args);
+    }
+
+    Object call(IRuby runtime, RubyFunction function, Object[] args) {
+        IRubyObject[] rubyArgs = JavaUtil.convertJavaArrayToRuby(runtime, args);
+        ExecutionBudget.Meter meter = ExecutionBudget.current();
+        BudgetInterrupter interrupter = null;
+        if (meter != null) {
+            interrupter = new BudgetInterrupter(runtime);
+            meter.addInterruptHandler(interrupter);
+        }
+        try {
+            IRubyObject result = function.call(rubyArgs);
+            return JavaUtil.convertRubyToJava(result);
+        }
+        finally {
+            if (interrupter != null) {
+                meter.removeInterruptHandler(interrupter);
+                interrupter.finish();
+            }
+        }
+    }
+
+    /**
+     * 実行時間の上限を超えた際に、監視スレッドから呼び出しスレッドの
+     * RubyThreadへInterruptを送る。JRubyは行毎にスレッドイベントを確認するため、
+     * 実行中のスクリプトは次の行でInterruptを受け取り、rescue節で明示しない限り
+     * 捕捉されずに終了する。
+     * <p>
+     * RubyThreadは送られた例外を次に確認するまで保持するため、呼び出しが
+     * 戻る間際に送られると、同じスレッドでの後の呼び出しが受け取ってしまいます。
+     * 呼び出し側は戻る前にfinish()を呼び、以降の送信を止めたうえで、
+     * 送られたまま残っている例外を自分のスレッドで取り除きます。
+     */
+    static class BudgetInterrupter implements Runnable {
+        final IRuby runtime;
+        final RubyThread thread;
+        boolean active = true;
+        boolean raised;
+
+        BudgetInterrupter(IRuby runtime) {
+            this.runtime = runtime;
+            this.thread = runtime.getCurrentContext().getThread();
+        }
+
+        public void run() {
+            if (thread == null) {
+                return;
+            }
+            synchronized (this) {
+                if (!active) {
+                    return;
+                }
+                RaiseException e = new RaiseException(runtime,
+                        runtime.getClass("Interrupt"), "script budget exceeded", false);
+                thread.raise(e.getException());
+                raised = true;
+            }
+        }
+
+        /**
+         * 呼び出しスレッドで、スクリプトメソッドから戻る前に呼び出します。
+         */
+        void finish() {
+            boolean pending;
+            synchronized (this) {
+                active = false;
+                pending = raised;
+            }
+            if (pending) {
+                try {
+                    thread.pollThreadEvents();
+                } catch (RaiseException e) {
+                    // 受け取られずに残っていたInterruptです。
+                }
+            }
+        }
+    }
+
+    protected RubyModule getS2ContainerModule(IRuby runtime, S2Container container) {
+        RubyModule module = runtime.getModule("S2Container");
+        if (module == null) {
+            module = runtime.defineModule("S2Container");
+            module.defineModuleFunction("method_missing", 
+                    new TopSelfMethodMissingHandler(container, runtime));
+        }
+        return module;
+    }
+
+    static class TopSelfMethodMissingHandler implements Callback {
+        final S2Container container;
+        final IRuby runtime;
+        
+        TopSelfMethodMissingHandler(S2Container container, IRuby runtime) {
+            this.container = container;
+            this.runtime = runtime;
+        }
+
+        public IRubyObject execute(IRubyObject recv, IRubyObject[] args) {
+            if (0 < args.length) {
+                String name = args[0].asSymbol();
+                if (container.hasComponentDef(name)) {
+                    return RubyComponentUtil.convertComponentToRuby(runtime, container, name);
+                }
+            }
+            return recv.callMethod("method_missing", args);
+        }
+
+        public Arity getArity() {
+            return Arity.required(1);
+        }
+    }
+
+    /**
+     * スクリプトファイルの内容のハッシュと構文解析結果です。
+     */
+    static class ParsedScript {
+        final String hash;
+        final Node node;
+        
+        ParsedScript(String hash, Node node) {
+            this.hash = hash;
+            this.node = node;
+        }
+    }
+}
@@ -1,125 +1,422 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.jruby;
-
-import java.lang.reflect.Method;
-
-import org.jruby.IRuby;
-import org.jruby.javasupport.JavaObject;
-import org.jruby.javasupport.JavaUtil;
-import org.jruby.runtime.Arity;
-import org.jruby.runtime.builtin.IRubyObject;
-import org.jruby.runtime.callback.Callback;
-
-import org.seasar.framework.container.S2Container;
-
-/**
- * S2̃R|[lg̃R[obNłB
- * org.jruby.javasupport.JavaObjectbvĂIuWFNg̃\bhĂяo܂B
- * 
- * @author bowez
- */
-class JavaComponentCallback implements Callback {
-    final IRuby runtime;
-    final Arity arity;
-    
-    public JavaComponentCallback(IRuby runtime, Arity arity) {
-        this.runtime = runtime;
-        this.arity = arity;
-    }
-
-    /**
-     * V[õ\bhĂяo܂B
-     * V[oorg.jruby.javasupport.JavaObject̃CX^XłKv܂B
-     * V[oJavaObjectS2ContainerbvĂꍇ́AĂяoꂽ\bh
-     * R|[lgƔfS2ContainerR|[lg擾܂B
-     * 
-     * Y郁\bhȂꍇ̓V[omethod_missingĂяo܂B
-     * 
-     * @param recv \bh̃V[o
-     * @param args
-     * @throws IllegalArgumentException argsnull܂͒0̏ꍇ
-     * @throws ClassCastException V[orecvJavaObject̃CX^XłȂꍇ
-     */
-    public IRubyObject execute(IRubyObject recv, IRubyObject[] args) 
-            throws IllegalArgumentException, ClassCastException {
-        if (args == null || args.length < 1) {
-            throw new IllegalArgumentException();
-        }
-        String name = args[0].asSymbol();
-        JavaObject javaObject = (JavaObject) recv;
-        if (javaObject.getValue() instanceof S2Container) {
-            S2Container container = (S2Container) javaObject.getValue();
-            if (container.hasComponentDef(name)) {
-                Object component = container.getComponent(name);
-                return RubyComponentUtil.convertJavaToRuby(runtime, component);
-            }
-        }
-        Class[] argTypes = getArgTypes(args);
-        Method method = loadMethod(recv.getJavaClass(), name, argTypes);
-        if (method == null) {
-            return recv.callMethod("method_missing", args);
-        }
-        Object result = null;
-        try {
-            result = method.invoke(javaObject.getValue(), getJavaArgs(args));
-        }
-        catch (Exception e) {
-            throw new RuntimeException(e.getCause());
-        }
-        return JavaUtil.convertJavaToRuby(runtime, result);
-    }
-
-    private Class[] getArgTypes(IRubyObject[] args) {
-        if (args.length == 1) {
-            return new Class[0];
-        }
-        Class[] argTypes = new Class[args.length-1];
-        for (int i = 1; i < args.length; i++) {
-            argTypes[i-1] = JavaUtil.convertRubyToJava(args[i]).getClass();
-        }
-        return argTypes;
-    }
-
-    private Object[] getJavaArgs(IRubyObject[] rubyArgs) {
-        if (rubyArgs.length == 1) {
-            return new Object[0];
-        }
-        Object[] args = new Object[rubyArgs.length-1];
-        for (int i = 1; i < rubyArgs.length; i++) {
-            args[i-1] = JavaUtil.convertRubyToJava(rubyArgs[i]);
-        }
-        return args;
-    }
-
-    private Method loadMethod(Class javaClass, String methodName, Class[] parameterTypes) {
-        Method m;
-        try {
-            m = javaClass.getMethod(methodName, parameterTypes);
-        }
-        catch (SecurityException e) {
-            throw new RuntimeException(e);
-        }
-        catch (NoSuchMethodException e) {
-            return null;
-        }
-        return m;
-    }
-
-    public Arity getArity() {
-        return arity;
-    }
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jruby.IRuby;
+import org.jruby.javasupport.JavaObject;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.callback.Callback;
+
+import org.seasar.framework.container.S2Container;
+
+/**
+ * S2のコンポーネントのコールバックです。
+ * org.jruby.javasupport.JavaObjectがラップしているオブジェクトのメソッドを呼び出します。
+ * 
+ * 呼び出すメソッドは、レシーバのクラス、メソッド名、引数の型の組をキーとする
+ * 呼び出し箇所のキャッシュで解決します。コールバックはJRubyランタイム毎に
+ * 一つで、キャッシュもランタイムと共に解放されます。キャッシュは最近使われた
+ * ものから最大MAX_CALL_SITES件を保持します。オーバーロードは引数の数が一致し、
+ * 引数を変換して渡せるものの中から、型が最も近いものを選びます。
+ * RubyのIntegerやFloatは、プリミティブ型を含むJavaの任意の数値型の
+ * 引数に渡せます。
+ * 
+ * @author bowez
+ */
+class JavaComponentCallback implements Callback {
+    static final int MAX_CALL_SITES = 1024;
+    private static final Invoker NO_METHOD = new Invoker(null, null);
+    
+    final IRuby runtime;
+    final Arity arity;
+    final Map<CallSite, Invoker> callSites =
+        new LinkedHashMap<CallSite, Invoker>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CallSite, Invoker> eldest) {
+                return size() > MAX_CALL_SITES;
+            }
+        };
+    
+    public JavaComponentCallback(IRuby runtime, Arity arity) {
+        this.runtime = runtime;
+        this.arity = arity;
+    }
+
+    /**
+     * レシーバのメソッドを呼び出します。
+     * レシーバはorg.jruby.javasupport.JavaObjectのインスタンスである必要があります。
+     * レシーバのJavaObjectがS2Containerをラップしている場合は、呼び出されたメソッド名を
+     * コンポーネント名と判断してS2Containerからコンポーネントを取得します。
+     * 
+     * 該当するメソッドがない場合はレシーバのmethod_missingを呼び出します。
+     * 
+     * @param recv メソッドのレシーバ
+     * @param args
+     * @throws IllegalArgumentException argsがnullまたは長さ0の場合
+     * @throws ClassCastException レシーバrecvがJavaObjectのインスタンスでない場合
+     */
+    public IRubyObject execute(IRubyObject recv, IRubyObject[] args) 
+            throws IllegalArgumentException, ClassCastException {
+        if (args == null || args.length < 1) {
+            throw new IllegalArgumentException();
+        }
+        String name = args[0].asSymbol();
+        JavaObject javaObject = (JavaObject) recv;
+        Object target = javaObject.getValue();
+        if (target instanceof S2Container) {
+            S2Container container = (S2Container) target;
+            if (container.hasComponentDef(name)) {
+                return RubyComponentUtil.convertComponentToRuby(runtime, container, name);
+            }
+        }
+        Object[] javaArgs = getJavaArgs(args);
+        Invoker invoker = getInvoker(target.getClass(), name, javaArgs);
+        if (invoker == NO_METHOD) {
+            return recv.callMethod("method_missing", args);
+        }
+        Object result = null;
+        try {
+            result = invoker.invoke(target, javaArgs);
+        }
+        catch (Exception e) {
+            Throwable cause = e.getCause();
+            throw new RuntimeException(cause != null ? cause : e);
+        }
+        return JavaUtil.convertJavaToRuby(runtime, result);
+    }
+
+    private Object[] getJavaArgs(IRubyObject[] rubyArgs) {
+        if (rubyArgs.length == 1) {
+            return new Object[0];
+        }
+        Object[] args = new Object[rubyArgs.length-1];
+        for (int i = 1; i < rubyArgs.length; i++) {
+            args[i-1] = JavaUtil.convertRubyToJava(rubyArgs[i]);
+        }
+        return args;
+    }
+
+    /**
+     * 呼び出し箇所のキャッシュから、呼び出すメソッドを取得します。
+     * プールしたランタイムは一度に一つのスレッドしか使わないため、
+     * キャッシュのロックは競合しません。
+     */
+    Invoker getInvoker(Class<?> javaClass, String methodName, Object[] args) {
+        Class<?>[] argTypes = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argTypes[i] = args[i] != null ? args[i].getClass() : null;
+        }
+        CallSite site = new CallSite(javaClass, methodName, argTypes);
+        Invoker invoker;
+        synchronized (callSites) {
+            invoker = callSites.get(site);
+        }
+        if (invoker == null) {
+            invoker = resolve(javaClass, methodName, argTypes);
+            synchronized (callSites) {
+                callSites.put(site, invoker);
+            }
+        }
+        return invoker;
+    }
+
+    /**
+     * 引数の型に最も近いpublicメソッドを選びます。
+     */
+    static Invoker resolve(Class<?> javaClass, String methodName, Class<?>[] argTypes) {
+        Method best = null;
+        int[] bestConversions = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Method method : javaClass.getMethods()) {
+            if (!method.getName().equals(methodName)
+                    || method.getParameterTypes().length != argTypes.length) {
+                continue;
+            }
+            Class<?>[] paramTypes = method.getParameterTypes();
+            int[] conversions = new int[paramTypes.length];
+            int cost = 0;
+            for (int i = 0; i < paramTypes.length && 0 <= cost; i++) {
+                conversions[i] = getConversion(paramTypes[i], argTypes[i]);
+                if (conversions[i] < 0) {
+                    cost = -1;
+                }
+                else {
+                    cost += getCost(paramTypes[i], argTypes[i], conversions[i]);
+                }
+            }
+            if (0 <= cost && cost < bestCost) {
+                best = method;
+                bestConversions = conversions;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            return NO_METHOD;
+        }
+        return new Invoker(getAccessibleMethod(best), bestConversions);
+    }
+
+    static final int AS_IS = 0;
+    static final int TO_BYTE = 1;
+    static final int TO_SHORT = 2;
+    static final int TO_INT = 3;
+    static final int TO_LONG = 4;
+    static final int TO_FLOAT = 5;
+    static final int TO_DOUBLE = 6;
+    static final int TO_CHAR = 7;
+
+    /**
+     * 引数を引数の型へ渡すための変換を求めます。渡せなければ-1です。
+     */
+    static int getConversion(Class<?> paramType, Class<?> argType) {
+        if (argType == null) {
+            return paramType.isPrimitive() ? -1 : AS_IS;
+        }
+        Class<?> boxed = box(paramType);
+        if (boxed.isAssignableFrom(argType)) {
+            return AS_IS;
+        }
+        if (!Number.class.isAssignableFrom(argType)) {
+            if (boxed == Character.class && argType == String.class) {
+                return TO_CHAR;
+            }
+            return -1;
+        }
+        if (boxed == Byte.class) {
+            return TO_BYTE;
+        }
+        if (boxed == Short.class) {
+            return TO_SHORT;
+        }
+        if (boxed == Integer.class) {
+            return TO_INT;
+        }
+        if (boxed == Long.class) {
+            return TO_LONG;
+        }
+        if (boxed == Float.class) {
+            return TO_FLOAT;
+        }
+        if (boxed == Double.class) {
+            return TO_DOUBLE;
+        }
+        return -1;
+    }
+
+    /**
+     * 変換の重みです。同じ型なら0、上位の型や数値の変換ほど大きくなります。
+     */
+    static int getCost(Class<?> paramType, Class<?> argType, int conversion) {
+        if (argType == null) {
+            return 1;
+        }
+        if (conversion == AS_IS) {
+            if (box(paramType) == argType) {
+                return 0;
+            }
+            if (paramType == Object.class) {
+                return 7;
+            }
+            if (paramType.isInterface()) {
+                return 3;
+            }
+            int cost = 1;
+            for (Class<?> c = argType.getSuperclass(); c != paramType && cost < 6;
+                    c = c.getSuperclass()) {
+                cost++;
+            }
+            return cost;
+        }
+        if (conversion == TO_CHAR) {
+            return 16;
+        }
+        // 精度を失いにくい型を優先します。
+        boolean integral = argType == Long.class || argType == Integer.class
+            || argType == Short.class || argType == Byte.class;
+        switch (conversion) {
+        case TO_LONG:
+            return integral ? 8 : 14;
+        case TO_INT:
+            return integral ? 9 : 15;
+        case TO_DOUBLE:
+            return integral ? 12 : 8;
+        case TO_FLOAT:
+            return integral ? 13 : 9;
+        default:
+            return integral ? 10 : 16;
+        }
+    }
+
+    static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (type == Integer.TYPE) {
+            return Integer.class;
+        }
+        if (type == Long.TYPE) {
+            return Long.class;
+        }
+        if (type == Double.TYPE) {
+            return Double.class;
+        }
+        if (type == Boolean.TYPE) {
+            return Boolean.class;
+        }
+        if (type == Float.TYPE) {
+            return Float.class;
+        }
+        if (type == Short.TYPE) {
+            return Short.class;
+        }
+        if (type == Byte.TYPE) {
+            return Byte.class;
+        }
+        if (type == Character.TYPE) {
+            return Character.class;
+        }
+        return Void.class;
+    }
+
+    /**
+     * publicでないクラスのメソッドは呼び出せないため、同じシグネチャの
+     * メソッドをpublicなインターフェイスやスーパークラスから探します。
+     */
+    static Method getAccessibleMethod(Method method) {
+        if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            return method;
+        }
+        Method found = findPublicMethod(method.getDeclaringClass(), method);
+        return found != null ? found : method;
+    }
+
+    private static Method findPublicMethod(Class<?> type, Method method) {
+        if (type == null) {
+            return null;
+        }
+        if (Modifier.isPublic(type.getModifiers())) {
+            try {
+                return type.getMethod(method.getName(), method.getParameterTypes());
+            }
+            catch (NoSuchMethodException e) {
+                // 親から探します。
+            }
+        }
+        for (Class<?> i : type.getInterfaces()) {
+            Method found = findPublicMethod(i, method);
+            if (found != null) {
+                return found;
+            }
+        }
+        return findPublicMethod(type.getSuperclass(), method);
+    }
+
+    public Arity getArity() {
+        return arity;
+    }
+
+    /**
+     * 呼び出し箇所のキャッシュのキーです。
+     */
+    static class CallSite {
+        final Class<?> javaClass;
+        final String name;
+        final Class<?>[] argTypes;
+        final int hash;
+        
+        CallSite(Class<?> javaClass, String name, Class<?>[] argTypes) {
+            this.javaClass = javaClass;
+            this.name = name;
+            this.argTypes = argTypes;
+            hash = (javaClass.hashCode() * 31 + name.hashCode()) * 31
+                + Arrays.hashCode(argTypes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CallSite)) {
+                return false;
+            }
+            CallSite other = (CallSite) obj;
+            return javaClass == other.javaClass && name.equals(other.name)
+                && Arrays.equals(argTypes, other.argTypes);
+        }
+    }
+
+    /**
+     * 解決済みのメソッドと、引数毎の変換です。
+     */
+    static class Invoker {
+        final Method method;
+        final int[] conversions;
+        
+        Invoker(Method method, int[] conversions) {
+            this.method = method;
+            this.conversions = conversions;
+        }
+        
+        Object invoke(Object target, Object[] args)
+                throws IllegalAccessException, InvocationTargetException {
+            for (int i = 0; i < args.length; i++) {
+                if (conversions[i] != AS_IS) {
+                    args[i] = convert(args[i], conversions[i]);
+                }
+            }
+            return method.invoke(target, args);
+        }
+        
+        static Object convert(Object arg, int conversion) {
+            if (conversion == TO_CHAR) {
+                String s = (String) arg;
+                if (s.length() != 1) {
+                    throw new IllegalArgumentException(s);
+                }
+                return Character.valueOf(s.charAt(0));
+            }
+            Number n = (Number) arg;
+            switch (conversion) {
+            case TO_BYTE:
+                return Byte.valueOf(n.byteValue());
+            case TO_SHORT:
+                return Short.valueOf(n.shortValue());
+            case TO_INT:
+                return Integer.valueOf(n.intValue());
+            case TO_LONG:
+                return Long.valueOf(n.longValue());
+            case TO_FLOAT:
+                return Float.valueOf(n.floatValue());
+            default:
+                return Double.valueOf(n.doubleValue());
+            }
+        }
+    }
+}
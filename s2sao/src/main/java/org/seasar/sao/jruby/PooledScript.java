@@ -0,0 +1,35 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import org.jruby.ast.Node;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * プールモードでのコンパイル済みSAOスクリプトです。SAOオブジェクトの実体は
+ * {@link RubyRuntimePool}のランタイム毎に持ち、ここには共有するASTと、
+ * メソッドの有無を調べるための一つ目のSAOオブジェクトを保持します。
+ * 
+ * @author bowez
+ */
+class PooledScript {
+    final Node node;
+    IRubyObject template;
+    
+    PooledScript(Node node) {
+        this.node = node;
+    }
+}
@@ -1,55 +1,187 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.jruby;
-
-import org.jruby.IRuby;
-import org.jruby.RubyModule;
-import org.jruby.javasupport.JavaUtil;
-import org.jruby.runtime.Arity;
-import org.jruby.runtime.builtin.IRubyObject;
-
-/**
- * @author bowez
- */
-public class RubyComponentUtil {
-
-    /**
-     * JavãIuWFNgJRubỹIuWFNgɕϊ܂B
-     * 
-     * @param runtime
-     * @param javaComponent JavaIuWFNg
-     * @return
-     */
-    public static IRubyObject convertJavaToRuby(IRuby runtime, Object javaComponent) {
-        IRubyObject obj = JavaUtil.convertJavaToRuby(runtime, javaComponent);
-        RubyModule proxy = getComponentProxy(runtime);
-        if (!obj.isKindOf(proxy)) {
-            obj.extendObject(proxy);
-        }
-        return obj;
-    }
-
-    public static RubyModule getComponentProxy(IRuby runtime) {
-        RubyModule module = runtime.getModule("S2ComponentProxy");
-        if (module == null) {
-            module = runtime.defineModule("S2ComponentProxy");
-            module.defineModuleFunction("method_missing", 
-                    new JavaComponentCallback(runtime, Arity.required(1)));
-        }
-        return module;
-    }
-
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.jruby.IRuby;
+import org.jruby.RubyModule;
+import org.jruby.javasupport.JavaObject;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.ICallable;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.callback.Callback;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.InstanceDef;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.impl.SimpleComponentDef;
+
+/**
+ * @author bowez
+ */
+public class RubyComponentUtil {
+    private static final Pattern METHOD_NAME = Pattern.compile("[a-z_][A-Za-z0-9_]*");
+
+    /**
+     * JavaのオブジェクトをJRubyのオブジェクトに変換します。
+     * Javaのオブジェクトは、そのクラスのプロキシクラスのインスタンスでラップします。
+     * 
+     * @param runtime
+     * @param javaComponent Javaオブジェクト
+     * @return
+     */
+    public static IRubyObject convertJavaToRuby(IRuby runtime, Object javaComponent) {
+        return convertJavaToRuby(runtime, javaComponent, false);
+    }
+
+    /**
+     * S2Containerのコンポーネントを取得して、JRubyのオブジェクトに変換します。
+     * シングルトンのコンポーネントは、変換したオブジェクトをキャッシュして再利用します。
+     * 
+     * @param runtime
+     * @param container
+     * @param name コンポーネント名
+     * @return
+     */
+    public static IRubyObject convertComponentToRuby(IRuby runtime, S2Container container,
+            String name) {
+        ComponentDef def = container.getComponentDef(name);
+        return convertJavaToRuby(runtime, def.getComponent(), isSingleton(def));
+    }
+
+    static boolean isSingleton(ComponentDef def) {
+        if (def instanceof SimpleComponentDef) {
+            // 登録済みのインスタンス（子のS2Containerなど）はInstanceDefを持たない。
+            return true;
+        }
+        InstanceDef instanceDef = def.getInstanceDef();
+        return instanceDef != null
+            && InstanceDef.SINGLETON_NAME.equals(instanceDef.getName());
+    }
+
+    static IRubyObject convertJavaToRuby(IRuby runtime, Object javaComponent,
+            boolean singleton) {
+        IRubyObject obj = JavaUtil.convertJavaToRuby(runtime, javaComponent);
+        if (!(obj instanceof JavaObject)) {
+            // nilやStringなど、Rubyのオブジェクトに変換された値です。
+            return obj;
+        }
+        RubyModule module = getComponentProxy(runtime);
+        return ComponentProxy.get(runtime, module).wrap(javaComponent, singleton);
+    }
+
+    /**
+     * S2Containerのコンポーネント名毎に、コンポーネントを返すメソッドをモジュールに
+     * 定義します。子のS2Containerのコンポーネントも対象で、名前空間名のメソッドは
+     * 子のS2Containerを返します。通常のメソッド呼び出しになるため、JRubyの
+     * メソッドキャッシュが効きます。
+     * 
+     * Rubyのメソッド名として使えない名前、既に定義済みのメソッドと同じ名前は
+     * 対象外です。後から登録されたコンポーネントと共に、method_missingで解決します。
+     * 
+     * @param runtime
+     * @param module メソッドを定義するモジュール
+     * @param container
+     * @param moduleFunction trueならモジュール関数（関数形式で呼び出す）として、
+     * falseならpublicなメソッドとして定義します。
+     */
+    public static void defineComponentAccessors(IRuby runtime, RubyModule module,
+            S2Container container, boolean moduleFunction) {
+        Set<String> names = new HashSet<String>();
+        collectComponentNames(container, names, new IdentityHashMap<S2Container, Boolean>());
+        for (String name : names) {
+            if (isBound(module, name) || isBound(runtime.getObject(), name)) {
+                continue;
+            }
+            Callback accessor = new ComponentAccessor(runtime, container, name);
+            if (moduleFunction) {
+                module.defineModuleFunction(name, accessor);
+            }
+            else {
+                module.defineMethod(name, accessor);
+            }
+        }
+    }
+
+    private static boolean isBound(RubyModule module, String name) {
+        ICallable method = module.searchMethod(name);
+        return method != null && !method.isUndefined();
+    }
+
+    private static void collectComponentNames(S2Container container, Set<String> names,
+            Map<S2Container, Boolean> visited) {
+        if (visited.put(container, Boolean.TRUE) != null) {
+            return;
+        }
+        for (int i = 0; i < container.getComponentDefSize(); i++) {
+            addName(container.getComponentDef(i).getComponentName(), names);
+        }
+        for (int i = 0; i < container.getChildSize(); i++) {
+            S2Container child = container.getChild(i);
+            addName(child.getNamespace(), names);
+            collectComponentNames(child, names, visited);
+        }
+    }
+
+    private static void addName(String name, Set<String> names) {
+        if (name != null && METHOD_NAME.matcher(name).matches()) {
+            names.add(name);
+        }
+    }
+
+    public static RubyModule getComponentProxy(IRuby runtime) {
+        RubyModule module = runtime.getModule("S2ComponentProxy");
+        if (module == null) {
+            module = runtime.defineModule("S2ComponentProxy");
+            module.defineModuleFunction("method_missing", 
+                    new JavaComponentCallback(runtime, Arity.required(1)));
+        }
+        return module;
+    }
+
+    /**
+     * コンポーネント名で定義したメソッドです。S2Containerからコンポーネントを取得します。
+     */
+    static class ComponentAccessor implements Callback {
+        final IRuby runtime;
+        final S2Container container;
+        final String name;
+        
+        ComponentAccessor(IRuby runtime, S2Container container, String name) {
+            this.runtime = runtime;
+            this.container = container;
+            this.name = name;
+        }
+
+        public IRubyObject execute(IRubyObject recv, IRubyObject[] args) {
+            if (!container.hasComponentDef(name)) {
+                return recv.callMethod("method_missing",
+                        new IRubyObject[] {runtime.newSymbol(name)});
+            }
+            return convertComponentToRuby(runtime, container, name);
+        }
+
+        public Arity getArity() {
+            return Arity.noArguments();
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import org.jruby.RubyModule;
+import org.jruby.runtime.ICallable;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * SAOオブジェクトについて解決済みのスクリプトメソッドです。呼び出しの度に
+ * 祖先のモジュールを名前で探さないよう、getFunction()の時点でメソッドの
+ * 実装を解決して保持します。解決後にスクリプトがメソッドを再定義しても
+ * 反映されないため、再定義はスクリプトファイルの更新として扱ってください。
+ * 
+ * @author bowez
+ */
+class RubyFunction {
+    final IRubyObject self;
+    final String name;
+    final RubyModule implementer;
+    final ICallable method;
+    final String callName;
+    
+    RubyFunction(IRubyObject self, String name) {
+        this.self = self;
+        this.name = name;
+        RubyModule found = self.getMetaClass().findImplementer(name);
+        ICallable callable = null;
+        if (found != null) {
+            callable = found.retrieveMethod(name);
+            if (callable != null && callable.isUndefined()) {
+                callable = null;
+            }
+        }
+        if (callable == null) {
+            implementer = null;
+            method = null;
+            callName = name;
+        }
+        else {
+            implementer = found;
+            method = callable;
+            String originalName = callable.getOriginalName();
+            callName = originalName != null ? originalName : name;
+        }
+    }
+    
+    /**
+     * メソッドを実行します。解決できなかった場合は、名前で呼び出して
+     * method_missingに任せます。
+     */
+    IRubyObject call(IRubyObject[] args) {
+        if (method == null) {
+            return self.callMethod(name, args);
+        }
+        return method.call(self.getRuntime(), self, implementer, callName, args, false);
+    }
+}
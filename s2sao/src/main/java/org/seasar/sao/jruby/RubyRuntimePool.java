@@ -0,0 +1,159 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jruby.IRuby;
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * SAOの呼び出し毎に貸し出すJRubyランタイムのプールです。ランタイムは
+ * それぞれ、SAOスクリプト毎のモジュールとそれを取り込んだオブジェクトを
+ * 持ちます。構文解析済みのASTは全てのランタイムで共有します。
+ * 
+ * @author bowez
+ */
+class RubyRuntimePool {
+    final JRubyScriptEngine engine;
+    final BlockingQueue<PooledRuntime> idle;
+    final ThreadLocal<PooledRuntime> current = new ThreadLocal<PooledRuntime>();
+    
+    RubyRuntimePool(JRubyScriptEngine engine, int size) {
+        if (engine == null || size < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.engine = engine;
+        idle = new ArrayBlockingQueue<PooledRuntime>(size);
+        for (int i = 0; i < size; i++) {
+            idle.add(new PooledRuntime(Ruby.getDefaultInstance()));
+        }
+    }
+    
+    /**
+     * ランタイムを借ります。呼び出し中のスレッドが既に借りていれば、
+     * 入れ子の呼び出しとして同じランタイムを返します。
+     */
+    PooledRuntime checkout() throws InterruptedException {
+        PooledRuntime runtime = current.get();
+        if (runtime != null) {
+            runtime.depth++;
+            return runtime;
+        }
+        runtime = idle.take();
+        runtime.depth = 1;
+        current.set(runtime);
+        return runtime;
+    }
+    
+    void checkin(PooledRuntime runtime) {
+        if (--runtime.depth > 0) {
+            return;
+        }
+        current.remove();
+        idle.add(runtime);
+    }
+    
+    /**
+     * 空いているランタイム全てに、SAOスクリプトを読み込んでおきます。
+     * 貸し出し中のランタイムには、次に借りられた時に読み込みます。
+     */
+    void prewarm(PooledScript script) {
+        int size = idle.size();
+        for (int i = 0; i < size; i++) {
+            PooledRuntime runtime = idle.poll();
+            if (runtime == null) {
+                break;
+            }
+            try {
+                runtime.getSaoObject(script);
+            }
+            finally {
+                idle.add(runtime);
+            }
+        }
+    }
+    
+    int getIdleCount() {
+        return idle.size();
+    }
+    
+    /**
+     * プールのランタイムです。借りているスレッドだけが使います。
+     */
+    class PooledRuntime {
+        final IRuby ruby;
+        final Map<PooledScript, LoadedScript> scripts =
+            Collections.synchronizedMap(new WeakHashMap<PooledScript, LoadedScript>());
+        int depth;
+        
+        PooledRuntime(IRuby ruby) {
+            this.ruby = ruby;
+        }
+        
+        /**
+         * SAOスクリプトを読み込んだオブジェクトを取得します。未読み込みなら
+         * 読み込みます。再解析されたスクリプトは別の{@link PooledScript}となるため、
+         * 読み込み直されます。
+         */
+        IRubyObject getSaoObject(PooledScript script) {
+            return getLoadedScript(script).self;
+        }
+        
+        /**
+         * 一つ目のSAOオブジェクトについて解決済みのスクリプトメソッドを、
+         * このランタイムのSAOオブジェクトについて解決し直します。
+         * 解決結果はランタイム毎に保持します。
+         */
+        RubyFunction getFunction(PooledScript script, RubyFunction function) {
+            LoadedScript loaded = getLoadedScript(script);
+            if (loaded.self == function.self) {
+                return function;
+            }
+            RubyFunction resolved = loaded.functions.get(function.name);
+            if (resolved == null) {
+                resolved = new RubyFunction(loaded.self, function.name);
+                loaded.functions.put(function.name, resolved);
+            }
+            return resolved;
+        }
+        
+        LoadedScript getLoadedScript(PooledScript script) {
+            LoadedScript loaded = scripts.get(script);
+            if (loaded == null) {
+                IRubyObject self = engine.load(ruby, script.node);
+                loaded = new LoadedScript(self);
+                scripts.put(script, loaded);
+            }
+            return loaded;
+        }
+    }
+    
+    static class LoadedScript {
+        final IRubyObject self;
+        final Map<String, RubyFunction> functions = new HashMap<String, RubyFunction>();
+        
+        LoadedScript(IRubyObject self) {
+            this.self = self;
+        }
+    }
+}
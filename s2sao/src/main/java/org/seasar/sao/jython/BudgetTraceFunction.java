@@ -0,0 +1,54 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import org.python.core.PyException;
+import org.python.core.PyFrame;
+import org.python.core.PyObject;
+import org.python.core.TraceFunction;
+import org.seasar.sao.ExecutionBudget;
+
+/**
+ * 実行時間の上限（ExecutionBudget）付きの呼び出しで、Pythonの行が
+ * 実行される度に上限の超過を確認するトレース関数。計測中でないスレッドの
+ * フレームはトレースしない。
+ * 
+ * @author bowez
+ */
+class BudgetTraceFunction extends TraceFunction {
+    static final BudgetTraceFunction INSTANCE = new BudgetTraceFunction();
+
+    public TraceFunction traceCall(PyFrame frame) {
+        if (ExecutionBudget.current() == null) {
+            return null;
+        }
+        ExecutionBudget.checkCurrent();
+        return this;
+    }
+
+    public TraceFunction traceLine(PyFrame frame, int line) {
+        ExecutionBudget.checkCurrent();
+        return this;
+    }
+
+    public TraceFunction traceReturn(PyFrame frame, PyObject ret) {
+        return this;
+    }
+
+    public TraceFunction traceException(PyFrame frame, PyException exc) {
+        return this;
+    }
+}
@@ -1,101 +1,373 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.jython;
-
-import java.lang.reflect.Method;
-import java.util.Properties;
-
-import org.python.core.Py;
-import org.python.core.PyObject;
-import org.python.core.PySystemState;
-import org.python.util.PythonInterpreter;
-import org.seasar.sao.ScriptBinding;
-import org.seasar.sao.ScriptEngine;
-
-import static org.seasar.sao.ScriptEngineUtil.*;
-
-/**
- * @author bowez
- */
-public class JythonScriptEngine implements ScriptEngine {
-    private static final long serialVersionUID = 2822589331359858203L;
-    private static final String PYTHON_HOME_KEY = "python.home";
-    
-    final PythonInterpreter pythonInterpreter;
-    final Properties properties = new Properties();
-    
-    public JythonScriptEngine() {
-        this(null);
-    }
-    
-    public JythonScriptEngine(PyObject dictionary) {
-        PythonInterpreter.initialize(System.getProperties(), properties, new String[0]);
-        pythonInterpreter = new PythonInterpreter(dictionary, new PySystemState());
-    }
-    
-    public void setPythonHome(String path) {
-        if (path != null && 0 < path.length()) {
-            properties.setProperty(PYTHON_HOME_KEY, path);
-        }
-    }
-    
-    protected String getScriptFilePath(Class<?> sao) {
-        if (sao == null) {
-            throw new IllegalArgumentException();
-        }
-        if(sao.isAnnotationPresent(ScriptBinding.class)) {
-            ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
-            String value = binding.value();
-            if(value.length() > 0) {
-                return value;
-            }
-        }
-        String path = sao.getName();
-        path = path.replace('.', '/') + ".py";
-        return path;
-    }
-
-    public Object compile(Class<?> sao) throws Throwable {
-        String path = getScriptFilePath(sao);
-        pythonInterpreter.execfile(getScriptStream(path));
-        return pythonInterpreter.getLocals();
-    }
-
-    public boolean hasFunction(Object compiled, Method method) {
-        PyObject locals = PyObject.class.cast(compiled);
-        PyObject item = locals.__finditem__(getScriptMethodName(method));
-        return item != null && item.isCallable();
-    }
-
-    public Object invoke(Object compiled, Method method, Object[] args,
-            Class<?> expectedClass) throws Throwable {
-        PyObject locals = PyObject.class.cast(compiled);
-        PyObject attr = locals.__finditem__(getScriptMethodName(method));
-        PyObject ret = attr.__call__(createPyObjects(args));
-        return ret.__tojava__(expectedClass);
-    }
-
-    PyObject[] createPyObjects(Object[] args) {
-        if (args == null) {
-            return new PyObject[0];
-        }
-        PyObject[] pyObjects = new PyObject[args.length];
-        for (int i = 0; i < args.length; i++) {
-            pyObjects[i] = Py.java2py(args[i]);
-        }
-        return pyObjects;
-    }
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.PyObject;
+import org.python.core.PySystemState;
+import org.python.core.ThreadState;
+import org.python.util.PythonInterpreter;
+import org.seasar.sao.ClasspathScriptRepository;
+import org.seasar.sao.ExecutionBudget;
+import org.seasar.sao.RuntimeBootstrap;
+import org.seasar.sao.ScriptBinding;
+import org.seasar.sao.ScriptEngine;
+import org.seasar.sao.ScriptRepository;
+import org.seasar.sao.ScriptSource;
+
+import static org.seasar.sao.ScriptEngineUtil.*;
+
+/**
+ * @author bowez
+ */
+public class JythonScriptEngine implements ScriptEngine {
+    private static final long serialVersionUID = 2822589331359858203L;
+    private static final String PYTHON_HOME_KEY = "python.home";
+    
+    public static final String scriptRepository_BINDING = "bindingType=none";
+    final PyObject dictionary;
+    final Properties properties = new Properties();
+    ScriptRepository scriptRepository = new ClasspathScriptRepository();
+    final RuntimeBootstrap<PySystemState> bootstrap =
+        new RuntimeBootstrap<PySystemState>("JythonScriptEngine-bootstrap") {
+            protected PySystemState create() {
+                PythonInterpreter.initialize(System.getProperties(), properties, new String[0]);
+                return new PySystemState();
+            }
+        };
+    final ConcurrentMap<String, CompiledCode> codeCache =
+        new ConcurrentHashMap<String, CompiledCode>();
+    int poolSize = 0;
+    volatile PyInterpreterPool pool;
+    
+    public JythonScriptEngine() {
+        this(null);
+    }
+    
+    /**
+     * Jythonの初期化は、最初のSAOスクリプトのコンパイル時か、bootstrap()で
+     * 始めた別スレッドで行います。コンストラクタでは初期化しません。
+     * 
+     * @param dictionary 全てのSAOスクリプトから参照できる共有の辞書。
+     *   SAOスクリプト毎のモジュールに無い名前はここから探します。nullも可。
+     */
+    public JythonScriptEngine(PyObject dictionary) {
+        this.dictionary = dictionary;
+    }
+    
+    /**
+     * SAOスクリプトの取得元を設定します。デフォルトはクラスパスです。
+     */
+    public void setScriptRepository(ScriptRepository scriptRepository) {
+        if (scriptRepository == null) {
+            throw new IllegalArgumentException();
+        }
+        this.scriptRepository = scriptRepository;
+    }
+    
+    public ScriptRepository getScriptRepository() {
+        return scriptRepository;
+    }
+    
+    public ScriptSource getScriptSource(Class<?> sao) throws IOException {
+        return scriptRepository.getSource(getScriptFilePath(sao));
+    }
+    
+    /**
+     * python.homeを設定します。Jythonの初期化前に設定する必要があります。
+     */
+    public void setPythonHome(String path) {
+        if (path != null && 0 < path.length()) {
+            properties.setProperty(PYTHON_HOME_KEY, path);
+        }
+    }
+    
+    /**
+     * 別スレッドでJythonの初期化を始めます。diconのinitMethodに指定すると、
+     * コンテナの構築と並行して初期化できます。初期化中に呼ばれたSAOメソッドは、
+     * 初期化をやり直さずに完了を待ちます。
+     */
+    public void bootstrap() {
+        bootstrap.start();
+    }
+    
+    /**
+     * 初期化済みのPySystemStateを返します。初期化前なら初期化し、
+     * 初期化中なら完了を待ちます。
+     */
+    PySystemState getSystemState() {
+        return bootstrap.get();
+    }
+    
+    /**
+     * インタプリタのプールの大きさを設定します。1以上にすると、SAOスクリプトの
+     * モジュールをプールのインタプリタ毎に読み込み、呼び出し毎にインタプリタを
+     * 一つ借りて実行します。並行する呼び出し同士がモジュールの状態や
+     * PySystemStateを共有しないため、呼び出しはコア数に応じて並列に
+     * 実行できます。インタプリタが全て貸し出し中なら、返却を待ちます。
+     * 0以下なら全ての呼び出しで一つのモジュールを共有します（デフォルト）。
+     * 
+     * @param poolSize プールするインタプリタの数。
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        pool = null;
+    }
+    
+    public int getPoolSize() {
+        return poolSize;
+    }
+    
+    PyInterpreterPool getPool() {
+        PyInterpreterPool result = pool;
+        if (result == null) {
+            synchronized (this) {
+                result = pool;
+                if (result == null) {
+                    result = new PyInterpreterPool(this, poolSize);
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    public String getScriptFilePath(Class<?> sao) {
+        if (sao == null) {
+            throw new IllegalArgumentException();
+        }
+        if(sao.isAnnotationPresent(ScriptBinding.class)) {
+            ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
+            String value = binding.value();
+            if(value.length() > 0) {
+                return value;
+            }
+        }
+        String path = sao.getName();
+        path = path.replace('.', '/') + ".py";
+        return path;
+    }
+
+    public Object compile(Class<?> sao) throws Throwable {
+        ScriptSource source = getScriptSource(sao);
+        if (source == null) {
+            return null;
+        }
+        return compile(source);
+    }
+
+    /**
+     * SAOスクリプトを、スクリプトファイル毎に新しいモジュールの名前空間で
+     * 実行します。同名の関数を定義したSAOスクリプト同士が互いを上書きする
+     * ことはありません。
+     * コンパイル結果のPyCodeはスクリプトファイルのパスと内容のハッシュで
+     * キャッシュし、内容が変わらない限り再コンパイルしません。
+     * @return SAOスクリプトのモジュールの名前空間。
+     */
+    public Object compile(ScriptSource source) throws Throwable {
+        String path = source.getPath();
+        PySystemState systemState = getSystemState();
+        PyCode code = getCode(source);
+        if (0 < poolSize) {
+            return compilePooled(path, code);
+        }
+        PyObject module = createModule(path);
+        PySystemState previous = Py.setSystemState(systemState);
+        try {
+            Py.runCode(code, module, module);
+        }
+        finally {
+            Py.setSystemState(previous);
+        }
+        return module;
+    }
+
+    /**
+     * プールモードでのコンパイルです。借りたインタプリタでモジュールを
+     * 読み込み、空いている他のインタプリタにも読み込んでおきます。
+     */
+    Object compilePooled(String path, PyCode code) throws Throwable {
+        PyInterpreterPool pool = getPool();
+        PooledModule module = new PooledModule(path, code);
+        PyInterpreterPool.Interpreter interpreter = pool.checkout();
+        try {
+            module.template = interpreter.getModule(module);
+        }
+        finally {
+            pool.checkin(interpreter);
+        }
+        pool.prewarm(module);
+        return module;
+    }
+
+    /**
+     * スクリプトファイルのパスと内容に対応するPyCodeを、キャッシュから
+     * 取得します。キャッシュに無いか内容が変わっていればコンパイルします。
+     */
+    PyCode getCode(ScriptSource source) throws IOException {
+        String path = source.getPath();
+        String hash = source.getHash();
+        CompiledCode cached = codeCache.get(path);
+        if (cached != null && cached.hash.equals(hash)) {
+            return cached.code;
+        }
+        PyCode code = Py.compile(source.openStream(), path, "exec");
+        codeCache.put(path, new CompiledCode(hash, code));
+        return code;
+    }
+
+    /**
+     * スクリプトファイルのモジュールを作ります。モジュール名は、パスから
+     * 拡張子を除き、'/'を'.'に置き換えたものです。同じスクリプトファイルに
+     * 束縛された全てのSAOで、コンパイル結果を共有するためです。
+     */
+    PyObject createModule(String path) {
+        PyObject module = new PyModuleStringMap(dictionary);
+        module.__setitem__("__name__", Py.newString(getModuleName(path)));
+        module.__setitem__("__file__", Py.newString(path));
+        return module;
+    }
+
+    /**
+     * トレース関数による打ち切りはコンパイルの形に依らないため、
+     * {@link #compile(ScriptSource)}と同じです。
+     */
+    public Object compileInterruptible(ScriptSource source) throws Throwable {
+        return compile(source);
+    }
+
+    static String getModuleName(String path) {
+        String name = path;
+        int dot = name.lastIndexOf('.');
+        if (name.lastIndexOf('/') < dot) {
+            name = name.substring(0, dot);
+        }
+        return name.replace('/', '.');
+    }
+
+    public boolean hasFunction(Object compiled, Method method) {
+        return getFunction(compiled, method) != null;
+    }
+
+    public Object invoke(Object compiled, Method method, Object[] args,
+            Class<?> expectedClass) throws Throwable {
+        Object function = getFunction(compiled, method);
+        if (function == null) {
+            throw new IllegalArgumentException(method.getName());
+        }
+        return invokeFunction(compiled, function, args, expectedClass);
+    }
+
+    /**
+     * @return 通常はスクリプトメソッドの関数オブジェクト。プールモードでは
+     *   インタプリタ毎に関数オブジェクトが異なるため、関数名。
+     */
+    public Object getFunction(Object compiled, Method method) {
+        String name = getScriptMethodName(method).intern();
+        PyObject locals;
+        if (compiled instanceof PooledModule) {
+            locals = ((PooledModule) compiled).template;
+        }
+        else {
+            locals = PyObject.class.cast(compiled);
+        }
+        PyObject item = locals.__finditem__(name);
+        if (item != null && item.isCallable()) {
+            return compiled instanceof PooledModule ? name : item;
+        }
+        return null;
+    }
+
+    public Object invokeFunction(Object compiled, Object function,
+            Object[] args, Class<?> expectedClass) throws Throwable {
+        if (compiled instanceof PooledModule) {
+            return invokePooled((PooledModule) compiled, (String) function,
+                    args, expectedClass);
+        }
+        return call(PyObject.class.cast(function), args, expectedClass);
+    }
+
+    Object invokePooled(PooledModule module, String name,
+            Object[] args, Class<?> expectedClass) throws Throwable {
+        PyInterpreterPool pool = getPool();
+        PyInterpreterPool.Interpreter interpreter = pool.checkout();
+        try {
+            PyObject attr = interpreter.getModule(module).__finditem__(name);
+            if (attr == null) {
+                throw new IllegalStateException(name);
+            }
+            return call(attr, args, expectedClass);
+        }
+        finally {
+            pool.checkin(interpreter);
+        }
+    }
+
+    Object call(PyObject attr, Object[] args, Class<?> expectedClass) {
+        if (dictionary instanceof PyContainerStringMap) {
+            ((PyContainerStringMap) dictionary).validate();
+        }
+        if (ExecutionBudget.current() != null) {
+            installBudgetTrace();
+        }
+        PyObject ret = attr.__call__(createPyObjects(args));
+        return ret.__tojava__(expectedClass);
+    }
+
+    /**
+     * 実行時間の上限を確認するトレース関数を、呼び出しスレッドの
+     * PySystemStateに設定する。トレース関数は他のスレッドとも共有されるため
+     * 一度設定したら外さないが、計測中でないスレッドのフレームはトレースしない。
+     * 他のトレース関数が設定済みなら何もしない。
+     */
+    void installBudgetTrace() {
+        ThreadState ts = Py.getThreadState();
+        if (ts.systemState.tracefunc == null) {
+            ts.systemState.tracefunc = BudgetTraceFunction.INSTANCE;
+        }
+    }
+
+    PyObject[] createPyObjects(Object[] args) {
+        if (args == null) {
+            return new PyObject[0];
+        }
+        PyObject[] pyObjects = new PyObject[args.length];
+        for (int i = 0; i < args.length; i++) {
+            pyObjects[i] = Py.java2py(args[i]);
+        }
+        return pyObjects;
+    }
+
+    /**
+     * スクリプトファイルの内容のハッシュとコンパイル結果です。
+     */
+    static class CompiledCode {
+        final String hash;
+        final PyCode code;
+        
+        CompiledCode(String hash, PyCode code) {
+            this.hash = hash;
+            this.code = code;
+        }
+    }
+}
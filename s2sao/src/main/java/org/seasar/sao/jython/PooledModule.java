@@ -0,0 +1,37 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import org.python.core.PyCode;
+import org.python.core.PyObject;
+
+/**
+ * プールモードでのコンパイル済みSAOスクリプトです。モジュールの実体は
+ * {@link PyInterpreterPool}のインタプリタ毎に持ち、ここには共有する
+ * PyCodeと、関数の有無を調べるための一つ目のモジュールを保持します。
+ * 
+ * @author bowez
+ */
+class PooledModule {
+    final String path;
+    final PyCode code;
+    PyObject template;
+    
+    PooledModule(String path, PyCode code) {
+        this.path = path;
+        this.code = code;
+    }
+}
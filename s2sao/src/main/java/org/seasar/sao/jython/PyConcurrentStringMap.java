@@ -0,0 +1,81 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.python.core.PyList;
+import org.python.core.PyObject;
+import org.python.core.PyStringMap;
+import org.python.core.PyTuple;
+
+/**
+ * 名前の検索をロック無しで行う{@link PyStringMap}です。
+ * 書き込みは{@link PyStringMap}本体と、検索用の{@link ConcurrentMap}の
+ * 両方に行います。検索用のマップはStringをequalsで比較するため、
+ * キーがinternされていなくても見つけられます。
+ * 
+ * @author bowez
+ */
+public class PyConcurrentStringMap extends PyStringMap {
+    private static final long serialVersionUID = -3460950215906212953L;
+    
+    final ConcurrentMap<String, PyObject> items =
+        new ConcurrentHashMap<String, PyObject>();
+    
+    @Override
+    public PyObject __finditem__(String key) {
+        return items.get(key);
+    }
+    
+    @Override
+    public synchronized void __setitem__(String key, PyObject value) {
+        super.__setitem__(key.intern(), value);
+        items.put(key, value);
+    }
+    
+    @Override
+    public synchronized void __delitem__(String key) {
+        super.__delitem__(key.intern());
+        items.remove(key);
+    }
+    
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        items.clear();
+    }
+    
+    @Override
+    public synchronized void update(PyStringMap other) {
+        PyList pairs = other.items();
+        for (int i = 0; i < pairs.__len__(); i++) {
+            PyObject pair = pairs.__getitem__(i);
+            __setitem__(pair.__getitem__(0).toString(), pair.__getitem__(1));
+        }
+    }
+    
+    @Override
+    public synchronized PyObject popitem() {
+        PyObject pair = super.popitem();
+        if (pair instanceof PyTuple) {
+            items.remove(pair.__getitem__(0).toString());
+        }
+        return pair;
+    }
+
+}
@@ -1,65 +1,183 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.jython;
-
-import org.python.core.PyList;
-import org.python.core.PyObject;
-import org.python.core.PyStringMap;
-import org.seasar.framework.container.S2Container;
-
-/**
- * {@link PyStringMap}ňʏ̃L[ƒl̃ZbgɉAS2Container
- * ǗR|[lgACeƂĒ񋟂邽߂̃NXłB
- * 
- * @author bowez
- */
-public class PyContainerStringMap extends PyStringMap {
-    private static final long serialVersionUID = -5515953169181260027L;
-    private static final String DELETED_KEY = "<deleted key>";
-    
-    final S2Container container;
-    
-    public PyContainerStringMap(S2Container container) {
-        if (container == null) {
-            throw new IllegalArgumentException();
-        }
-        this.container = container;
-    }
-    
-    @Override
-    public synchronized PyObject __finditem__(String key) {
-        /* 
-         * PyStringMap#__finditem__(String) ɂ́AString̔r
-         * == łĂ邽itemȂꍇB
-         * ̂ super.__finditem__(key) łȂOŎB
-         */
-        PyList keys = keys();
-        PyList values = values();
-        for (int i = 0; i < keys.size(); i++) {
-            String keystr = (String) keys.get(i);
-            if (keystr != null && !keystr.equals(DELETED_KEY) && keystr.equals(key)) {
-                return values.pyget(i);
-            }
-        }
-        if (container.hasComponentDef(key)) {
-            PyContainerWrapper wrapper = new PyContainerWrapper(container);
-            __setitem__(key, wrapper);
-            return wrapper.__finditem__(key);
-        }
-        return null;
-    }
-
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.core.PyStringMap;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.InstanceDef;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.TooManyRegistrationComponentDef;
+import org.seasar.framework.container.impl.SimpleComponentDef;
+
+/**
+ * {@link PyStringMap}で扱う通常のキーと値のセットに加え、S2Containerで
+ * 管理するコンポーネントをアイテムとして提供するためのクラスです。
+ * <p>
+ * 名前の検索はロック無しのハッシュ検索です。コンポーネント名の解決結果は
+ * 索引に保持し、singletonのコンポーネントは初回に取得したものを、
+ * それ以外は{@link ComponentDef}から都度取得したものを返します。
+ * キーにもコンポーネントにも無い名前（組み込み関数の名前など）も索引に
+ * 記録し、以降はコンテナを検索しません。索引の参照はロックを取りません。
+ * 索引が古くなっていないかは、SAOメソッドの呼び出し毎に一度だけ
+ * {@link #validate()}で確かめます。
+ * 
+ * @author bowez
+ */
+public class PyContainerStringMap extends PyConcurrentStringMap {
+    private static final long serialVersionUID = -5515953169181260027L;
+    private static final Object NOT_COMPONENT = new Object();
+    private static final int MAX_BINDINGS = 1024;
+    
+    final S2Container container;
+    transient volatile ResolutionIndex index;
+    
+    public PyContainerStringMap(S2Container container) {
+        if (container == null) {
+            throw new IllegalArgumentException();
+        }
+        this.container = container;
+    }
+    
+    @Override
+    public PyObject __finditem__(String key) {
+        PyObject item = super.__finditem__(key);
+        if (item != null) {
+            return item;
+        }
+        Object binding = resolve(key);
+        if (binding == NOT_COMPONENT) {
+            return null;
+        }
+        return ((ComponentBinding) binding).getComponent();
+    }
+    
+    /**
+     * 索引がコンテナの現在の状態に対応しているかを確かめ、古ければ作り直します。
+     * {@link JythonScriptEngine}がSAOメソッドの呼び出しの開始時に呼びます。
+     * 確かめるのはComponentDefの数と最後のComponentDefの同一性だけで、
+     * ルートのコンテナのロックは高々二度しか取りません。
+     */
+    void validate() {
+        ResolutionIndex current = index;
+        if (current == null || !current.isCurrent(container)) {
+            index = new ResolutionIndex(container);
+        }
+    }
+    
+    ResolutionIndex getIndex() {
+        ResolutionIndex current = index;
+        if (current == null) {
+            current = new ResolutionIndex(container);
+            index = current;
+        }
+        return current;
+    }
+    
+    Object resolve(String key) {
+        ResolutionIndex current = getIndex();
+        Object binding = current.bindings.get(key);
+        if (binding == null) {
+            // コンテナを検索するついでに、索引の古さも確かめます。
+            if (!current.isCurrent(container)) {
+                validate();
+                current = getIndex();
+            }
+            binding = createBinding(key);
+            if (current.bindings.size() < MAX_BINDINGS) {
+                current.bindings.putIfAbsent(key, binding);
+            }
+        }
+        return binding;
+    }
+    
+    Object createBinding(String key) {
+        if (!container.hasComponentDef(key)) {
+            return NOT_COMPONENT;
+        }
+        ComponentDef def = container.getComponentDef(key);
+        if (def instanceof SimpleComponentDef) {
+            // 登録済みのインスタンス（子のS2Containerなど）はInstanceDefを持たない。
+            return new ComponentBinding(def, toPyObject(def.getComponent()));
+        }
+        if (!(def instanceof TooManyRegistrationComponentDef)) {
+            InstanceDef instanceDef = def.getInstanceDef();
+            if (instanceDef != null
+                    && InstanceDef.SINGLETON_NAME.equals(instanceDef.getName())) {
+                return new ComponentBinding(def, toPyObject(def.getComponent()));
+            }
+        }
+        return new ComponentBinding(def, null);
+    }
+    
+    static PyObject toPyObject(Object component) {
+        if (component instanceof S2Container) {
+            return new PyContainerWrapper((S2Container) component);
+        }
+        return Py.java2py(component);
+    }
+    
+    /**
+     * 作成時のComponentDefの数と最後のComponentDefをスタンプとする、
+     * 名前解決の索引です。S2Containerへの登録は末尾への追加なので、
+     * 削除の後に追加すれば最後のComponentDefが変わります。
+     */
+    static class ResolutionIndex {
+        final int size;
+        final ComponentDef last;
+        final ConcurrentMap<String, Object> bindings =
+            new ConcurrentHashMap<String, Object>();
+        
+        ResolutionIndex(S2Container container) {
+            size = container.getComponentDefSize();
+            last = getLast(container, size);
+        }
+        
+        static ComponentDef getLast(S2Container container, int size) {
+            return 0 < size ? container.getComponentDef(size - 1) : null;
+        }
+        
+        boolean isCurrent(S2Container container) {
+            int current = container.getComponentDefSize();
+            return current == size && getLast(container, current) == last;
+        }
+    }
+    
+    /**
+     * コンポーネントとして解決済みの名前です。
+     */
+    static class ComponentBinding {
+        final ComponentDef def;
+        final PyObject component;
+        
+        ComponentBinding(ComponentDef def, PyObject component) {
+            this.def = def;
+            this.component = component;
+        }
+        
+        PyObject getComponent() {
+            if (component != null) {
+                return component;
+            }
+            return toPyObject(def.getComponent());
+        }
+    }
+
+}
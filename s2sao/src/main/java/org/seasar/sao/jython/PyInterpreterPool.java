@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.core.PySystemState;
+
+/**
+ * SAOの呼び出し毎に貸し出すインタプリタのプールです。インタプリタは
+ * それぞれ自分の{@link PySystemState}と、SAOスクリプト毎のモジュールを
+ * 持ちます。コンパイル済みのPyCodeと、インポート済みのモジュール
+ * （sys.modules）は全てのインタプリタで共有します。
+ * 
+ * @author bowez
+ */
+class PyInterpreterPool {
+    final JythonScriptEngine engine;
+    final BlockingQueue<Interpreter> idle;
+    final ThreadLocal<Interpreter> current = new ThreadLocal<Interpreter>();
+    
+    PyInterpreterPool(JythonScriptEngine engine, int size) {
+        if (engine == null || size < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.engine = engine;
+        idle = new ArrayBlockingQueue<Interpreter>(size);
+        PySystemState shared = engine.getSystemState();
+        for (int i = 0; i < size; i++) {
+            PySystemState state = new PySystemState();
+            state.modules = shared.modules;
+            idle.add(new Interpreter(state));
+        }
+    }
+    
+    /**
+     * インタプリタを借ります。呼び出し中のスレッドが既に借りていれば、
+     * 入れ子の呼び出しとして同じインタプリタを返します。
+     */
+    Interpreter checkout() throws InterruptedException {
+        Interpreter interpreter = current.get();
+        if (interpreter != null) {
+            interpreter.depth++;
+            return interpreter;
+        }
+        interpreter = idle.take();
+        interpreter.depth = 1;
+        interpreter.previous = Py.setSystemState(interpreter.systemState);
+        current.set(interpreter);
+        return interpreter;
+    }
+    
+    void checkin(Interpreter interpreter) {
+        if (--interpreter.depth > 0) {
+            return;
+        }
+        current.remove();
+        Py.setSystemState(interpreter.previous);
+        interpreter.previous = null;
+        idle.add(interpreter);
+    }
+    
+    /**
+     * 空いているインタプリタ全てに、SAOスクリプトのモジュールを
+     * 読み込んでおきます。貸し出し中のインタプリタには、次に借りられた時に
+     * 読み込みます。
+     */
+    void prewarm(PooledModule module) {
+        int size = idle.size();
+        for (int i = 0; i < size; i++) {
+            Interpreter interpreter = idle.poll();
+            if (interpreter == null) {
+                break;
+            }
+            PySystemState previous = Py.setSystemState(interpreter.systemState);
+            try {
+                interpreter.getModule(module);
+            }
+            finally {
+                Py.setSystemState(previous);
+                idle.add(interpreter);
+            }
+        }
+    }
+    
+    int getIdleCount() {
+        return idle.size();
+    }
+    
+    /**
+     * プールのインタプリタです。借りているスレッドだけが使います。
+     */
+    class Interpreter {
+        final PySystemState systemState;
+        final Map<PooledModule, LoadedModule> modules =
+            Collections.synchronizedMap(new WeakHashMap<PooledModule, LoadedModule>());
+        int depth;
+        PySystemState previous;
+        
+        Interpreter(PySystemState systemState) {
+            this.systemState = systemState;
+        }
+        
+        /**
+         * SAOスクリプトのモジュールを取得します。未読み込みなら読み込みます。
+         * 再コンパイルされたスクリプトは別の{@link PooledModule}となるため、
+         * 読み込み直されます。使われなくなったPooledModuleのモジュールは
+         * GCで破棄されます。
+         */
+        PyObject getModule(PooledModule module) {
+            LoadedModule loaded = modules.get(module);
+            if (loaded == null) {
+                PyObject dict = engine.createModule(module.path);
+                Py.runCode(module.code, dict, dict);
+                loaded = new LoadedModule(dict);
+                modules.put(module, loaded);
+            }
+            return loaded.dict;
+        }
+    }
+    
+    static class LoadedModule {
+        final PyObject dict;
+        
+        LoadedModule(PyObject dict) {
+            this.dict = dict;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import org.python.core.PyObject;
+
+/**
+ * SAOスクリプト毎のモジュールの名前空間です。自身に無い名前は、
+ * {@link JythonScriptEngine}に渡された共有の辞書（S2Containerで管理する
+ * コンポーネントなど）から探します。
+ * 
+ * @author bowez
+ */
+class PyModuleStringMap extends PyConcurrentStringMap {
+    private static final long serialVersionUID = 4410829535310562466L;
+    
+    final PyObject parent;
+    
+    PyModuleStringMap(PyObject parent) {
+        this.parent = parent;
+    }
+    
+    @Override
+    public PyObject __finditem__(String key) {
+        PyObject item = super.__finditem__(key);
+        if (item == null && parent != null) {
+            item = parent.__finditem__(key);
+        }
+        return item;
+    }
+
+}
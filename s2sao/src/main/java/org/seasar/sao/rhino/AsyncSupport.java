@@ -0,0 +1,398 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+import org.mozilla.javascript.WrappedException;
+import org.mozilla.javascript.continuations.Continuation;
+import org.seasar.sao.ScriptFuture;
+
+/**
+ * 継続（Continuation）によるスクリプトメソッドの中断と再開。
+ * スクリプトはsuspend(future)で未完了のFutureを待つ時点の継続を取り、
+ * 呼び出し元のスレッドを手放す。Futureの完了後、再開用のスレッドで
+ * 継続を呼び、スクリプトメソッドの続きを実行する。
+ * 継続はRhinoのインタプリタモードでのみ取れ、スクリプトからJavaを経由せずに
+ * 呼ばれた関数の連鎖だけが再開の対象となる。
+ * ScriptFuture以外のFutureは一定間隔で完了を確認するが、確認用のスレッドは
+ * 待っているFutureがある間だけ動かす。shutdownの後は再開せず、中断中の
+ * スクリプトメソッドの結果は取り消す。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+class AsyncSupport {
+
+	private static final String HELPER_NAME = "sao-async";
+
+	private static final String HELPER_SOURCE =
+		"function _saoSuspendCapture(future) {\n"
+		+ "  return _saoSuspend(new Continuation(), future);\n"
+		+ "}\n"
+		+ "function suspend(future) {\n"
+		+ "  return _saoResume(_saoSuspendCapture(future));\n"
+		+ "}\n";
+
+	private final RhinoScriptEngine _engine;
+	private final ExecutorService _resumeExecutor;
+	private final long _pollInterval;
+	private final Queue<Suspension> _polling =
+		new ConcurrentLinkedQueue<Suspension>();
+	// 以下の二つは_pollingで同期する。
+	private ScheduledExecutorService _poller;
+	private boolean _shutdown;
+	private volatile Script _helper;
+
+	AsyncSupport(RhinoScriptEngine engine, int threads, long pollInterval) {
+		if(engine == null || threads < 1 || pollInterval < 1) {
+			throw new IllegalArgumentException();
+		}
+		_engine = engine;
+		_resumeExecutor = Executors.newFixedThreadPool(
+				threads, new DaemonThreadFactory("RhinoScriptEngine-resume"));
+		_pollInterval = pollInterval;
+	}
+
+	/**
+	 * SAOスクリプトのグローバルスコープにsuspend関数を定義する。
+	 * @param cx 現在のContext。インタプリタモードであること。
+	 * @param global スクリプト実行前のグローバルスコープ。
+	 */
+	void install(Context cx, ScriptableObject global) {
+		Script helper = _helper;
+		if(helper == null) {
+			helper = cx.compileString(HELPER_SOURCE, HELPER_NAME, 1, null);
+			_helper = helper;
+		}
+		int attributes = ScriptableObject.DONTENUM
+				| ScriptableObject.READONLY | ScriptableObject.PERMANENT;
+		global.defineProperty("_saoSuspend",
+				initFunction(new SuspendFunction(), global), attributes);
+		global.defineProperty("_saoResume",
+				initFunction(new ResumeFunction(), global), attributes);
+		helper.exec(cx, global);
+	}
+
+	private static BaseFunction initFunction(
+			BaseFunction function, Scriptable scope) {
+		ScriptRuntime.setFunctionProtoAndParent(function, scope);
+		return function;
+	}
+
+	/**
+	 * 中断したスクリプトメソッドを、Futureの完了後に別スレッドで再開する。
+	 * @param signal スクリプトメソッドの中断。
+	 * @param scope 中断したスクリプトメソッドを呼んだスコープ。
+	 * @param result スクリプトメソッドの結果を受け取るFuture。
+	 * @return result。
+	 */
+	ScriptFuture suspend(SuspendSignal signal, Scriptable scope,
+			ScriptFuture result) {
+		schedule(new Suspension(signal, scope, result));
+		return result;
+	}
+
+	/**
+	 * 中断したスクリプトメソッドを、Futureの完了を待って現在のスレッドで
+	 * 再開する。再び中断すれば、それも待つ。
+	 * @param cx 現在のContext。
+	 * @param signal スクリプトメソッドの中断。
+	 * @param scope 中断したスクリプトメソッドを呼んだスコープ。
+	 * @return スクリプトメソッドの戻り値。
+	 * @throws InterruptedException 待機中に割り込まれた場合。
+	 */
+	Object await(Context cx, SuspendSignal signal, Scriptable scope)
+			throws InterruptedException {
+		for(;;) {
+			AsyncResult result = AsyncResult.await(signal.getFuture());
+			try {
+				return signal.getContinuation().call(
+						cx, scope, scope, new Object[] { result });
+			} catch(SuspendSignal next) {
+				signal = next;
+			}
+		}
+	}
+
+	private void schedule(final Suspension suspension) {
+		Future<?> future = suspension._signal.getFuture();
+		if(future instanceof ScriptFuture) {
+			((ScriptFuture) future).addListener(new Runnable() {
+				public void run() {
+					resume(suspension);
+				}
+			});
+			return;
+		}
+		synchronized(_polling) {
+			if(_shutdown) {
+				suspension._result.cancel(false);
+				return;
+			}
+			_polling.add(suspension);
+			if(_poller == null) {
+				_poller = Executors.newSingleThreadScheduledExecutor(
+						new DaemonThreadFactory("RhinoScriptEngine-poller"));
+				_poller.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						poll();
+					}
+				}, _pollInterval, _pollInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void resume(Suspension suspension) {
+		try {
+			_resumeExecutor.execute(suspension);
+		} catch(RejectedExecutionException e) {
+			// shutdown済み
+			suspension._result.cancel(false);
+		}
+	}
+
+	private void poll() {
+		for(Iterator<Suspension> it = _polling.iterator(); it.hasNext();) {
+			Suspension suspension = it.next();
+			if(suspension._signal.getFuture().isDone()) {
+				it.remove();
+				resume(suspension);
+			}
+		}
+		synchronized(_polling) {
+			// 待つものが無くなれば確認用のスレッドを止め、次の中断で作り直す。
+			if(_polling.isEmpty() && _poller != null) {
+				_poller.shutdown();
+				_poller = null;
+			}
+		}
+	}
+
+	/**
+	 * 待っているFutureの完了を確認中かどうか。
+	 * @return 確認用のスレッドが動いていればtrue。
+	 */
+	boolean isPolling() {
+		synchronized(_polling) {
+			return _poller != null;
+		}
+	}
+
+	/**
+	 * 再開用と確認用のスレッドを止める。中断中のスクリプトメソッドの結果は
+	 * 取り消す。
+	 */
+	void shutdown() {
+		synchronized(_polling) {
+			_shutdown = true;
+			if(_poller != null) {
+				_poller.shutdownNow();
+				_poller = null;
+			}
+			for(Suspension suspension : _polling) {
+				suspension._result.cancel(false);
+			}
+			_polling.clear();
+		}
+		_resumeExecutor.shutdown();
+	}
+
+	boolean isShutdown() {
+		return _resumeExecutor.isShutdown();
+	}
+
+	private class Suspension implements Runnable {
+
+		private final SuspendSignal _signal;
+		private final Scriptable _scope;
+		private final ScriptFuture _result;
+
+		Suspension(SuspendSignal signal, Scriptable scope,
+				ScriptFuture result) {
+			_signal = signal;
+			_scope = scope;
+			_result = result;
+		}
+
+		public void run() {
+			if(_result.isCancelled()) {
+				return;
+			}
+			Context cx = _engine.enter();
+			try {
+				AsyncResult awaited = AsyncResult.await(_signal.getFuture());
+				Object jsRet = _signal.getContinuation().call(
+						cx, _scope, _scope, new Object[] { awaited });
+				_result.complete(_engine.convertResult(
+						cx, Object.class, RhinoFunction.RESULT_CONVERT, jsRet));
+			} catch(SuspendSignal next) {
+				schedule(new Suspension(next, _scope, _result));
+			} catch(WrappedException e) {
+				_result.fail(e.getWrappedException());
+			} catch(Throwable t) {
+				_result.fail(t);
+			} finally {
+				Context.exit();
+			}
+		}
+
+	}
+
+	/**
+	 * 未完了のFutureでスクリプトメソッドを中断するために投げる。
+	 * Errorのサブクラスとすることで、スクリプトのcatchやfinallyを実行させずに
+	 * インタプリタのフレームを抜ける。finallyは再開後、本来の順で実行される。
+	 */
+	static class SuspendSignal extends Error {
+
+		private static final long serialVersionUID = 4172920113706838613L;
+
+		private final transient Continuation _continuation;
+		private final transient Future<?> _future;
+
+		SuspendSignal(Continuation continuation, Future<?> future) {
+			super("suspended");
+			_continuation = continuation;
+			_future = future;
+		}
+
+		Continuation getContinuation() {
+			return _continuation;
+		}
+
+		Future<?> getFuture() {
+			return _future;
+		}
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+
+	}
+
+	/**
+	 * 完了したFutureの結果。継続の戻り値としてスクリプトへ渡し、
+	 * _saoResumeが取り出す。
+	 */
+	static class AsyncResult {
+
+		private final Object _value;
+		private final Throwable _error;
+
+		AsyncResult(Object value, Throwable error) {
+			_value = value;
+			_error = error;
+		}
+
+		static AsyncResult await(Future<?> future)
+				throws InterruptedException {
+			try {
+				return new AsyncResult(future.get(), null);
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				return new AsyncResult(null, cause != null ? cause : e);
+			} catch(RuntimeException e) {
+				// CancellationExceptionなど
+				return new AsyncResult(null, e);
+			}
+		}
+
+		Object getValue(Scriptable scope) {
+			if(_error != null) {
+				throw new WrappedException(_error);
+			}
+			return Context.javaToJS(_value, scope);
+		}
+
+	}
+
+	private static class SuspendFunction extends BaseFunction {
+
+		private static final long serialVersionUID = -1957361512931618447L;
+
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+				Object[] args) {
+			if(args.length < 1 || !(args[0] instanceof Continuation)) {
+				throw Context.reportRuntimeError("suspend: no continuation");
+			}
+			Object target = args.length > 1 ? args[1] : Undefined.instance;
+			if(target instanceof Wrapper) {
+				target = ((Wrapper) target).unwrap();
+			}
+			if(target instanceof Future) {
+				Future<?> future = (Future<?>) target;
+				if(future.isDone() == false) {
+					throw new SuspendSignal((Continuation) args[0], future);
+				}
+				try {
+					return AsyncResult.await(future);
+				} catch(InterruptedException e) {
+					throw new WrappedException(e);
+				}
+			}
+			return new AsyncResult(target, null);
+		}
+
+	}
+
+	private static class ResumeFunction extends BaseFunction {
+
+		private static final long serialVersionUID = 2204811604335958497L;
+
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+				Object[] args) {
+			if(args.length < 1 || !(args[0] instanceof AsyncResult)) {
+				throw Context.reportRuntimeError("suspend: no result");
+			}
+			return ((AsyncResult) args[0]).getValue(scope);
+		}
+
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String _name;
+
+		DaemonThreadFactory(String name) {
+			_name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, _name);
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.nio.ByteBuffer;
+
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * ByteBuffer型はこのクラスでラップして、JavaScriptのインデックスアクセスで
+ * バッファの内容を直接読み書きできるようにする。インデックスはpositionに
+ * よらず0からlimitまでの絶対位置で、lengthはlimitを返す。ダイレクトバッファや
+ * メモリマップされたバッファもコピーせずに扱う。
+ * @author Masataka Kurihara (Gluegent, Inc.)
+ */
+public class NativeByteBuffer extends NativeJavaObject {
+
+    private static final long serialVersionUID = -6404290939307716475L;
+    private ByteBuffer _buffer;
+
+    public NativeByteBuffer(Scriptable scope, ByteBuffer buffer) {
+        super(scope, buffer, ByteBuffer.class);
+        if (buffer == null) {
+            throw new IllegalArgumentException();
+        }
+        _buffer = buffer;
+    }
+
+    public boolean has(String name, Scriptable start) {
+        return "length".equals(name) || super.has(name, start);
+    }
+
+    public Object get(String name, Scriptable start) {
+        if ("length".equals(name)) {
+            return Integer.valueOf(_buffer.limit());
+        }
+        return super.get(name, start);
+    }
+
+    public boolean has(int index, Scriptable start) {
+        return 0 <= index && index < _buffer.limit();
+    }
+
+    public Object get(int index, Scriptable start) {
+        if (0 <= index && index < _buffer.limit()) {
+            return Byte.valueOf(_buffer.get(index));
+        }
+        return Undefined.instance;
+    }
+
+    public void put(int index, Scriptable start, Object value) {
+        if (0 <= index && index < _buffer.limit()) {
+            byte b;
+            if (value instanceof Number) {
+                b = ((Number) value).byteValue();
+            } else {
+                b = (byte) ScriptRuntime.toInt32(value);
+            }
+            _buffer.put(index, b);
+        }
+    }
+
+    public String getClassName() {
+        return "javaByteBuffer";
+    }
+
+}
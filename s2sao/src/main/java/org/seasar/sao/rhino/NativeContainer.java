@@ -1,85 +1,236 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.rhino;
-
-import org.mozilla.javascript.NativeJavaObject;
-import org.mozilla.javascript.Scriptable;
-import org.seasar.framework.container.ComponentDef;
-import org.seasar.framework.container.S2Container;
-
-/**
- * S2Container̃NXŃbvāAJavaScriptɒIȁA
- * s2Container.R|[lg ŃANZXł悤ɂB
- * @author Masataka Kurihara (Gluegent,Inc.)
- */
-public class NativeContainer extends NativeJavaObject {
-
-	private static final long serialVersionUID = -8347548063811887938L;
-	private S2Container _container;
-	
-	public NativeContainer(S2Container container) {
-		if(container == null) {
-			throw new IllegalArgumentException();
-		}
-		_container = container;
-	}
-	
-	protected S2Container getContainer() {
-		if(_container == null) {
-			throw new IllegalStateException();
-		}
-		return _container;
-	}
-
-    public boolean has(String name, Scriptable start) {
-        if (getContainer().hasComponentDef(name)) {
-            return true;
-        }
-        return super.has(name, start);
-    }
-
-    public Object get(String name, Scriptable start) {
-    	S2Container container = getContainer();
-        if (container.hasComponentDef(name)) {
-            return container.getComponent(name);
-        }
-        return super.get(name, start);
-    }
-    
-    public Object[] getIds() {
-    		int listSize = _container.getComponentDefSize();
-    		Object[] ids = super.getIds();
-    		Object[] ret = new Object[listSize + ids.length];
-    		for (int i = 0; i < listSize; i++) {
-    			ComponentDef def = _container.getComponentDef(i); 
-    			String name = def.getComponentName();
-    			if(name != null && name.length() > 0) {
-    				ret[i] = name;
-    			} else {
-    				ret[i] = def.getComponentClass().getName();
-    			}
-    		}
-    		for (int i = 0; i < ids.length; i++) {
-    			ret[i + listSize] = ids[i];
-    		}
-    		return ret;
-    }
-
-    public String getClassName() {
-        return "s2Container";
-    }
-
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.InstanceDef;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.TooManyRegistrationComponentDef;
+import org.seasar.framework.container.impl.SimpleComponentDef;
+
+/**
+ * S2Containerをこのクラスでラップして、JavaScript風に直感的な、
+ * s2Container.コンポーネント名 でアクセスできるようにする。
+ * 名前の解決結果はコンテナ毎の索引に保持する。singletonのコンポーネントは
+ * 初回に取得したインスタンスを束縛し、それ以外のインスタンス定義では
+ * ComponentDefを保持して毎回取得する。コンポーネントでない名前も記録し、
+ * 以降はコンテナを検索しない。索引の参照はロックを取らない。
+ * 索引が古くなっていないかは、スクリプトメソッドの呼び出し毎に一度だけ
+ * validate()で確かめる。S2ContainerのComponentDefの参照は
+ * ルートのコンテナでロックを取るため、名前の参照毎には確かめない。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class NativeContainer extends NativeJavaObject {
+
+	private static final long serialVersionUID = -8347548063811887938L;
+	private static final Object NOT_COMPONENT = new Object();
+	private static final int MAX_BINDINGS = 1024;
+	private S2Container _container;
+	private transient volatile ResolutionIndex _index;
+	
+	public NativeContainer(S2Container container) {
+		if(container == null) {
+			throw new IllegalArgumentException();
+		}
+		_container = container;
+	}
+	
+	protected S2Container getContainer() {
+		if(_container == null) {
+			throw new IllegalStateException();
+		}
+		return _container;
+	}
+
+	/**
+	 * 索引がコンテナの現在の状態に対応しているかを確かめ、古ければ
+	 * 作り直す。スクリプトメソッドの呼び出しの開始時に呼ぶ。
+	 * 確かめるのはComponentDefの数と最後のComponentDefの同一性だけで、
+	 * コンテナのロックは高々二度しか取らない。S2Containerへの登録は
+	 * 末尾への追加なので、削除の後に追加すれば最後のComponentDefが変わる。
+	 */
+	void validate() {
+		S2Container container = getContainer();
+		ResolutionIndex index = _index;
+		if(index == null || index.isCurrent(container) == false) {
+			_index = new ResolutionIndex(container);
+		}
+	}
+
+	private ResolutionIndex getIndex() {
+		ResolutionIndex index = _index;
+		if(index == null) {
+			index = new ResolutionIndex(getContainer());
+			_index = index;
+		}
+		return index;
+	}
+
+	/**
+	 * 名前をコンポーネントとして解決する。索引に無い名前は、コンテナを
+	 * 検索するついでに索引の古さも確かめる。
+	 * @param name コンポーネント名。
+	 * @return 解決結果。コンポーネントでなければNOT_COMPONENT。
+	 */
+	private Object resolve(String name) {
+		ResolutionIndex index = getIndex();
+		Object binding = index._bindings.get(name);
+		if(binding == null) {
+			if(index.isCurrent(getContainer()) == false) {
+				validate();
+				index = getIndex();
+			}
+			binding = createBinding(name);
+			if(index._bindings.size() < MAX_BINDINGS) {
+				index._bindings.putIfAbsent(name, binding);
+			}
+		}
+		return binding;
+	}
+
+	private Object createBinding(String name) {
+		S2Container container = getContainer();
+		if(container.hasComponentDef(name) == false) {
+			return NOT_COMPONENT;
+		}
+		ComponentDef def = container.getComponentDef(name);
+		if(def instanceof SimpleComponentDef) {
+			// 登録済みのインスタンスはInstanceDefを持たない。
+			return new ComponentBinding(def, def.getComponent());
+		}
+		if(def instanceof TooManyRegistrationComponentDef == false) {
+			InstanceDef instanceDef = def.getInstanceDef();
+			if(instanceDef != null && InstanceDef.SINGLETON_NAME.equals(
+					instanceDef.getName())) {
+				return new ComponentBinding(def, def.getComponent());
+			}
+		}
+		return new ComponentBinding(def, null);
+	}
+
+    public boolean has(String name, Scriptable start) {
+        if (resolve(name) != NOT_COMPONENT) {
+            return true;
+        }
+        if (members == null) {
+            return false;
+        }
+        return super.has(name, start);
+    }
+
+    public Object get(String name, Scriptable start) {
+        Object binding = resolve(name);
+        if (binding != NOT_COMPONENT) {
+            return ((ComponentBinding) binding).getComponent();
+        }
+        if (members == null) {
+            // コンポーネントでなければ、プロトタイプの標準オブジェクトなどを探させる。
+            return NOT_FOUND;
+        }
+        return super.get(name, start);
+    }
+    
+    public Object[] getIds() {
+    		validate();
+    		ResolutionIndex index = getIndex();
+    		Object[] ret = index._ids;
+    		if(ret == null) {
+    			ret = createIds(index._size);
+    			index._ids = ret;
+    		}
+    		// 呼び出し側が書き換えても索引が壊れないように複製を返す。
+    		return ret.clone();
+    }
+
+    private Object[] createIds(int listSize) {
+    		Object[] ids = members != null ? super.getIds() : new Object[0];
+    		Object[] ret = new Object[listSize + ids.length];
+    		for (int i = 0; i < listSize; i++) {
+    			ComponentDef def = _container.getComponentDef(i); 
+    			String name = def.getComponentName();
+    			if(name != null && name.length() > 0) {
+    				ret[i] = name;
+    			} else {
+    				ret[i] = def.getComponentClass().getName();
+    			}
+    		}
+    		for (int i = 0; i < ids.length; i++) {
+    			ret[i + listSize] = ids[i];
+    		}
+    		return ret;
+    }
+
+    public String getClassName() {
+        return "s2Container";
+    }
+
+    /**
+     * 作成時のComponentDefの数と最後のComponentDefをスタンプとする、
+     * 名前解決の索引。
+     */
+    private static final class ResolutionIndex {
+
+    	final int _size;
+    	final ComponentDef _last;
+    	final ConcurrentMap<String, Object> _bindings =
+    		new ConcurrentHashMap<String, Object>();
+    	volatile Object[] _ids;
+
+    	ResolutionIndex(S2Container container) {
+    		_size = container.getComponentDefSize();
+    		_last = getLast(container, _size);
+    	}
+
+    	private static ComponentDef getLast(S2Container container, int size) {
+    		return size > 0 ? container.getComponentDef(size - 1) : null;
+    	}
+
+    	boolean isCurrent(S2Container container) {
+    		int size = container.getComponentDefSize();
+    		return size == _size && getLast(container, size) == _last;
+    	}
+
+    }
+
+    /**
+     * コンポーネントとして解決済みの名前。singletonであれば取得済みの
+     * インスタンスを、そうでなければComponentDefから都度取得したものを返す。
+     */
+    private static final class ComponentBinding {
+
+    	private final ComponentDef _def;
+    	private final Object _component;
+
+    	ComponentBinding(ComponentDef def, Object component) {
+    		_def = def;
+    		_component = component;
+    	}
+
+    	Object getComponent() {
+    		if(_component != null) {
+    			return _component;
+    		}
+    		return _def.getComponent();
+    	}
+
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Iterable、Iteratorおよびjava.util.stream.BaseStreamはこのクラスでラップして、
+ * 全体をListへコピーせずに逐次アクセスできるようにする。
+ * インデックスアクセスは内部のカーソルを前方へ進めて要素を取り出し、
+ * Iterableであれば後方へのアクセスでカーソルを作り直す。Iteratorと
+ * BaseStreamは一度しか走査できないため、後方へはアクセスできない。
+ * forEach(function(item, index){...})は要素を一つずつ関数に渡す。
+ * Collectionの場合はlengthが使え、for in / for each文で要素を逐次取り出せる
+ * （Rhinoの列挙はgetIdsで全インデックスを先に求めるが、要素自体は
+ * 列挙の進行に合わせて取り出す）。
+ * @author Masataka Kurihara (Gluegent, Inc.)
+ */
+public class NativeIterator extends NativeJavaObject {
+
+    private static final long serialVersionUID = 8195213475262547416L;
+    private static final Class<?> BASE_STREAM;
+    private static final Method STREAM_ITERATOR;
+
+    static {
+        Class<?> baseStream = null;
+        Method iterator = null;
+        try {
+            // J2SE 5.0で動作させるため、Streamはリフレクションで扱う。
+            baseStream = Class.forName("java.util.stream.BaseStream");
+            iterator = baseStream.getMethod("iterator");
+        } catch (Exception e) {
+            baseStream = null;
+        }
+        BASE_STREAM = baseStream;
+        STREAM_ITERATOR = iterator;
+    }
+
+    private Iterable<?> _source;
+    private boolean _reusable;
+    private transient Iterator<?> _iterator;
+    private transient int _position = -1;
+    private transient Object _current;
+
+    public NativeIterator(Scriptable scope, Iterable<?> iterable) {
+        this(scope, iterable, Iterable.class, iterable, true);
+    }
+
+    public NativeIterator(Scriptable scope, Iterator<?> iterator) {
+        this(scope, iterator, Iterator.class, null, false);
+        _iterator = iterator;
+    }
+
+    private NativeIterator(Scriptable scope, Object javaObject,
+            Class<?> staticType, Iterable<?> source, boolean reusable) {
+        super(scope, javaObject, staticType);
+        if (javaObject == null) {
+            throw new IllegalArgumentException();
+        }
+        _source = source;
+        _reusable = reusable;
+    }
+
+    /**
+     * @param javaObject テスト対象のオブジェクト。
+     * @return java.util.stream.BaseStreamならtrue。
+     */
+    public static boolean isStream(Object javaObject) {
+        return BASE_STREAM != null && BASE_STREAM.isInstance(javaObject);
+    }
+
+    /**
+     * java.util.stream.BaseStreamをラップする。ストリームのiterator()は
+     * 最初に要素へアクセスした時点で呼び出すため、それまではストリームの
+     * 中間操作をスクリプトから続けられる。
+     * @param scope スコープ。
+     * @param stream ラップするストリーム。
+     * @return ラップしたストリーム。
+     */
+    public static NativeIterator wrapStream(Scriptable scope,
+            final Object stream) {
+        if (isStream(stream) == false) {
+            throw new IllegalArgumentException();
+        }
+        Iterable<Object> source = new Iterable<Object>() {
+            @SuppressWarnings("unchecked")
+            public Iterator<Object> iterator() {
+                try {
+                    return (Iterator<Object>) STREAM_ITERATOR.invoke(stream);
+                } catch (InvocationTargetException e) {
+                    throw Context.throwAsScriptRuntimeEx(e.getCause());
+                } catch (IllegalAccessException e) {
+                    throw Context.throwAsScriptRuntimeEx(e);
+                }
+            }
+        };
+        return new NativeIterator(scope, stream, BASE_STREAM, source, false);
+    }
+
+    /**
+     * カーソルを先頭の手前に戻す。
+     * @return 戻せたならtrue。
+     */
+    private boolean restart() {
+        if (_source == null || (_reusable == false && _iterator != null)) {
+            return false;
+        }
+        _iterator = _source.iterator();
+        _position = -1;
+        _current = null;
+        return true;
+    }
+
+    private boolean seek(int index) {
+        if (index < 0) {
+            return false;
+        }
+        if (_iterator == null || index < _position) {
+            if (restart() == false) {
+                return false;
+            }
+        }
+        while (_position < index) {
+            if (_iterator.hasNext() == false) {
+                return false;
+            }
+            _current = _iterator.next();
+            _position++;
+        }
+        return true;
+    }
+
+    public boolean has(int index, Scriptable start) {
+        return seek(index);
+    }
+
+    public Object get(int index, Scriptable start) {
+        if (seek(index)) {
+            return _current;
+        }
+        return Undefined.instance;
+    }
+
+    public boolean has(String name, Scriptable start) {
+        if ("forEach".equals(name)
+                || ("length".equals(name) && javaObject instanceof Collection)) {
+            return true;
+        }
+        return super.has(name, start);
+    }
+
+    public Object get(String name, Scriptable start) {
+        if ("forEach".equals(name)) {
+            ForEachFunction forEach = new ForEachFunction();
+            ScriptRuntime.setFunctionProtoAndParent(forEach, getParentScope());
+            return forEach;
+        }
+        if ("length".equals(name) && javaObject instanceof Collection) {
+            return Integer.valueOf(((Collection<?>) javaObject).size());
+        }
+        return super.get(name, start);
+    }
+
+    public Object[] getIds() {
+        if (javaObject instanceof Collection == false) {
+            return super.getIds();
+        }
+        // 要素だけを列挙させるため、Javaのメンバ名は含めない。
+        int size = ((Collection<?>) javaObject).size();
+        Object[] ret = new Object[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = Integer.valueOf(i);
+        }
+        return ret;
+    }
+
+    public String getClassName() {
+        return "javaIterator";
+    }
+
+    /**
+     * 要素を先頭から（IteratorとBaseStreamの場合は現在位置から）一つずつ
+     * 関数に渡す。
+     */
+    private class ForEachFunction extends BaseFunction {
+
+        private static final long serialVersionUID = 1L;
+
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            if (args.length == 0 || args[0] instanceof Function == false) {
+                throw ScriptRuntime.notFunctionError(
+                        args.length == 0 ? Undefined.instance : args[0]);
+            }
+            Function fn = (Function) args[0];
+            if (restart() == false && _iterator == null) {
+                return Undefined.instance;
+            }
+            while (_iterator.hasNext()) {
+                _current = _iterator.next();
+                _position++;
+                fn.call(cx, scope, thisObj,
+                        new Object[] { _current, Integer.valueOf(_position) });
+            }
+            return Undefined.instance;
+        }
+
+        public String getFunctionName() {
+            return "forEach";
+        }
+
+        public int getArity() {
+            return 1;
+        }
+
+        public int getLength() {
+            return 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.lang.reflect.Array;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeJavaArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * プリミティブ型の配列はこのクラスでラップする。NativeJavaArrayは要素の
+ * 読み書き毎にリフレクションで型変換を行うため、要素型毎に配列へ直接
+ * アクセスするよう置き換える。要素の値はNativeJavaArrayと同じ型で返す
+ * （char型は文字コードの数値）。
+ * @author Masataka Kurihara (Gluegent, Inc.)
+ */
+public class NativePrimitiveArray extends NativeJavaArray {
+
+    private static final long serialVersionUID = 3064957180356216541L;
+    private static final int TYPE_BOOLEAN = 0;
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_CHAR = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_INT = 4;
+    private static final int TYPE_LONG = 5;
+    private static final int TYPE_FLOAT = 6;
+    private static final int TYPE_DOUBLE = 7;
+    private Object _array;
+    private Class<?> _componentType;
+    private int _type;
+    private int _length;
+
+    public NativePrimitiveArray(Scriptable scope, Object array) {
+        super(scope, array);
+        _componentType = array.getClass().getComponentType();
+        _type = getType(_componentType);
+        _array = array;
+        _length = Array.getLength(array);
+    }
+
+    /**
+     * @param array テスト対象のオブジェクト。
+     * @return プリミティブ型の配列ならtrue。
+     */
+    public static boolean isPrimitiveArray(Object array) {
+        if (array == null) {
+            return false;
+        }
+        Class<?> type = array.getClass().getComponentType();
+        return type != null && type.isPrimitive();
+    }
+
+    private static int getType(Class<?> componentType) {
+        if (componentType == Integer.TYPE) {
+            return TYPE_INT;
+        } else if (componentType == Double.TYPE) {
+            return TYPE_DOUBLE;
+        } else if (componentType == Byte.TYPE) {
+            return TYPE_BYTE;
+        } else if (componentType == Long.TYPE) {
+            return TYPE_LONG;
+        } else if (componentType == Float.TYPE) {
+            return TYPE_FLOAT;
+        } else if (componentType == Short.TYPE) {
+            return TYPE_SHORT;
+        } else if (componentType == Character.TYPE) {
+            return TYPE_CHAR;
+        } else if (componentType == Boolean.TYPE) {
+            return TYPE_BOOLEAN;
+        }
+        throw new IllegalArgumentException(String.valueOf(componentType));
+    }
+
+    public Object get(int index, Scriptable start) {
+        if (index < 0 || _length <= index) {
+            return Undefined.instance;
+        }
+        switch (_type) {
+        case TYPE_INT:
+            return Integer.valueOf(((int[]) _array)[index]);
+        case TYPE_DOUBLE:
+            return Double.valueOf(((double[]) _array)[index]);
+        case TYPE_BYTE:
+            return Byte.valueOf(((byte[]) _array)[index]);
+        case TYPE_LONG:
+            return Long.valueOf(((long[]) _array)[index]);
+        case TYPE_FLOAT:
+            return Float.valueOf(((float[]) _array)[index]);
+        case TYPE_SHORT:
+            return Short.valueOf(((short[]) _array)[index]);
+        case TYPE_CHAR:
+            return Integer.valueOf(((char[]) _array)[index]);
+        default:
+            return Boolean.valueOf(((boolean[]) _array)[index]);
+        }
+    }
+
+    public void put(int index, Scriptable start, Object value) {
+        if (index < 0 || _length <= index) {
+            super.put(index, start, value);
+            return;
+        }
+        if (_type == TYPE_BOOLEAN || !(value instanceof Number)) {
+            Array.set(_array, index,
+                    Context.jsToJava(value, _componentType));
+            return;
+        }
+        Number number = (Number) value;
+        switch (_type) {
+        case TYPE_INT:
+            ((int[]) _array)[index] = number.intValue();
+            break;
+        case TYPE_DOUBLE:
+            ((double[]) _array)[index] = number.doubleValue();
+            break;
+        case TYPE_BYTE:
+            ((byte[]) _array)[index] = number.byteValue();
+            break;
+        case TYPE_LONG:
+            ((long[]) _array)[index] = number.longValue();
+            break;
+        case TYPE_FLOAT:
+            ((float[]) _array)[index] = number.floatValue();
+            break;
+        case TYPE_SHORT:
+            ((short[]) _array)[index] = number.shortValue();
+            break;
+        default:
+            ((char[]) _array)[index] = (char) number.intValue();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.lang.ref.WeakReference;
+
+import org.mozilla.javascript.Function;
+
+/**
+ * RhinoScriptEngine#getFunctionで解決されたスクリプトメソッドのハンドル。
+ * JavaScript関数と、戻り値の変換方法を呼び出し毎に判定しないよう保持する。
+ * 段階的コンパイルが有効な場合は、最適化済みかどうかも保持する。呼び出し回数は
+ * 同じJavaScript関数を指す全てのハンドルで合算するため、SaoGlobalScopeが数える。
+ * 期待される型は、そのクラスローダを保持しないよう弱参照で保持する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+final class RhinoFunction {
+
+	/** 戻り値をnullとして扱う。 */
+	static final int RESULT_VOID = 0;
+	/** ECMA1.3対策として、Object型に変換する。 */
+	static final int RESULT_BOOLEAN = 1;
+	/** 期待される型に変換する。 */
+	static final int RESULT_CONVERT = 2;
+
+	private final String _name;
+	private final WeakReference<Class<?>> _expectedClass;
+	private final int _resultConversion;
+	private volatile Function _function;
+	private volatile boolean _promoted;
+
+	RhinoFunction(Function function, String name, Class<?> expectedClass) {
+		if(function == null || name == null || expectedClass == null) {
+			throw new IllegalArgumentException();
+		}
+		_function = function;
+		_name = name;
+		_expectedClass = new WeakReference<Class<?>>(expectedClass);
+		_resultConversion = getResultConversion(expectedClass);
+	}
+
+	static int getResultConversion(Class<?> expectedClass) {
+		if(expectedClass.equals(Boolean.TYPE)) {
+			return RESULT_BOOLEAN;
+		} else if(expectedClass == Void.class
+				|| expectedClass == void.class) {
+			return RESULT_VOID;
+		}
+		return RESULT_CONVERT;
+	}
+
+	Function getFunction() {
+		return _function;
+	}
+
+	/**
+	 * 最適化済みの関数に差し替える。以降は呼び出し回数を数えない。
+	 * 最適化できない場合は、元の関数を渡して以降の再コンパイルを止める。
+	 * @param function 最適化済みの関数。
+	 */
+	void promote(Function function) {
+		if(function == null) {
+			throw new IllegalArgumentException();
+		}
+		_function = function;
+		_promoted = true;
+	}
+
+	boolean isPromoted() {
+		return _promoted;
+	}
+
+	String getName() {
+		return _name;
+	}
+
+	Class<?> getExpectedClass() {
+		return _expectedClass.get();
+	}
+
+	int getResultConversion() {
+		return _resultConversion;
+	}
+
+}
@@ -1,203 +1,917 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.rhino;
-
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.lang.reflect.Method;
-
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
-import org.mozilla.javascript.JavaAdapter;
-import org.mozilla.javascript.Script;
-import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
-import org.mozilla.javascript.WrapFactory;
-import org.mozilla.javascript.WrappedException;
-import org.seasar.framework.container.S2Container;
-import org.seasar.sao.ScriptEngine;
-import org.seasar.sao.ScriptBinding;
-import org.seasar.sao.MethodBinding;
-
-/**
- * RhinoɂSAORg[̃GWB
- * @author Masataka Kurihara (Gluegent,Inc.)
- */
-public class RhinoScriptEngine implements ScriptEngine {
-
-	private static final long serialVersionUID = -5724340206095852305L;
-	private S2Container _container;
-    private WrapFactory _wrap;
-    private String _encoding;
-
-	public void setContainer(S2Container container) {
-		if(container == null) {
-			throw new IllegalArgumentException();
-		}
-		_container = container;
-	}
-	
-	protected S2Container getContainer() {
-		if(_container == null) {
-			throw new IllegalStateException();
-		}
-		return _container;
-	}
-
-	public void setEncoding(String encoding) {
-		if(encoding == null || encoding.length() == 0) {
-			throw new IllegalArgumentException();
-		}
-		_encoding = encoding;
-	}
-	
-    protected String getEncoding() {
-    	if(_encoding == null) {
-    		_encoding = System.getProperty("file.encoding", "UTF-8");
-    	}
-    	return _encoding;
-    }
-	
-    protected Context enter() {
-        if (_wrap == null) {
-        	_wrap  = new S2WrapFactory();
-        }
-        Context cx = Context.enter();
-        cx.setWrapFactory(_wrap);
-        return cx;
-    }
-
-    protected String getScriptFilePath(Class<?> sao) {
-		if(sao == null) {
-			throw new IllegalArgumentException();
-		}
-		if(sao.isAnnotationPresent(ScriptBinding.class)) {
-			ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
-			String value = binding.value();
-			if(value.length() > 0) {
-				return value;
-			}
-		}
-		String path = sao.getName();
-		path = path.replace('.', '/') + ".js";
-		return path;
-	}
-
-	protected String getScriptMethodName(Method method) {
-		if(method == null) {
-			throw new IllegalArgumentException();
-		}
-		if(method.isAnnotationPresent(MethodBinding.class)) {
-			MethodBinding binding = 
-				method.getAnnotation(MethodBinding.class);
-			String value = binding.value();
-			if(value.length() > 0) {
-				return value;
-			}
-		}
-		return method.getName();
-	}
-	
-	protected InputStream getScriptStream(String path) {
-		if(path == null || path.length() == 0) {
-			throw new IllegalArgumentException();
-		}
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-		return loader.getResourceAsStream(path);
-	}
-	
-	public Object compile(Class<?> sao) throws Exception {
-		String path = getScriptFilePath(sao);
-		InputStream stream = getScriptStream(path);
-		if(stream != null) {
-            Context cx = enter();
-	        try {
-	            Reader reader = new InputStreamReader(stream, getEncoding());
-	            Script script = cx.compileReader(reader, path, 1, null);
-				Scriptable prototype = new NativeContainer(getContainer());
-				ScriptableObject global = cx.initStandardObjects();
-				global.setPrototype(prototype);
-	    		script.exec(cx, global);
-				global.sealObject();
-				return global;
-	        } finally {
-	            Context.exit();
-	            stream.close();
-	        }
-		}
-		return null;
-	}
-	
-	protected Scriptable castForScriptabe(Object compiled) {
-		if(compiled == null || !(compiled instanceof Scriptable)) {
-			throw new IllegalArgumentException();
-		}
-		return Scriptable.class.cast(compiled);		
-	}
-	
-	protected Function getFunction(Object compiled, Method method) {
-		Scriptable global = castForScriptabe(compiled);		
-		String scriptMethodName = getScriptMethodName(method);
-		Object func = global.get(scriptMethodName, null);
-		if(func != null && func instanceof Function) {
-			return Function.class.cast(func);
-		}
-		return null;
-	}
-	
-	public boolean hasFunction(Object compiled, Method method) {
-		Scriptable global = castForScriptabe(compiled);		
-		String scriptMethodName = getScriptMethodName(method);
-		return global.has(scriptMethodName, null);
-	}
-
-    protected Object convertResult(
-    		Context cx, Class expectedClass, Object jsRet) {
-        Object ret = null;
-        if (expectedClass.equals(Boolean.TYPE)) {
-            // workaround to ECMA1.3
-            ret = JavaAdapter.convertResult(jsRet, Object.class);
-        } else if (expectedClass == Void.class
-                || expectedClass == void.class
-                || (jsRet instanceof org.mozilla.javascript.Undefined)) {
-            ret = null;
-        } else {
-            ret = JavaAdapter.convertResult(jsRet, expectedClass);
-        }
-        return ret;
-    }
-	
-	public Object invoke(Object compiled, Method method, Object[] args,
-			Class expectedClass) throws Throwable {
-        Context cx = enter();
-		try {
-			Function function = getFunction(compiled, method);
-			Scriptable global = castForScriptabe(compiled);		
-			Object[] jsArgs = new Object[args.length];
-            for (int i = 0; i < args.length; i++) {
-                jsArgs[i] = Context.javaToJS(args[i], global);
-            }
-			Object jsRet = function.call(cx, global, global, jsArgs);
-			return convertResult(cx, expectedClass, jsRet);
-        } catch (WrappedException e) {
-            throw e.getWrappedException();
-		} finally {
-			Context.exit();
-		}
-	}
-	
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.FunctionNode;
+import org.mozilla.javascript.JavaAdapter;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.WrappedException;
+import org.seasar.framework.container.S2Container;
+import org.seasar.sao.ClasspathScriptRepository;
+import org.seasar.sao.ExecutionBudget;
+import org.seasar.sao.ScriptEngine;
+import org.seasar.sao.ScriptBinding;
+import org.seasar.sao.ScriptFuture;
+import org.seasar.sao.ScriptRepository;
+import org.seasar.sao.ScriptSource;
+import org.seasar.sao.MethodBinding;
+
+/**
+ * RhinoによるSAOコントロールのエンジン。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class RhinoScriptEngine implements ScriptEngine {
+
+	/**
+	 * 全ての呼び出しで封印済みのグローバルスコープを共有する。トップレベル変数への
+	 * 代入はエラーとなる。
+	 */
+	public static final String CONCURRENCY_SHARED = "shared";
+
+	/**
+	 * スレッド毎に書き込み可能なスコープを用意する。トップレベル変数は
+	 * 同じスレッドの呼び出し間で引き継がれる。
+	 */
+	public static final String CONCURRENCY_THREAD = "thread";
+
+	/**
+	 * 呼び出し毎に書き込み可能なスコープを用意する。トップレベル変数は
+	 * 呼び出しが終わると破棄される。
+	 */
+	public static final String CONCURRENCY_INVOCATION = "invocation";
+
+	private static final long serialVersionUID = -5724340206095852305L;
+	public static final String scriptRepository_BINDING = "bindingType=none";
+	private S2Container _container;
+	private ScriptRepository _scriptRepository = new ClasspathScriptRepository();
+	private transient ScriptProfiler _profiler;
+    private transient volatile S2ContextFactory _contextFactory;
+    private String _encoding;
+    private int _optimizationLevel = 0;
+    private boolean _generatingDebug = true;
+    private boolean _generatingSource = true;
+    private int _tieringThreshold = 0;
+    private String _concurrencyMode = CONCURRENCY_SHARED;
+    private int _instructionObserverThreshold = 10000;
+    private boolean _asyncEnabled = false;
+    private int _asyncThreads = 2;
+    private long _asyncPollInterval = 10;
+    private transient volatile ExecutorService _tieringExecutor;
+    private transient volatile ScriptableObject _sharedScope;
+    private transient volatile ClassCache _classCache;
+    private transient volatile AsyncSupport _asyncSupport;
+
+	public void setContainer(S2Container container) {
+		if(container == null) {
+			throw new IllegalArgumentException();
+		}
+		_container = container;
+	}
+	
+	protected S2Container getContainer() {
+		if(_container == null) {
+			throw new IllegalStateException();
+		}
+		return _container;
+	}
+
+	/**
+	 * スクリプトの行単位のプロファイラの設定。SAO毎にenableProfilingで
+	 * 有効にする。
+	 * @param profiler プロファイラ。
+	 */
+	public void setProfiler(ScriptProfiler profiler) {
+		if(profiler == null) {
+			throw new IllegalArgumentException();
+		}
+		_profiler = profiler;
+	}
+
+	public ScriptProfiler getProfiler() {
+		if(_profiler == null) {
+			throw new IllegalStateException();
+		}
+		return _profiler;
+	}
+
+	/**
+	 * SAOのスクリプトファイルをプロファイラの記録の対象とする。
+	 * 記録されるのはインタプリタモードで実行されたスクリプトメソッドだけのため、
+	 * 最適化レベルを-1とするか、段階的コンパイルで再コンパイルされる前の
+	 * 呼び出しに限られる。
+	 * @param sao 処理対象SAOのクラス型。
+	 */
+	public void enableProfiling(Class<?> sao) {
+		getProfiler().enable(getScriptFilePath(sao));
+	}
+
+	public void disableProfiling(Class<?> sao) {
+		getProfiler().disable(getScriptFilePath(sao));
+	}
+
+	/**
+	 * スクリプトファイルの取得元の設定。デフォルトはクラスパス。
+	 * @param scriptRepository スクリプトファイルの取得元。
+	 */
+	public void setScriptRepository(ScriptRepository scriptRepository) {
+		if(scriptRepository == null) {
+			throw new IllegalArgumentException();
+		}
+		_scriptRepository = scriptRepository;
+	}
+
+	public ScriptRepository getScriptRepository() {
+		return _scriptRepository;
+	}
+
+	public void setEncoding(String encoding) {
+		if(encoding == null || encoding.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		_encoding = encoding;
+	}
+	
+    protected String getEncoding() {
+    	if(_encoding == null) {
+    		_encoding = System.getProperty("file.encoding", "UTF-8");
+    	}
+    	return _encoding;
+    }
+	
+    /**
+     * Rhinoの最適化レベルの設定。-1ならインタプリタモード、0～9なら
+     * JVMバイトコードを生成する。デフォルトは0。
+     * @param optimizationLevel 最適化レベル。
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        Context.checkOptimizationLevel(optimizationLevel);
+        _optimizationLevel = optimizationLevel;
+        resetContextFactory();
+    }
+
+    public int getOptimizationLevel() {
+        return _optimizationLevel;
+    }
+
+    /**
+     * 行番号などのデバッグ情報を生成するかどうかの設定。デフォルトはtrue。
+     * trueの場合、最適化レベルは0以下に抑えられる。
+     * @param generatingDebug デバッグ情報を生成するならtrue。
+     */
+    public void setGeneratingDebug(boolean generatingDebug) {
+        _generatingDebug = generatingDebug;
+        resetContextFactory();
+    }
+
+    public boolean isGeneratingDebug() {
+        return _generatingDebug;
+    }
+
+    /**
+     * 関数のソース文字列を保持するかどうかの設定。デフォルトはtrue。
+     * falseにすると、関数のtoString()は本体を返さなくなる。
+     * @param generatingSource ソース文字列を保持するならtrue。
+     */
+    public void setGeneratingSource(boolean generatingSource) {
+        _generatingSource = generatingSource;
+        resetContextFactory();
+    }
+
+    public boolean isGeneratingSource() {
+        return _generatingSource;
+    }
+
+    /**
+     * 実行時間の上限（ExecutionBudget）付きで呼ばれた際に、上限の超過を
+     * 確認する間隔の設定。Rhinoの命令数の監視はインタプリタモードでのみ
+     * 働くため、S2SaoInterceptorが上限を適用し得るSAOのスクリプトは
+     * compileInterruptibleで最適化レベルに関わらずインタプリタモードで
+     * ロードし、段階的コンパイルでも再コンパイルしない。compileで
+     * バイトコードへコンパイルしたスクリプトメソッドは実行中には打ち切られず、
+     * 戻った時点でS2SaoInterceptorが超過を判定する。
+     * @param instructionObserverThreshold 確認する間隔（命令数）。1以上。
+     */
+    public void setInstructionObserverThreshold(
+            int instructionObserverThreshold) {
+        if (instructionObserverThreshold < 1) {
+            throw new IllegalArgumentException();
+        }
+        _instructionObserverThreshold = instructionObserverThreshold;
+    }
+
+    public int getInstructionObserverThreshold() {
+        return _instructionObserverThreshold;
+    }
+
+    /**
+     * 段階的コンパイルの閾値の設定。1以上にすると、スクリプトをまず
+     * インタプリタモードでロードし、SAOメソッドからの呼び出し回数が閾値に
+     * 達したスクリプトメソッドだけを、バックグラウンドで最適化レベル
+     * （optimizationLevel）に従いバイトコードへ再コンパイルして差し替える。
+     * 呼び出し回数はJavaScript関数毎に数える。再コンパイルは元のスクリプト
+     * ファイルの該当部分から、元の行番号とファイル名で行うため、有効時は
+     * SAOスクリプト毎にスクリプトファイルの内容を保持する。トップレベルの
+     * function文で定義されていない関数は再コンパイルしない。
+     * 0以下なら無効（デフォルト）。
+     * @param tieringThreshold 再コンパイルするまでの呼び出し回数。
+     */
+    public void setTieringThreshold(int tieringThreshold) {
+        _tieringThreshold = tieringThreshold;
+        resetContextFactory();
+    }
+
+    public int getTieringThreshold() {
+        return _tieringThreshold;
+    }
+
+    /**
+     * @return 段階的コンパイルが有効ならtrue。
+     */
+    protected boolean isTiering() {
+        return _tieringThreshold > 0 && _optimizationLevel >= 0
+                && !_asyncEnabled;
+    }
+
+    /**
+     * 継続による非同期実行の設定。trueにすると、スクリプトは常に
+     * インタプリタモードでロードされ（最適化レベルと段階的コンパイルの設定は
+     * 無視される）、グローバル関数suspend(future)が使えるようになる。
+     * suspendは未完了のFutureを受け取るとスクリプトメソッドを中断し、
+     * 完了後にその結果を返して続きを実行する。戻り値の型がFutureの
+     * SAOメソッドは中断した時点でScriptFutureを呼び出し元へ返し、
+     * 続きは再開用のスレッドで実行される。その他のSAOメソッドでは、
+     * 呼び出し元のスレッドで完了を待つ。
+     * 中断できるのは、SAOメソッドからJavaを経由せずに呼ばれた関数の中だけ。
+     * また、再開後の実行には実行時間の上限（ExecutionBudget）は掛からない。
+     * デフォルトはfalse。
+     * @param asyncEnabled 非同期実行を有効にするならtrue。
+     */
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        _asyncEnabled = asyncEnabled;
+        resetContextFactory();
+    }
+
+    public boolean isAsyncEnabled() {
+        return _asyncEnabled;
+    }
+
+    /**
+     * 中断したスクリプトメソッドを再開するスレッド数の設定。デフォルトは2。
+     * @param asyncThreads 再開用のスレッド数。1以上。
+     */
+    public void setAsyncThreads(int asyncThreads) {
+        if (asyncThreads < 1) {
+            throw new IllegalArgumentException();
+        }
+        _asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncThreads() {
+        return _asyncThreads;
+    }
+
+    /**
+     * 待機中のFutureの完了を確認する間隔（ミリ秒）の設定。ScriptFutureは
+     * 完了時に直接再開されるため、それ以外のFutureにだけ用いる。
+     * デフォルトは10。
+     * @param asyncPollInterval 確認する間隔。1以上。
+     */
+    public void setAsyncPollInterval(long asyncPollInterval) {
+        if (asyncPollInterval < 1) {
+            throw new IllegalArgumentException();
+        }
+        _asyncPollInterval = asyncPollInterval;
+    }
+
+    public long getAsyncPollInterval() {
+        return _asyncPollInterval;
+    }
+
+    AsyncSupport getAsyncSupport() {
+        AsyncSupport support = _asyncSupport;
+        if (support == null) {
+            synchronized (this) {
+                support = _asyncSupport;
+                if (support == null) {
+                    support = new AsyncSupport(
+                            this, _asyncThreads, _asyncPollInterval);
+                    _asyncSupport = support;
+                }
+            }
+        }
+        return support;
+    }
+
+    /**
+     * 非同期実行で用いた再開用のスレッドと、段階的コンパイルのスレッドを
+     * 止める。diconのdestroyMethodに指定しておくと、コンテナの破棄と同時に
+     * スレッドも終わる。中断中のスクリプトメソッドの結果は取り消され、
+     * 予約済みの再コンパイルは行われない。
+     */
+    public void destroy() {
+        AsyncSupport support;
+        ExecutorService tiering;
+        synchronized (this) {
+            support = _asyncSupport;
+            _asyncSupport = null;
+            tiering = _tieringExecutor;
+            _tieringExecutor = null;
+        }
+        if (support != null) {
+            support.shutdown();
+        }
+        if (tiering != null) {
+            tiering.shutdownNow();
+        }
+    }
+
+    /**
+     * 並行呼び出し時のスコープの扱いの設定。CONCURRENCY_SHARED（デフォルト）、
+     * CONCURRENCY_THREAD、CONCURRENCY_INVOCATIONのいずれか。SHARED以外では
+     * 封印済みのグローバルスコープをプロトタイプとするスコープを用意して
+     * スクリプトメソッドを呼ぶため、スクリプトはロック無しにトップレベル変数を
+     * 作業領域として使え、並行する呼び出し同士が互いの値を見ることもない。
+     * ただし、スクリプトから別のSAOを入れ子で呼んだ場合、入れ子側では
+     * 呼び出し元のスコープが優先され、トップレベル変数への代入はSHAREDと
+     * 同じくエラーとなる。
+     * @param concurrencyMode スコープの扱い。
+     */
+    public void setConcurrencyMode(String concurrencyMode) {
+        if (!CONCURRENCY_SHARED.equals(concurrencyMode)
+                && !CONCURRENCY_THREAD.equals(concurrencyMode)
+                && !CONCURRENCY_INVOCATION.equals(concurrencyMode)) {
+            throw new IllegalArgumentException(concurrencyMode);
+        }
+        _concurrencyMode = concurrencyMode.intern();
+        resetContextFactory();
+    }
+
+    public String getConcurrencyMode() {
+        return _concurrencyMode;
+    }
+
+    /**
+     * 設定変更後に生成するContextへ反映させるため、ContextFactoryを破棄する。
+     */
+    protected synchronized void resetContextFactory() {
+        _contextFactory = null;
+    }
+
+    /**
+     * @return このエンジンが用いるContextFactory。
+     */
+    protected S2ContextFactory getContextFactory() {
+        S2ContextFactory factory = _contextFactory;
+        if (factory == null) {
+            synchronized (this) {
+                factory = _contextFactory;
+                if (factory == null) {
+                    factory = createContextFactory();
+                    _contextFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
+
+    protected S2ContextFactory createContextFactory() {
+        S2ContextFactory factory = new S2ContextFactory();
+        if (_asyncEnabled) {
+            factory.setOptimizationLevel(-1);
+            factory.setGeneratingSource(_generatingSource);
+        } else if (isTiering()) {
+            factory.setOptimizationLevel(-1);
+            factory.setGeneratingSource(_generatingSource);
+        } else {
+            factory.setOptimizationLevel(_optimizationLevel);
+            factory.setGeneratingSource(_generatingSource);
+        }
+        factory.setGeneratingDebug(_generatingDebug);
+        factory.setDynamicScope(_concurrencyMode != CONCURRENCY_SHARED);
+        return factory;
+    }
+
+    protected Context enter() {
+        return getContextFactory().enterContext();
+    }
+
+    /**
+     * 全てのSAOスクリプトで共有する、封印済みの標準オブジェクトのスコープを
+     * 取得する。初回呼び出し時に生成する。共有スコープにはこのエンジンの
+     * ClassCacheを関連付けるため、Javaクラスのリフレクション情報と
+     * JavaAdapterの生成クラスは全てのSAOで共有される。
+     * @param cx 現在のContext。
+     * @return 共有スコープ。
+     */
+    protected ScriptableObject getSharedScope(Context cx) {
+        ScriptableObject scope = _sharedScope;
+        if (scope == null) {
+            synchronized (this) {
+                scope = _sharedScope;
+                if (scope == null) {
+                    scope = new NativeObject();
+                    ClassCache classCache = new ClassCache();
+                    classCache.associate(scope);
+                    cx.initStandardObjects(scope, true);
+                    _classCache = classCache;
+                    _sharedScope = scope;
+                }
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * 共有スコープに関連付けたClassCacheを取得する。スクリプト中の
+     * new java.lang.Runnable({...})やnew JavaAdapter(...)で生成される
+     * アダプタクラスは、スーパークラス、インターフェイス群、関数名と引数の数を
+     * キーとしてここにキャッシュされ、同じ形の2回目以降はインスタンスの
+     * 生成だけになる。
+     * @return ClassCache。共有スコープが未生成ならnull。
+     */
+    public ClassCache getClassCache() {
+        return _classCache;
+    }
+
+    /**
+     * SAOスクリプト毎のグローバルスコープを生成する。プロトタイプの連鎖は
+     * グローバルスコープ、S2Container、共有スコープの順。
+     * @param cx 現在のContext。
+     * @return 未封印のグローバルスコープ。
+     */
+    protected SaoGlobalScope createGlobalScope(Context cx) {
+        NativeContainer container = new NativeContainer(getContainer());
+        container.setPrototype(getSharedScope(cx));
+        SaoGlobalScope global = new SaoGlobalScope();
+        global.setPrototype(container);
+        global.setCallScopeEnabled(_concurrencyMode != CONCURRENCY_SHARED);
+        return global;
+    }
+
+    public String getScriptFilePath(Class<?> sao) {
+		if(sao == null) {
+			throw new IllegalArgumentException();
+		}
+		if(sao.isAnnotationPresent(ScriptBinding.class)) {
+			ScriptBinding binding = sao.getAnnotation(ScriptBinding.class);
+			String value = binding.value();
+			if(value.length() > 0) {
+				return value;
+			}
+		}
+		String path = sao.getName();
+		path = path.replace('.', '/') + ".js";
+		return path;
+	}
+
+	protected String getScriptMethodName(Method method) {
+		if(method == null) {
+			throw new IllegalArgumentException();
+		}
+		if(method.isAnnotationPresent(MethodBinding.class)) {
+			MethodBinding binding = 
+				method.getAnnotation(MethodBinding.class);
+			String value = binding.value();
+			if(value.length() > 0) {
+				return value;
+			}
+		}
+		return method.getName();
+	}
+	
+	public ScriptSource getScriptSource(Class<?> sao) throws IOException {
+		return _scriptRepository.getSource(getScriptFilePath(sao));
+	}
+	
+	public Object compile(Class<?> sao) throws Exception {
+		ScriptSource source = getScriptSource(sao);
+		if(source != null) {
+			return compile(source);
+		}
+		return null;
+	}
+	
+	public Object compile(ScriptSource source) throws Exception {
+		return compile(source, false);
+	}
+	
+	/**
+	 * 最適化レベルに関わらずインタプリタモードでコンパイルする。命令数の
+	 * 監視で実行時間の上限を確認できるよう、段階的コンパイルでも
+	 * 再コンパイルしない。
+	 */
+	public Object compileInterruptible(ScriptSource source) throws Exception {
+		return compile(source, true);
+	}
+	
+	private Object compile(ScriptSource source, boolean interpretedOnly)
+			throws Exception {
+		InputStream stream = source.openStream();
+        Context cx = enter();
+        int optimizationLevel = cx.getOptimizationLevel();
+        try {
+        	if(interpretedOnly) {
+        		cx.setOptimizationLevel(-1);
+        	}
+            Reader reader = new InputStreamReader(stream, getEncoding());
+            Script script = cx.compileReader(
+            		reader, source.getPath(), 1, null);
+			SaoGlobalScope global = createGlobalScope(cx);
+			if(_asyncEnabled) {
+				getAsyncSupport().install(cx, global);
+			}
+    		script.exec(cx, global);
+			global.setInterpretedOnly(interpretedOnly);
+			if(isTiering() && !interpretedOnly) {
+				global.setScriptSource(source);
+			}
+			global.sealObject();
+			return global;
+        } finally {
+        	cx.setOptimizationLevel(optimizationLevel);
+            Context.exit();
+            stream.close();
+        }
+	}
+	
+	protected Scriptable castForScriptabe(Object compiled) {
+		if(compiled == null || !(compiled instanceof Scriptable)) {
+			throw new IllegalArgumentException();
+		}
+		return Scriptable.class.cast(compiled);		
+	}
+	
+	public Object getFunction(Object compiled, Method method) {
+		Scriptable global = castForScriptabe(compiled);		
+		String scriptMethodName = getScriptMethodName(method);
+		Object func = global.get(scriptMethodName, null);
+		if(func != null && func instanceof Function) {
+			return new RhinoFunction(Function.class.cast(func),
+					scriptMethodName, method.getReturnType());
+		}
+		return null;
+	}
+	
+	public boolean hasFunction(Object compiled, Method method) {
+		return getFunction(compiled, method) != null;
+	}
+
+    protected Object convertResult(
+    		Context cx, Class expectedClass, Object jsRet) {
+    	return convertResult(cx, expectedClass,
+    			RhinoFunction.getResultConversion(expectedClass), jsRet);
+    }
+
+    protected Object convertResult(Context cx, Class expectedClass,
+    		int resultConversion, Object jsRet) {
+        Object ret = null;
+        if (resultConversion == RhinoFunction.RESULT_BOOLEAN) {
+            // workaround to ECMA1.3
+            ret = JavaAdapter.convertResult(jsRet, Object.class);
+        } else if (resultConversion == RhinoFunction.RESULT_VOID
+                || (jsRet instanceof org.mozilla.javascript.Undefined)) {
+            ret = null;
+        } else {
+            ret = JavaAdapter.convertResult(jsRet, expectedClass);
+        }
+        return ret;
+    }
+	
+	public Object invoke(Object compiled, Method method, Object[] args,
+			Class expectedClass) throws Throwable {
+		Object function = getFunction(compiled, method);
+		if(function == null) {
+			throw new IllegalArgumentException(method.getName());
+		}
+		return invokeFunction(compiled, function, args, expectedClass);
+	}
+
+	public Object invokeFunction(Object compiled, Object function,
+			Object[] args, Class expectedClass) throws Throwable {
+		RhinoFunction rhinoFunction = RhinoFunction.class.cast(function);
+		int resultConversion = rhinoFunction.getResultConversion();
+		if(expectedClass != rhinoFunction.getExpectedClass()) {
+			resultConversion =
+				RhinoFunction.getResultConversion(expectedClass);
+		}
+        Context cx = enter();
+        int threshold = cx.getInstructionObserverThreshold();
+        cx.setInstructionObserverThreshold(ExecutionBudget.current() != null
+                ? _instructionObserverThreshold : 0);
+        ScriptProfiler profiler = _profiler;
+        boolean profiling = profiler != null && profiler.attach(cx);
+		try {
+			Scriptable global = castForScriptabe(compiled);		
+			Scriptable container = global.getPrototype();
+			if(container instanceof NativeContainer) {
+				((NativeContainer) container).validate();
+			}
+			Object[] jsArgs = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                jsArgs[i] = Context.javaToJS(args[i], global);
+            }
+			Scriptable scope = getCallScope(global);
+			if(_tieringThreshold > 0 && !rhinoFunction.isPromoted()
+					&& global instanceof SaoGlobalScope && isTiering()
+					&& !((SaoGlobalScope) global).isInterpretedOnly()) {
+				countCall((SaoGlobalScope) global, rhinoFunction);
+			}
+			Object jsRet;
+			try {
+				jsRet = rhinoFunction.getFunction().call(
+						cx, scope, scope, jsArgs);
+			} catch(AsyncSupport.SuspendSignal signal) {
+				if(expectedClass == Future.class) {
+					return getAsyncSupport().suspend(
+							signal, scope, new ScriptFuture());
+				}
+				jsRet = getAsyncSupport().await(cx, signal, scope);
+			}
+			if(_asyncEnabled && expectedClass == Future.class) {
+				Object ret = convertResult(cx, Object.class,
+						RhinoFunction.RESULT_CONVERT, jsRet);
+				if(ret instanceof Future) {
+					return ret;
+				}
+				return ScriptFuture.completed(ret);
+			}
+			return convertResult(cx, expectedClass, resultConversion, jsRet);
+        } catch (WrappedException e) {
+            throw e.getWrappedException();
+		} finally {
+			if(profiling) {
+				profiler.detach(cx);
+			}
+			cx.setInstructionObserverThreshold(threshold);
+			Context.exit();
+		}
+	}
+
+    /**
+     * 並行呼び出し時のスコープの扱いに従い、スクリプトメソッドの呼び出しに
+     * 用いるスコープを取得する。
+     * @param global コンパイル済みスクリプト。
+     * @return 呼び出しに用いるスコープ。
+     */
+    protected Scriptable getCallScope(Scriptable global) {
+        String mode = _concurrencyMode;
+        if (mode == CONCURRENCY_SHARED
+                || !(global instanceof SaoGlobalScope)) {
+            return global;
+        }
+        SaoGlobalScope saoGlobal = (SaoGlobalScope) global;
+        if (mode == CONCURRENCY_THREAD) {
+            return saoGlobal.getThreadScope();
+        }
+        return saoGlobal.createCallScope();
+    }
+
+    /**
+     * JavaScript関数の呼び出し回数を数え、閾値に達したら再コンパイルを
+     * 予約する。同じ関数を別のハンドルが最適化済みなら、それに差し替える。
+     */
+    private void countCall(SaoGlobalScope global, RhinoFunction function) {
+        int count = global.countCall(function.getFunction());
+        if (count == _tieringThreshold) {
+            schedulePromotion(global, function);
+        } else if (count > _tieringThreshold) {
+            Function replaced = global.getReplacedFunction(function.getName());
+            if (replaced != null) {
+                function.promote(replaced);
+            }
+        }
+    }
+
+    /**
+     * 呼び出し回数が閾値に達したスクリプトメソッドの再コンパイルを予約する。
+     * @param global コンパイル済みスクリプト。
+     * @param function 再コンパイル対象のスクリプトメソッド。
+     */
+    protected void schedulePromotion(final Scriptable global,
+            final RhinoFunction function) {
+        try {
+            getTieringExecutor().execute(new Runnable() {
+                public void run() {
+                    promote(global, function);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // destroyと競合した場合は、インタプリタモードのまま動作を続ける。
+        }
+    }
+
+    /**
+     * スクリプトメソッドを最適化レベルに従って再コンパイルし、ハンドルと
+     * グローバルスコープの双方で差し替える。元のスクリプトファイルから
+     * 関数の定義部分を取り出し、元の行番号とファイル名でコンパイルするため、
+     * スタックトレースやプロファイラの行番号は変わらない。スクリプトファイルを
+     * 保持していない場合や、定義部分を取り出せない場合、コンパイルに失敗した
+     * 場合はインタプリタモードのまま動作を続ける。
+     * @param global コンパイル済みスクリプト。
+     * @param function 再コンパイル対象のスクリプトメソッド。
+     */
+    protected void promote(Scriptable global, RhinoFunction function) {
+        if (function.isPromoted()) {
+            return;
+        }
+        if (global instanceof SaoGlobalScope) {
+            Function replaced = ((SaoGlobalScope) global).getReplacedFunction(
+                    function.getName());
+            if (replaced != null) {
+                // 同名のスクリプトメソッドを別のハンドルが最適化済み
+                function.promote(replaced);
+                return;
+            }
+        }
+        Function interpreted = function.getFunction();
+        ScriptSource scriptSource = null;
+        if (global instanceof SaoGlobalScope) {
+            scriptSource = ((SaoGlobalScope) global).getScriptSource();
+        }
+        if (scriptSource == null) {
+            function.promote(interpreted);
+            return;
+        }
+        Context cx = enter();
+        int optimizationLevel = cx.getOptimizationLevel();
+        try {
+            String text = new String(scriptSource.getBytes(), getEncoding());
+            FunctionDefinition definition = findFunctionDefinition(
+                    cx, text, scriptSource.getPath(), function.getName());
+            if (definition == null) {
+                function.promote(interpreted);
+                return;
+            }
+            cx.setOptimizationLevel(_optimizationLevel);
+            Function compiled = cx.compileFunction(global,
+                    definition.getSource(), scriptSource.getPath(),
+                    definition.getLineno(), null);
+            if (global instanceof SaoGlobalScope) {
+                ((SaoGlobalScope) global).replaceFunction(
+                        function.getName(), interpreted, compiled);
+            }
+            function.promote(compiled);
+        } catch (RuntimeException e) {
+            // 再コンパイルできない関数は、インタプリタモードのまま使い続ける。
+            function.promote(interpreted);
+        } catch (IOException e) {
+            function.promote(interpreted);
+        } finally {
+            cx.setOptimizationLevel(optimizationLevel);
+            Context.exit();
+        }
+    }
+
+    /**
+     * スクリプトファイルの内容から、トップレベルのfunction文による関数の
+     * 定義部分を取り出す。Rhinoの構文木は関数の終了位置を持たないため、
+     * 開始位置から閉じ括弧毎に区切って、最初に構文解析できた範囲を定義とする。
+     * @param cx 現在のContext。
+     * @param text スクリプトファイルの内容。
+     * @param sourceName スクリプトファイルのパス。
+     * @param name スクリプトメソッド名。
+     * @return 関数の定義部分。見つからなければnull。
+     */
+    protected FunctionDefinition findFunctionDefinition(Context cx,
+            String text, String sourceName, String name) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        ScriptOrFnNode root = new Parser(env, env.getErrorReporter()).parse(
+                text, sourceName, 1);
+        int baseLineno = -1;
+        for (int i = 0; root != null && i < root.getFunctionCount(); i++) {
+            FunctionNode node = root.getFunctionNode(i);
+            if (node.getFunctionType() == FunctionNode.FUNCTION_STATEMENT
+                    && name.equals(node.getFunctionName())) {
+                // 同名のfunction文は後のものが有効
+                baseLineno = node.getBaseLineno();
+            }
+        }
+        if (baseLineno < 1) {
+            return null;
+        }
+        int lineStart = 0;
+        for (int line = 1; line < baseLineno && lineStart >= 0; line++) {
+            lineStart = text.indexOf('\n', lineStart);
+            if (lineStart >= 0) {
+                lineStart++;
+            }
+        }
+        if (lineStart < 0) {
+            return null;
+        }
+        Matcher matcher = Pattern.compile(
+                "function\\s+" + Pattern.quote(name) + "\\s*\\(").matcher(text);
+        if (!matcher.find(lineStart)) {
+            return null;
+        }
+        int start = matcher.start();
+        int lineno = baseLineno;
+        for (int i = lineStart; i < start; i++) {
+            if (text.charAt(i) == '\n') {
+                lineno++;
+            }
+        }
+        for (int end = text.indexOf('}', matcher.end()); end >= 0;
+                end = text.indexOf('}', end + 1)) {
+            String source = text.substring(start, end + 1);
+            try {
+                ScriptOrFnNode parsed = new Parser(env,
+                        env.getErrorReporter()).parse(source, sourceName, lineno);
+                if (parsed != null && parsed.getFunctionCount() == 1) {
+                    return new FunctionDefinition(source, lineno);
+                }
+            } catch (RuntimeException e) {
+                // まだ関数の途中
+            }
+        }
+        return null;
+    }
+
+    /**
+     * スクリプトファイル中の関数の定義部分と、その開始行。
+     */
+    protected static class FunctionDefinition {
+
+        private final String _source;
+        private final int _lineno;
+
+        public FunctionDefinition(String source, int lineno) {
+            _source = source;
+            _lineno = lineno;
+        }
+
+        /**
+         * @return function文から閉じ括弧までの文字列。
+         */
+        public String getSource() {
+            return _source;
+        }
+
+        /**
+         * @return function文の開始行。
+         */
+        public int getLineno() {
+            return _lineno;
+        }
+
+    }
+
+    protected ExecutorService getTieringExecutor() {
+        ExecutorService executor = _tieringExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = _tieringExecutor;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(
+                            new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r,
+                                            "RhinoScriptEngine-tiering");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    _tieringExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+}
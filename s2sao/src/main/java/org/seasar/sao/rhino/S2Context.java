@@ -0,0 +1,51 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import org.mozilla.javascript.Context;
+import org.seasar.sao.ExecutionBudget;
+
+/**
+ * S2ContextFactoryが生成するContext。Context.enter(Context)で
+ * スレッドに関連付けたContextは生成元のContextFactoryを参照しないため、
+ * 生成元のS2ContextFactoryへの委譲をこのクラスで行う。
+ * また、命令数の監視を実行時間の上限（ExecutionBudget）の確認に用いる。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+class S2Context extends Context {
+
+	private final S2ContextFactory _factory;
+
+	S2Context(S2ContextFactory factory) {
+		if(factory == null) {
+			throw new IllegalArgumentException();
+		}
+		_factory = factory;
+	}
+
+	S2ContextFactory getContextFactory() {
+		return _factory;
+	}
+
+	public boolean hasFeature(int featureIndex) {
+		return _factory.hasFeature(this, featureIndex);
+	}
+
+	protected void observeInstructionCount(int instructionCount) {
+		ExecutionBudget.checkCurrent();
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.WrapFactory;
+
+/**
+ * RhinoScriptEngine専用のContextFactory。WrapFactoryなどのContextの設定を
+ * 生成時に一度だけ行い、生成したContextをスレッド毎に保持して使い回す。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class S2ContextFactory extends ContextFactory {
+
+	private final WrapFactory _wrapFactory;
+	private int _optimizationLevel = 0;
+	private boolean _generatingDebug = true;
+	private boolean _generatingSource = true;
+	private boolean _dynamicScope;
+	private final ThreadLocal<Context> _threadContext =
+		new ThreadLocal<Context>() {
+			protected Context initialValue() {
+				return makeContext();
+			}
+		};
+
+	public S2ContextFactory() {
+		this(new S2WrapFactory());
+	}
+
+	public S2ContextFactory(WrapFactory wrapFactory) {
+		if(wrapFactory == null) {
+			throw new IllegalArgumentException();
+		}
+		_wrapFactory = wrapFactory;
+	}
+
+	public WrapFactory getWrapFactory() {
+		return _wrapFactory;
+	}
+
+	/**
+	 * 生成するContextの最適化レベルの設定。
+	 * @param optimizationLevel -1～9の最適化レベル。
+	 */
+	public void setOptimizationLevel(int optimizationLevel) {
+		checkNotSealed();
+		Context.checkOptimizationLevel(optimizationLevel);
+		_optimizationLevel = optimizationLevel;
+	}
+
+	public int getOptimizationLevel() {
+		return _optimizationLevel;
+	}
+
+	public void setGeneratingDebug(boolean generatingDebug) {
+		checkNotSealed();
+		_generatingDebug = generatingDebug;
+	}
+
+	public boolean isGeneratingDebug() {
+		return _generatingDebug;
+	}
+
+	public void setGeneratingSource(boolean generatingSource) {
+		checkNotSealed();
+		_generatingSource = generatingSource;
+	}
+
+	public boolean isGeneratingSource() {
+		return _generatingSource;
+	}
+
+	/**
+	 * 動的スコープ（Context.FEATURE_DYNAMIC_SCOPE）を有効にするかどうかの設定。
+	 * 有効にすると、トップレベルの名前解決は呼び出し時に渡したスコープで行われる。
+	 * @param dynamicScope 有効にするならtrue。
+	 */
+	public void setDynamicScope(boolean dynamicScope) {
+		checkNotSealed();
+		_dynamicScope = dynamicScope;
+	}
+
+	public boolean isDynamicScope() {
+		return _dynamicScope;
+	}
+
+	protected Context makeContext() {
+		Context cx = new S2Context(this);
+		cx.setWrapFactory(_wrapFactory);
+		cx.setOptimizationLevel(_optimizationLevel);
+		// デバッグ情報を生成すると、最適化レベルは0に下げられる。
+		cx.setGeneratingDebug(_generatingDebug);
+		cx.setGeneratingSource(_generatingSource);
+		return cx;
+	}
+
+	// S2Contextから呼べるよう、このパッケージで再定義する。
+	protected boolean hasFeature(Context cx, int featureIndex) {
+		if(featureIndex == Context.FEATURE_DYNAMIC_SCOPE) {
+			return _dynamicScope;
+		}
+		return super.hasFeature(cx, featureIndex);
+	}
+
+	/**
+	 * 現在のスレッドに対応するContextに入る。既にContextに入っている場合
+	 * （スクリプトから別のSAOが呼ばれた場合など）は、そのContextを入れ子で使う。
+	 * 必ずContext.exit()と対で呼ぶこと。
+	 * @return 現在のスレッドに対応するContext。
+	 */
+	public Context enterContext() {
+		return Context.enter(_threadContext.get());
+	}
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+import org.seasar.sao.ScriptSource;
+
+/**
+ * SAOスクリプト毎のグローバルスコープ。Rhino標準のsealObject()で封印すると、
+ * エンジン自身もスクリプトメソッドを差し替えられなくなるため、封印状態を
+ * このクラスで管理する。封印後もスクリプトからの変更は従来通り拒否するが、
+ * replaceFunctionによるエンジンからの差し替えは許す。
+ * 呼び出し用スコープを有効にした場合、封印後のトップレベル変数の読み書きは
+ * 実行中の呼び出し用スコープへ振り向ける。段階的コンパイルのために、
+ * スクリプトメソッド毎の呼び出し回数と、元のスクリプトファイルも保持する。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class SaoGlobalScope extends ScriptableObject {
+
+	private static final long serialVersionUID = 5409781745338219316L;
+	private volatile boolean _sealed;
+	private boolean _callScopeEnabled;
+	private Map<String, Function> _replaced = new HashMap<String, Function>();
+	private transient ConcurrentMap<Function, AtomicInteger> _callCounts =
+		new ConcurrentHashMap<Function, AtomicInteger>();
+	private transient volatile ScriptSource _scriptSource;
+	private boolean _interpretedOnly;
+	private transient Map<Thread, Scriptable> _threadScopes =
+		new WeakHashMap<Thread, Scriptable>();
+	private transient ThreadLocal<WeakReference<Scriptable>> _threadScope =
+		new ThreadLocal<WeakReference<Scriptable>>();
+
+	public String getClassName() {
+		return "global";
+	}
+
+	public void sealObject() {
+		_sealed = true;
+	}
+
+	/**
+	 * @return 封印済みならtrue。
+	 */
+	public boolean isSealedScope() {
+		return _sealed;
+	}
+
+	/**
+	 * 呼び出し用スコープを有効にするかどうかの設定。
+	 * @param callScopeEnabled 有効にするならtrue。
+	 */
+	public void setCallScopeEnabled(boolean callScopeEnabled) {
+		_callScopeEnabled = callScopeEnabled;
+	}
+
+	public boolean isCallScopeEnabled() {
+		return _callScopeEnabled;
+	}
+
+	public boolean has(String name, Scriptable start) {
+		if(super.has(name, start)) {
+			return true;
+		}
+		Scriptable callScope = getCurrentCallScope(start);
+		return callScope != null && callScope.has(name, callScope);
+	}
+
+	public Object get(String name, Scriptable start) {
+		Object value = super.get(name, start);
+		if(value == NOT_FOUND) {
+			Scriptable callScope = getCurrentCallScope(start);
+			if(callScope != null) {
+				return callScope.get(name, callScope);
+			}
+		}
+		return value;
+	}
+
+	public void put(String name, Scriptable start, Object value) {
+		if(start == this && _sealed) {
+			Scriptable callScope = getCurrentCallScope(start);
+			if(callScope == null) {
+				throw modifySealedError(name);
+			}
+			callScope.put(name, callScope, value);
+			return;
+		}
+		super.put(name, start, value);
+	}
+
+	public void put(int index, Scriptable start, Object value) {
+		if(start == this && _sealed) {
+			throw modifySealedError(Integer.toString(index));
+		}
+		super.put(index, start, value);
+	}
+
+	public void delete(String name) {
+		if(_sealed) {
+			throw modifySealedError(name);
+		}
+		super.delete(name);
+	}
+
+	public void delete(int index) {
+		if(_sealed) {
+			throw modifySealedError(Integer.toString(index));
+		}
+		super.delete(index);
+	}
+
+	/**
+	 * このグローバルスコープをプロトタイプとする、書き込み可能な呼び出し用の
+	 * スコープを生成する。動的スコープが有効なContextでこのスコープを渡して
+	 * スクリプトメソッドを呼ぶと、トップレベル変数の読み書きはこのスコープで
+	 * 行われ、封印済みのグローバルスコープは変更されない。
+	 * @return 新しい呼び出し用スコープ。
+	 */
+	public Scriptable createCallScope() {
+		NativeObject scope = new NativeObject();
+		scope.setPrototype(this);
+		scope.setParentScope(null);
+		return scope;
+	}
+
+	/**
+	 * 現在のスレッド専用の呼び出し用スコープを取得する。初回は生成する。
+	 * スコープはプロトタイプとしてこのグローバルスコープを参照するため、
+	 * スレッド側（ThreadLocal）には弱参照だけを置き、スレッドを弱参照の
+	 * キーとしてこのグローバルスコープが保持する。スクリプトの再ロードで
+	 * 置き換えられたグローバルスコープは、呼び出したスレッドが生きていても
+	 * GCで破棄される。
+	 * @return 現在のスレッド専用の呼び出し用スコープ。
+	 */
+	public Scriptable getThreadScope() {
+		WeakReference<Scriptable> ref = _threadScope.get();
+		Scriptable scope = ref != null ? ref.get() : null;
+		if(scope == null) {
+			Thread thread = Thread.currentThread();
+			synchronized(_threadScopes) {
+				scope = _threadScopes.get(thread);
+				if(scope == null) {
+					scope = createCallScope();
+					_threadScopes.put(thread, scope);
+				}
+			}
+			_threadScope.set(new WeakReference<Scriptable>(scope));
+		}
+		return scope;
+	}
+
+	/**
+	 * 実行中の呼び出しが、このグローバルスコープの呼び出し用スコープで
+	 * 開始されていれば、そのスコープを返す。動的スコープを考慮しない
+	 * Rhinoの処理経路（インクリメント演算子など）でも、トップレベル変数を
+	 * 呼び出し用スコープで扱うために用いる。
+	 */
+	private Scriptable getCurrentCallScope(Scriptable start) {
+		if(start != this || !_sealed || !_callScopeEnabled) {
+			return null;
+		}
+		Context cx = Context.getCurrentContext();
+		if(cx == null || !ScriptRuntime.hasTopCall(cx)) {
+			return null;
+		}
+		Scriptable callScope = ScriptRuntime.getTopCallScope(cx);
+		if(callScope != this && callScope.getPrototype() == this) {
+			return callScope;
+		}
+		return null;
+	}
+
+	private RuntimeException modifySealedError(String name) {
+		return Context.reportRuntimeError(
+				ScriptRuntime.getMessage1("msg.modify.sealed", name));
+	}
+
+	/**
+	 * 定義済みのスクリプトメソッドを差し替える。現在の値がexpectedでなければ
+	 * 何もしない。
+	 * @param name スクリプトメソッド名。
+	 * @param expected 差し替え前のスクリプトメソッド。
+	 * @param function 新しいスクリプトメソッド。
+	 * @return 差し替えたならtrue。
+	 */
+	public synchronized boolean replaceFunction(String name,
+			Function expected, Function function) {
+		if(name == null || function == null) {
+			throw new IllegalArgumentException();
+		}
+		if(get(name, this) != expected) {
+			return false;
+		}
+		super.put(name, this, function);
+		_replaced.put(name, function);
+		return true;
+	}
+
+	/**
+	 * JavaScript関数の呼び出し回数を数える。同じ関数に束縛された複数の
+	 * SAOメソッドからの呼び出しは合算される。
+	 * @param function 呼び出すJavaScript関数。
+	 * @return 今回を含めた呼び出し回数。
+	 */
+	public int countCall(Function function) {
+		AtomicInteger count = _callCounts.get(function);
+		if(count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = _callCounts.putIfAbsent(function, created);
+			if(count == null) {
+				count = created;
+			}
+		}
+		return count.incrementAndGet();
+	}
+
+	/**
+	 * 段階的コンパイルで関数を再コンパイルする際に用いる、元のスクリプト
+	 * ファイルの設定。
+	 * @param scriptSource スクリプトファイル。保持しないならnull。
+	 */
+	public void setScriptSource(ScriptSource scriptSource) {
+		_scriptSource = scriptSource;
+	}
+
+	/**
+	 * @return 元のスクリプトファイル。保持していなければnull。
+	 */
+	public ScriptSource getScriptSource() {
+		return _scriptSource;
+	}
+
+	/**
+	 * インタプリタモードのまま使い続けるかどうかの設定。実行時間の上限の
+	 * 確認は命令数の監視で行うため、上限付きで呼ばれるSAOスクリプトは
+	 * 段階的コンパイルの対象としない。
+	 * @param interpretedOnly 再コンパイルしないならtrue。
+	 */
+	public void setInterpretedOnly(boolean interpretedOnly) {
+		_interpretedOnly = interpretedOnly;
+	}
+
+	public boolean isInterpretedOnly() {
+		return _interpretedOnly;
+	}
+
+	/**
+	 * @param name スクリプトメソッド名。
+	 * @return replaceFunctionで差し替え済みのスクリプトメソッド。無ければnull。
+	 */
+	public synchronized Function getReplacedFunction(String name) {
+		return _replaced.get(name);
+	}
+
+}
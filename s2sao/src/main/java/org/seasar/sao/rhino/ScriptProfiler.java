@@ -0,0 +1,445 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+/**
+ * スクリプトの行単位のサンプリングプロファイラ。RhinoのDebuggerとして
+ * スクリプトメソッドの呼び出しに割り込み、スレッド毎に実行中の関数と行を
+ * 記録する。別スレッドが一定間隔でそれを読み取り、関数の連鎖毎に集計する。
+ * 結果はフレームグラフ用のcollapsed stack形式と、上位N行のレポートで取り出せる。
+ * 記録の対象は有効にしたスクリプトファイルの関数だけで、Rhinoのインタプリタモード
+ * で実行された関数に限られる（バイトコードに最適化した関数はDebuggerを呼ばない）。
+ * 対象の関数では呼び出し毎にアクティベーションオブジェクトが生成されるため、
+ * 本番環境では短時間だけ有効にすることを想定している。
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptProfiler implements Debugger {
+
+	private long _samplingInterval = 10;
+	private final Map<String, Boolean> _sourceNames =
+		new ConcurrentHashMap<String, Boolean>();
+	private final Map<DebuggableScript, FunctionInfo> _functions =
+		new ConcurrentHashMap<DebuggableScript, FunctionInfo>();
+	private final Queue<ThreadState> _threads =
+		new ConcurrentLinkedQueue<ThreadState>();
+	private final ThreadLocal<ThreadState> _threadState =
+		new ThreadLocal<ThreadState>() {
+			protected ThreadState initialValue() {
+				ThreadState state = new ThreadState(Thread.currentThread());
+				_threads.add(state);
+				return state;
+			}
+		};
+	private final Map<String, long[]> _stacks = new HashMap<String, long[]>();
+	private final Map<String, LineInfo> _lines = new HashMap<String, LineInfo>();
+	private long _sampleCount;
+	private ScheduledExecutorService _sampler;
+	private ScheduledFuture<?> _sampling;
+
+	/**
+	 * サンプリング間隔（ミリ秒）の設定。デフォルトは10。
+	 * 次にサンプリングを開始した時点から反映される。
+	 * @param samplingInterval サンプリング間隔。1以上。
+	 */
+	public void setSamplingInterval(long samplingInterval) {
+		if(samplingInterval < 1) {
+			throw new IllegalArgumentException();
+		}
+		_samplingInterval = samplingInterval;
+	}
+
+	public long getSamplingInterval() {
+		return _samplingInterval;
+	}
+
+	/**
+	 * スクリプトファイルを記録の対象とし、サンプリングを開始する。
+	 * @param sourceName スクリプトファイルのパス。
+	 */
+	public synchronized void enable(String sourceName) {
+		if(sourceName == null || sourceName.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		_sourceNames.put(sourceName, Boolean.TRUE);
+		if(_sampling == null) {
+			if(_sampler == null) {
+				_sampler = Executors.newSingleThreadScheduledExecutor(
+						new ThreadFactory() {
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "ScriptProfiler");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+			_sampling = _sampler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					sample();
+				}
+			}, _samplingInterval, _samplingInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * スクリプトファイルを記録の対象から外す。対象が無くなれば
+	 * サンプリングを止める。集計済みの結果は残る。
+	 * @param sourceName スクリプトファイルのパス。
+	 */
+	public synchronized void disable(String sourceName) {
+		_sourceNames.remove(sourceName);
+		if(_sourceNames.isEmpty() && _sampling != null) {
+			_sampling.cancel(false);
+			_sampling = null;
+		}
+	}
+
+	public boolean isEnabled(String sourceName) {
+		return _sourceNames.containsKey(sourceName);
+	}
+
+	/**
+	 * @return 記録の対象のスクリプトファイルがあればtrue。
+	 */
+	public boolean isActive() {
+		return !_sourceNames.isEmpty();
+	}
+
+	/**
+	 * スクリプトメソッドの呼び出しの間、Contextにこのプロファイラを設定する。
+	 * 対象が無い場合、インタプリタモードでない場合、既に他のDebuggerが
+	 * 設定されている場合は何もしない。
+	 * @param cx 現在のContext。
+	 * @return 設定したならtrue。その場合はdetachで外すこと。
+	 */
+	public boolean attach(Context cx) {
+		if(!isActive() || cx.getOptimizationLevel() >= 0
+				|| cx.getDebugger() != null) {
+			return false;
+		}
+		cx.setDebugger(this, _threadState.get());
+		return true;
+	}
+
+	public void detach(Context cx) {
+		if(cx.getDebugger() == this) {
+			cx.setDebugger(null, null);
+		}
+	}
+
+	public void handleCompilationDone(Context cx, DebuggableScript fnOrScript,
+			String source) {
+	}
+
+	public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+		if(!fnOrScript.isFunction()
+				|| !_sourceNames.containsKey(fnOrScript.getSourceName())) {
+			return null;
+		}
+		Object data = cx.getDebuggerContextData();
+		if(!(data instanceof ThreadState)) {
+			return null;
+		}
+		FunctionInfo function = _functions.get(fnOrScript);
+		if(function == null) {
+			function = new FunctionInfo(fnOrScript);
+			_functions.put(fnOrScript, function);
+		}
+		return new ProfileFrame((ThreadState) data, function);
+	}
+
+	void sample() {
+		List<ProfileFrame> frames = new ArrayList<ProfileFrame>();
+		Set<String> seen = new HashSet<String>();
+		for(Iterator<ThreadState> it = _threads.iterator(); it.hasNext();) {
+			ThreadState state = it.next();
+			ProfileFrame top = state._current;
+			if(top == null) {
+				if(!state._thread.isAlive()) {
+					it.remove();
+				}
+				continue;
+			}
+			frames.clear();
+			for(ProfileFrame frame = top; frame != null; frame = frame._parent) {
+				frames.add(frame);
+			}
+			StringBuilder stack = new StringBuilder();
+			synchronized(_stacks) {
+				seen.clear();
+				for(int i = frames.size() - 1; i >= 0; i--) {
+					ProfileFrame frame = frames.get(i);
+					String label = frame._function.getLabel(frame._line);
+					if(stack.length() > 0) {
+						stack.append(';');
+					}
+					stack.append(label);
+					LineInfo line = _lines.get(label);
+					if(line == null) {
+						line = new LineInfo(label, frame._function);
+						_lines.put(label, line);
+					}
+					if(seen.add(label)) {
+						line._total++;
+					}
+					if(i == 0) {
+						line._self++;
+					}
+				}
+				String key = stack.toString();
+				long[] count = _stacks.get(key);
+				if(count == null) {
+					count = new long[1];
+					_stacks.put(key, count);
+				}
+				count[0]++;
+				_sampleCount++;
+			}
+		}
+	}
+
+	/**
+	 * 集計結果を破棄する。
+	 */
+	public void reset() {
+		synchronized(_stacks) {
+			_stacks.clear();
+			_lines.clear();
+			_sampleCount = 0;
+		}
+		_functions.clear();
+	}
+
+	public long getSampleCount() {
+		synchronized(_stacks) {
+			return _sampleCount;
+		}
+	}
+
+	/**
+	 * 集計結果をcollapsed stack形式（1行に、呼び出し元から順に;で区切った
+	 * 関数の連鎖とサンプル数）で書き出す。flamegraph.plなどにそのまま渡せる。
+	 * 各フレームは「関数名 (スクリプトファイル:行)」。
+	 * @param writer 書き出し先。
+	 * @throws IOException 書き出し時例外。
+	 */
+	public void writeCollapsedStacks(Writer writer) throws IOException {
+		Map<String, long[]> stacks;
+		synchronized(_stacks) {
+			stacks = new HashMap<String, long[]>(_stacks.size());
+			for(Map.Entry<String, long[]> entry : _stacks.entrySet()) {
+				stacks.put(entry.getKey(), entry.getValue().clone());
+			}
+		}
+		List<String> keys = new ArrayList<String>(stacks.keySet());
+		Collections.sort(keys);
+		for(String key : keys) {
+			writer.write(key);
+			writer.write(' ');
+			writer.write(Long.toString(stacks.get(key)[0]));
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	/**
+	 * その行で実行中だったサンプル数（self）の多い順に、上位の行を
+	 * 時間と呼び出し回数と共に報告する。時間はサンプル数と
+	 * サンプリング間隔からの概算。呼び出し回数は関数単位。
+	 * @param limit 報告する行数。
+	 * @return レポート。
+	 */
+	public String getReport(int limit) {
+		List<LineInfo> lines = new ArrayList<LineInfo>();
+		long sampleCount;
+		synchronized(_stacks) {
+			for(LineInfo line : _lines.values()) {
+				lines.add(line.copy());
+			}
+			sampleCount = _sampleCount;
+		}
+		Collections.sort(lines, new Comparator<LineInfo>() {
+			public int compare(LineInfo o1, LineInfo o2) {
+				if(o1._self != o2._self) {
+					return o1._self > o2._self ? -1 : 1;
+				}
+				if(o1._total != o2._total) {
+					return o1._total > o2._total ? -1 : 1;
+				}
+				return o1._label.compareTo(o2._label);
+			}
+		});
+		long interval = _samplingInterval;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d samples, %d ms interval%n",
+				sampleCount, interval));
+		report.append(String.format("%7s %9s %7s %9s %9s  %s%n",
+				"self%", "self(ms)", "total%", "total(ms)", "calls", "line"));
+		for(int i = 0; i < lines.size() && i < limit; i++) {
+			LineInfo line = lines.get(i);
+			report.append(String.format("%6.1f%% %9d %6.1f%% %9d %9d  %s%n",
+					percent(line._self, sampleCount), line._self * interval,
+					percent(line._total, sampleCount), line._total * interval,
+					line._function._calls.get(), line._label));
+		}
+		return report.toString();
+	}
+
+	private static double percent(long count, long sampleCount) {
+		return sampleCount == 0 ? 0 : count * 100.0 / sampleCount;
+	}
+
+	/**
+	 * サンプリングを止め、スレッドを破棄する。
+	 */
+	public synchronized void shutdown() {
+		_sourceNames.clear();
+		_sampling = null;
+		if(_sampler != null) {
+			_sampler.shutdownNow();
+			_sampler = null;
+		}
+	}
+
+	private static class ThreadState {
+
+		private final Thread _thread;
+		private volatile ProfileFrame _current;
+
+		ThreadState(Thread thread) {
+			_thread = thread;
+		}
+
+	}
+
+	private static class FunctionInfo {
+
+		private final String _name;
+		private final String _sourceName;
+		private final AtomicLong _calls = new AtomicLong();
+		private volatile String[] _labels = new String[0];
+
+		FunctionInfo(DebuggableScript fnOrScript) {
+			String name = fnOrScript.getFunctionName();
+			_name = name == null || name.length() == 0
+				? "(anonymous)" : name;
+			_sourceName = fnOrScript.getSourceName();
+		}
+
+		String getLabel(int line) {
+			String[] labels = _labels;
+			if(line < 0) {
+				line = 0;
+			}
+			if(line < labels.length && labels[line] != null) {
+				return labels[line];
+			}
+			String label = _name + " (" + _sourceName + ":" + line + ")";
+			if(line >= labels.length) {
+				String[] grown = new String[line + 1];
+				System.arraycopy(labels, 0, grown, 0, labels.length);
+				labels = grown;
+			}
+			labels[line] = label;
+			_labels = labels;
+			return label;
+		}
+
+	}
+
+	private static class LineInfo {
+
+		private final String _label;
+		private final FunctionInfo _function;
+		private long _self;
+		private long _total;
+
+		LineInfo(String label, FunctionInfo function) {
+			_label = label;
+			_function = function;
+		}
+
+		LineInfo copy() {
+			LineInfo copy = new LineInfo(_label, _function);
+			copy._self = _self;
+			copy._total = _total;
+			return copy;
+		}
+
+	}
+
+	private static class ProfileFrame implements DebugFrame {
+
+		private final ThreadState _state;
+		private final FunctionInfo _function;
+		private ProfileFrame _parent;
+		private volatile int _line;
+
+		ProfileFrame(ThreadState state, FunctionInfo function) {
+			_state = state;
+			_function = function;
+		}
+
+		public void onEnter(Context cx, Scriptable activation,
+				Scriptable thisObj, Object[] args) {
+			_function._calls.incrementAndGet();
+			_parent = _state._current;
+			_state._current = this;
+		}
+
+		public void onLineChange(Context cx, int lineNumber) {
+			_line = lineNumber;
+		}
+
+		public void onExceptionThrown(Context cx, Throwable ex) {
+		}
+
+		public void onExit(Context cx, boolean byThrow,
+				Object resultOrException) {
+			if(_state._current == this) {
+				_state._current = _parent;
+			}
+		}
+
+	}
+
+}
@@ -1,7 +1,7 @@
-function say(name) {
-	return util.greeting(name);
-}
-
-function hello() {
-	return "hello!";
-}
+function say(name) {
+	return util.greeting(name);
+}
+
+function hello() {
+	return "hello!";
+}
@@ -1,5 +1,5 @@
-def say(name):
-  return ns1.util.greeting(name)
-
-def hello():
-  return "Hello, World!"
+def say(name):
+  return ns1.util.greeting(name)
+
+def hello():
+  return "Hello, World!"
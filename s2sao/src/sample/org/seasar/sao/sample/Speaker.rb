@@ -1,7 +1,7 @@
-def say(name)
-  ns1.util.greeting(name)
-end
-
-def hello
-  "Hello, World!"
-end
+def say(name)
+  ns1.util.greeting(name)
+end
+
+def hello
+  "Hello, World!"
+end
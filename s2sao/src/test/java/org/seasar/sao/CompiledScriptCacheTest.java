@@ -0,0 +1,180 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class CompiledScriptCacheTest {
+
+	private CompiledScriptCache _cache;
+	private AtomicInteger _loadCount;
+	
+	@Before
+	public void setUp() {
+		_cache = new CompiledScriptCache();
+		_loadCount = new AtomicInteger();
+	}
+	
+	private CompiledScriptCache.Loader loader(final Object value) {
+		return new CompiledScriptCache.Loader() {
+			public Object load(Object key) throws Throwable {
+				_loadCount.incrementAndGet();
+				return value;
+			}
+		};
+	}
+	
+	@Test
+	public void cacheNull() throws Throwable {
+		Assert.assertNull(_cache.get("a", loader(null)));
+		Assert.assertNull(_cache.get("a", loader(null)));
+		Assert.assertEquals(1, _loadCount.get());
+		Assert.assertEquals(1L, _cache.getMissCount());
+		Assert.assertEquals(1L, _cache.getHitCount());
+	}
+	
+	@Test
+	public void maxSize() throws Throwable {
+		_cache.setMaxSize(2);
+		_cache.get("a", loader("A"));
+		_cache.get("b", loader("B"));
+		_cache.get("c", loader("C"));
+		Assert.assertEquals(2, _cache.size());
+		Assert.assertEquals(1L, _cache.getEvictionCount());
+		_cache.get("a", loader("A"));
+		Assert.assertEquals(4, _loadCount.get());
+	}
+	
+	@Test
+	public void notRecordingHits() throws Throwable {
+		_cache.setRecordingHits(false);
+		_cache.get("a", loader("A"));
+		_cache.get("a", loader("A"));
+		Assert.assertEquals(0L, _cache.getHitCount());
+		Assert.assertEquals(1L, _cache.getMissCount());
+	}
+	
+	@Test
+	public void maxSizeAfterLoad() throws Throwable {
+		for(int i = 0; i < 100; i++) {
+			_cache.get("k" + i, loader("V" + i));
+		}
+		_cache.setMaxSize(10);
+		Assert.assertEquals(10, _cache.size());
+		Assert.assertEquals(90L, _cache.getEvictionCount());
+		Assert.assertNull(_cache.peek("k89"));
+		Assert.assertEquals("V90", _cache.peek("k90"));
+		Assert.assertEquals("V99", _cache.peek("k99"));
+	}
+	
+	@Test
+	public void failureIsNotCached() throws Throwable {
+		CompiledScriptCache.Loader failing = new CompiledScriptCache.Loader() {
+			public Object load(Object key) throws Throwable {
+				throw new IllegalStateException();
+			}
+		};
+		try {
+			_cache.get("a", failing);
+			Assert.fail();
+		} catch(IllegalStateException e) {
+		}
+		Assert.assertEquals("A", _cache.get("a", loader("A")));
+	}
+	
+	@Test
+	public void singleFlight() throws Throwable {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CompiledScriptCache.Loader slow = new CompiledScriptCache.Loader() {
+			public Object load(Object key) throws Throwable {
+				_loadCount.incrementAndGet();
+				Thread.sleep(50);
+				return "A";
+			}
+		};
+		Thread[] threads = new Thread[8];
+		final Object[] results = new Object[threads.length];
+		for(int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						results[index] = _cache.get("a", slow);
+					} catch(Throwable t) {
+						results[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for(int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			Assert.assertEquals("A", results[i]);
+		}
+		Assert.assertEquals(1, _loadCount.get());
+	}
+	
+	@Test
+	public void replace() throws Throwable {
+		Assert.assertFalse(_cache.replace("a", "B"));
+		Assert.assertEquals(0, _cache.size());
+		_cache.get("a", loader("A"));
+		Assert.assertTrue(_cache.replace("a", "B"));
+		Assert.assertEquals("B", _cache.get("a", loader("C")));
+		Assert.assertEquals(1, _loadCount.get());
+	}
+
+	@Test
+	public void reloadedKeyKeepsOrder() throws Throwable {
+		_cache.setMaxSize(2);
+		_cache.get("a", loader("A"));
+		_cache.get("b", loader("B"));
+		_cache.remove("a");
+		_cache.get("a", loader("A"));
+		_cache.get("c", loader("C"));
+		Assert.assertEquals(2, _cache.size());
+		Assert.assertEquals("A", _cache.peek("a"));
+		Assert.assertNull(_cache.peek("b"));
+		Assert.assertEquals("C", _cache.peek("c"));
+	}
+
+	@Test
+	public void weakKeys() throws Throwable {
+		_cache = new CompiledScriptCache(true);
+		Object key = new Object();
+		Assert.assertEquals("A", _cache.get(key, loader("A")));
+		Assert.assertEquals("A", _cache.get(key, loader("B")));
+		Assert.assertEquals(1, _cache.keys().size());
+		key = null;
+		for(int i = 0; i < 50 && _cache.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, _cache.size());
+		Assert.assertTrue(_cache.keys().isEmpty());
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ExecutionBudgetTest {
+
+	@Test
+	public void wallTime() throws Exception {
+		final AtomicInteger interrupted = new AtomicInteger();
+		ExecutionBudget.Meter meter = new ExecutionBudget(50, 0).start();
+		try {
+			Assert.assertSame(meter, ExecutionBudget.current());
+			meter.addInterruptHandler(new Runnable() {
+				public void run() {
+					interrupted.incrementAndGet();
+				}
+			});
+			ExecutionBudget.checkCurrent();
+			for(int i = 0; i < 100 && !meter.isExceeded(); i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(meter.isExceeded());
+			Assert.assertEquals(1, interrupted.get());
+			try {
+				ExecutionBudget.checkCurrent();
+				Assert.fail();
+			} catch(ScriptBudgetExceededException e) {
+				Assert.assertEquals(ScriptBudgetExceededException.WALL_TIME,
+						e.getKind());
+				Assert.assertEquals(50L, e.getLimit());
+			}
+		} finally {
+			meter.stop();
+		}
+		Assert.assertNull(ExecutionBudget.current());
+		ExecutionBudget.checkCurrent();
+	}
+	
+	@Test
+	public void nested() throws Exception {
+		ExecutionBudget.Meter outer = new ExecutionBudget(30, 0).start();
+		try {
+			ExecutionBudget.Meter inner = new ExecutionBudget(10000, 0).start();
+			try {
+				for(int i = 0; i < 100 && !outer.isExceeded(); i++) {
+					Thread.sleep(10);
+				}
+				Assert.assertFalse(inner.isExceeded());
+				try {
+					inner.check();
+					Assert.fail();
+				} catch(ScriptBudgetExceededException e) {
+				}
+			} finally {
+				inner.stop();
+			}
+			Assert.assertSame(outer, ExecutionBudget.current());
+		} finally {
+			outer.stop();
+		}
+	}
+	
+	@Test
+	public void stopCancels() throws Exception {
+		ExecutionBudget.Meter meter = new ExecutionBudget(20, 0).start();
+		meter.stop();
+		Thread.sleep(60);
+		Assert.assertFalse(meter.isExceeded());
+	}
+	
+	@Test
+	public void stopUnregisters() throws Exception {
+		int active = ExecutionBudget.getActiveMeterCount();
+		for(int i = 0; i < 1000; i++) {
+			new ExecutionBudget(60000, 60000).start().stop();
+		}
+		Assert.assertEquals(active, ExecutionBudget.getActiveMeterCount());
+	}
+	
+	@Test
+	public void cpuTime() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads.isThreadCpuTimeSupported() == false
+				|| threads.isThreadCpuTimeEnabled() == false) {
+			return;
+		}
+		ExecutionBudget.Meter meter = new ExecutionBudget(0, 20).start();
+		try {
+			long end = System.currentTimeMillis() + 5000;
+			while(!meter.isExceeded() && System.currentTimeMillis() < end) {
+				Math.sqrt(end);
+			}
+			Assert.assertTrue(meter.isExceeded());
+			Assert.assertEquals(ScriptBudgetExceededException.CPU_TIME,
+					meter.createException().getKind());
+		} finally {
+			meter.stop();
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void negative() {
+		new ExecutionBudget(-1, 0);
+	}
+	
+}
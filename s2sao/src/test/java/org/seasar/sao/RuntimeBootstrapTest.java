@@ -0,0 +1,88 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class RuntimeBootstrapTest {
+
+	@Test
+	public void lazy() {
+		final AtomicInteger created = new AtomicInteger();
+		RuntimeBootstrap<String> bootstrap = new RuntimeBootstrap<String>("test") {
+			protected String create() {
+				created.incrementAndGet();
+				return "runtime";
+			}
+		};
+		Assert.assertFalse(bootstrap.isDone());
+		Assert.assertEquals(0, created.get());
+		Assert.assertEquals("runtime", bootstrap.get());
+		Assert.assertEquals("runtime", bootstrap.get());
+		bootstrap.start();
+		Assert.assertEquals(1, created.get());
+	}
+
+	@Test
+	public void background() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		RuntimeBootstrap<String> bootstrap = new RuntimeBootstrap<String>("test") {
+			protected String create() throws Exception {
+				created.incrementAndGet();
+				release.await();
+				return "runtime";
+			}
+		};
+		bootstrap.start();
+		bootstrap.start();
+		while(created.get() == 0) {
+			Thread.sleep(1);
+		}
+		Assert.assertFalse(bootstrap.isDone());
+		release.countDown();
+		Assert.assertEquals("runtime", bootstrap.get());
+		Assert.assertEquals(1, created.get());
+	}
+
+	@Test
+	public void failure() {
+		final AtomicInteger created = new AtomicInteger();
+		RuntimeBootstrap<String> bootstrap = new RuntimeBootstrap<String>("test") {
+			protected String create() throws Exception {
+				created.incrementAndGet();
+				throw new Exception("failed");
+			}
+		};
+		for(int i = 0; i < 2; i++) {
+			try {
+				bootstrap.get();
+				Assert.fail();
+			} catch(IllegalStateException e) {
+				Assert.assertEquals("failed", e.getCause().getMessage());
+			}
+		}
+		Assert.assertEquals(1, created.get());
+	}
+
+}
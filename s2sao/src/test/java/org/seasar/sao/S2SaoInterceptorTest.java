@@ -0,0 +1,339 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.lang.reflect.AccessibleObject;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class S2SaoInterceptorTest {
+
+	/**
+	 * スクリプトファイルの内容をそのままコンパイル結果とするエンジン。
+	 * 内容が"error"ならコンパイルに失敗する。
+	 */
+	@SuppressWarnings("serial")
+	private static class EchoScriptEngine implements ScriptEngine {
+
+		public ScriptSource getScriptSource(Class<?> sao) throws IOException {
+			return new ClasspathScriptRepository().getSource("reload.txt");
+		}
+
+		public Object compile(Class<?> sao) throws Throwable {
+			ScriptSource source = getScriptSource(sao);
+			if(source == null) {
+				return null;
+			}
+			return compile(source);
+		}
+
+		public Object compileInterruptible(ScriptSource source)
+				throws Throwable {
+			return compile(source);
+		}
+
+		public Object compile(ScriptSource source) throws Throwable {
+			String content = new String(source.getBytes());
+			if(content.equals("error")) {
+				throw new IllegalStateException(content);
+			}
+			return content;
+		}
+
+		public boolean hasFunction(Object compiled, Method method) {
+			return compiled != null;
+		}
+
+		public Object invoke(Object compiled, Method method, Object[] args,
+				Class<?> expectedClass) {
+			return compiled;
+		}
+
+		public Object getFunction(Object compiled, Method method) {
+			return compiled != null ? method.getName() : null;
+		}
+
+		public Object invokeFunction(Object compiled, Object function,
+				Object[] args, Class<?> expectedClass) {
+			return compiled;
+		}
+
+	}
+
+	/**
+	 * hashCode以外をスクリプトメソッドとして持つエンジン。
+	 * メソッドの解決と実行の回数を数える。
+	 */
+	@SuppressWarnings("serial")
+	private static class PartialScriptEngine implements ScriptEngine {
+
+		private int _functionCount;
+		private int _invokeCount;
+
+		public ScriptSource getScriptSource(Class<?> sao) {
+			return new MemoryScriptRepository().put("partial.txt",
+					"partial".getBytes());
+		}
+
+		public Object compile(Class<?> sao) {
+			return "partial";
+		}
+
+		public Object compile(ScriptSource source) {
+			return "partial";
+		}
+
+		public Object compileInterruptible(ScriptSource source) {
+			return "partial";
+		}
+
+		public boolean hasFunction(Object compiled, Method method) {
+			return getFunction(compiled, method) != null;
+		}
+
+		public Object invoke(Object compiled, Method method, Object[] args,
+				Class<?> expectedClass) {
+			return invokeFunction(compiled, method.getName(), args,
+					expectedClass);
+		}
+
+		public Object getFunction(Object compiled, Method method) {
+			_functionCount++;
+			if(method.getName().equals("hashCode")) {
+				return null;
+			}
+			return method.getName();
+		}
+
+		public Object invokeFunction(Object compiled, Object function,
+				Object[] args, Class<?> expectedClass) {
+			_invokeCount++;
+			return compiled;
+		}
+
+	}
+
+	/**
+	 * 元のメソッドの実行回数を数えるMethodInvocation。
+	 */
+	private static class CountingInvocation implements MethodInvocation {
+
+		private final Method _method;
+		private int _proceedCount;
+
+		CountingInvocation(Method method) {
+			_method = method;
+		}
+
+		public Method getMethod() {
+			return _method;
+		}
+
+		public Object[] getArguments() {
+			return new Object[0];
+		}
+
+		public Object proceed() {
+			_proceedCount++;
+			return "proceeded";
+		}
+
+		public Object getThis() {
+			return this;
+		}
+
+		public AccessibleObject getStaticPart() {
+			return _method;
+		}
+
+	}
+
+	private File _dir;
+	private File _file;
+	private ClassLoader _loader;
+	private S2SaoInterceptor _interceptor;
+
+	@Before
+	public void setUp() throws Exception {
+		_dir = File.createTempFile("s2sao", "");
+		_dir.delete();
+		_dir.mkdir();
+		_file = new File(_dir, "reload.txt");
+		_loader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(
+				new URLClassLoader(new URL[] {_dir.toURI().toURL()}, _loader));
+		_interceptor = new S2SaoInterceptor();
+		_interceptor.setScriptEngine(new EchoScriptEngine());
+	}
+
+	@After
+	public void tearDown() {
+		_interceptor.destroy();
+		Thread.currentThread().setContextClassLoader(_loader);
+		_file.delete();
+		_dir.delete();
+	}
+
+	private void write(String source, long lastModified) throws Exception {
+		FileOutputStream out = new FileOutputStream(_file);
+		try {
+			out.write(source.getBytes());
+		} finally {
+			out.close();
+		}
+		_file.setLastModified(lastModified);
+	}
+
+	@Test
+	public void reload() throws Throwable {
+		long now = System.currentTimeMillis() - 60000;
+		write("first", now);
+		_interceptor.setReloadInterval(60000);
+		Method method = Object.class.getMethod("toString");
+		InvocationPlan plan = _interceptor.getInvocationPlan(method);
+		Assert.assertEquals("first", plan.getCompiledScript());
+		_interceptor.checkForUpdates();
+		Assert.assertEquals(0L, _interceptor.getReloadCount());
+
+		write("second", now + 2000);
+		_interceptor.checkForUpdates();
+		Assert.assertEquals(1L, _interceptor.getReloadCount());
+		Assert.assertEquals("second", _interceptor.getCompiledScript(Object.class));
+		Assert.assertEquals("second",
+				_interceptor.getInvocationPlan(method).getCompiledScript());
+		Assert.assertEquals("first", plan.getCompiledScript());
+
+		// 内容が同じなら再コンパイルしない。
+		write("second", now + 4000);
+		_interceptor.checkForUpdates();
+		Assert.assertEquals(1L, _interceptor.getReloadCount());
+	}
+
+	@Test
+	public void keepOldOnFailure() throws Throwable {
+		long now = System.currentTimeMillis() - 60000;
+		write("first", now);
+		_interceptor.setReloadInterval(60000);
+		Assert.assertEquals("first", _interceptor.getCompiledScript(Object.class));
+
+		write("error", now + 2000);
+		_interceptor.checkForUpdates();
+		Assert.assertEquals(1L, _interceptor.getReloadFailureCount());
+		Assert.assertTrue(_interceptor.getLastReloadFailure()
+				instanceof IllegalStateException);
+		Assert.assertEquals("first", _interceptor.getCompiledScript(Object.class));
+
+		_file.delete();
+		_interceptor.checkForUpdates();
+		Assert.assertEquals("first", _interceptor.getCompiledScript(Object.class));
+		Assert.assertEquals(0L, _interceptor.getReloadCount());
+	}
+
+	@Test
+	public void proceed() throws Throwable {
+		PartialScriptEngine engine = new PartialScriptEngine();
+		_interceptor.setScriptEngine(engine);
+		_interceptor.setScriptRegistry(new ScriptRegistry());
+		Method hashCode = Object.class.getMethod("hashCode");
+		CountingInvocation invocation = new CountingInvocation(hashCode);
+		Assert.assertEquals("proceeded", _interceptor.invoke(invocation));
+		Assert.assertEquals("proceeded", _interceptor.invoke(invocation));
+		Assert.assertSame(InvocationPlan.PROCEED,
+				_interceptor.getInvocationPlan(hashCode));
+		Assert.assertEquals(2, invocation._proceedCount);
+		Assert.assertEquals(1, engine._functionCount);
+		Assert.assertEquals(0, engine._invokeCount);
+
+		CountingInvocation scripted = new CountingInvocation(
+				Object.class.getMethod("toString"));
+		Assert.assertEquals("partial", _interceptor.invoke(scripted));
+		Assert.assertEquals(0, scripted._proceedCount);
+		Assert.assertEquals(2, engine._functionCount);
+		Assert.assertEquals(1, engine._invokeCount);
+	}
+
+	@Test
+	public void planPerMethod() throws Throwable {
+		_interceptor.setScriptEngine(new PartialScriptEngine());
+		_interceptor.setScriptRegistry(new ScriptRegistry());
+		Method method = Object.class.getMethod("toString");
+		InvocationPlan plan = _interceptor.getInvocationPlan(method);
+		Assert.assertSame(plan, _interceptor.getInvocationPlan(method));
+		Assert.assertNull(plan.getBudget());
+		Assert.assertSame(InvocationPlan.AS_IS, plan.getArgumentConverter());
+
+		_interceptor.setWallTimeBudget(1000);
+		InvocationPlan budgeted = _interceptor.getInvocationPlan(method);
+		Assert.assertNotSame(plan, budgeted);
+		Assert.assertEquals(1000L, budgeted.getBudget().getWallTime());
+	}
+
+	@Test
+	public void spreadingVarargs() throws Throwable {
+		Method format = String.class.getMethod(
+				"format", String.class, Object[].class);
+		Assert.assertSame(InvocationPlan.AS_IS,
+				_interceptor.getArgumentConverter(format));
+		_interceptor.setSpreadingVarargs(true);
+		Assert.assertSame(InvocationPlan.SPREAD_VARARGS,
+				_interceptor.getArgumentConverter(format));
+		Assert.assertSame(InvocationPlan.AS_IS, _interceptor.getArgumentConverter(
+				Object.class.getMethod("toString")));
+		Object[] args = InvocationPlan.SPREAD_VARARGS.convert(
+				new Object[] {"%s%s", new Object[] {"a", "b"}});
+		Assert.assertEquals(3, args.length);
+		Assert.assertEquals("b", args[2]);
+	}
+
+	@Test
+	public void releaseUnloadedSao() throws Throwable {
+		_interceptor.setScriptEngine(new PartialScriptEngine());
+		_interceptor.setScriptRegistry(new ScriptRegistry());
+		_interceptor.setReloadInterval(60000);
+		URL location = getClass().getProtectionDomain()
+			.getCodeSource().getLocation();
+		ClassLoader loader = new URLClassLoader(new URL[] {location}, null);
+		Method method = loader.loadClass(
+				"org.seasar.sao.jruby.First").getMethod("name");
+		Assert.assertTrue(_interceptor.getInvocationPlan(method).isScripted());
+		Assert.assertEquals(1, _interceptor.getScriptCache().size());
+		WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>(loader);
+		loader = null;
+		method = null;
+		for(int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull(ref.get());
+		Assert.assertEquals(0, _interceptor.getScriptCache().size());
+	}
+
+}
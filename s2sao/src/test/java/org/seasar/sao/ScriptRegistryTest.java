@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptRegistryTest {
+
+	/**
+	 * 全てのSAOクラスを同じスクリプトファイルに束縛し、コンパイル回数を数えるエンジン。
+	 */
+	@SuppressWarnings("serial")
+	private static class CountingScriptEngine implements ScriptEngine {
+
+		private final MemoryScriptRepository _repository;
+		private final AtomicInteger _compileCount = new AtomicInteger();
+
+		CountingScriptEngine(MemoryScriptRepository repository) {
+			_repository = repository;
+		}
+
+		public ScriptSource getScriptSource(Class<?> sao) {
+			return _repository.getSource("shared.js");
+		}
+
+		public Object compile(Class<?> sao) throws Throwable {
+			return compile(getScriptSource(sao));
+		}
+
+		public Object compileInterruptible(ScriptSource source)
+				throws Throwable {
+			return compile(source);
+		}
+
+		public Object compile(ScriptSource source) throws Throwable {
+			_compileCount.incrementAndGet();
+			return new String(source.getBytes());
+		}
+
+		public boolean hasFunction(Object compiled, Method method) {
+			return true;
+		}
+
+		public Object invoke(Object compiled, Method method, Object[] args,
+				Class<?> expectedClass) {
+			return compiled;
+		}
+
+		public Object getFunction(Object compiled, Method method) {
+			return method.getName();
+		}
+
+		public Object invokeFunction(Object compiled, Object function,
+				Object[] args, Class<?> expectedClass) {
+			return compiled;
+		}
+
+	}
+
+	private ScriptRegistry _registry;
+	private MemoryScriptRepository _repository;
+
+	@Before
+	public void setUp() throws Exception {
+		_registry = new ScriptRegistry();
+		_repository = new MemoryScriptRepository();
+		_repository.put("shared.js", "first", "UTF-8");
+	}
+
+	private S2SaoInterceptor createInterceptor(ScriptEngine engine) {
+		S2SaoInterceptor interceptor = new S2SaoInterceptor();
+		interceptor.setScriptEngine(engine);
+		interceptor.setScriptRegistry(_registry);
+		return interceptor;
+	}
+
+	@Test
+	public void shared() throws Throwable {
+		CountingScriptEngine engine = new CountingScriptEngine(_repository);
+		S2SaoInterceptor first = createInterceptor(engine);
+		S2SaoInterceptor second = createInterceptor(engine);
+		Object compiled = first.getCompiledScript(Runnable.class);
+		Assert.assertEquals("first", compiled);
+		Assert.assertSame(compiled, first.getCompiledScript(Comparable.class));
+		Assert.assertSame(compiled, second.getCompiledScript(Runnable.class));
+		Assert.assertEquals(1, engine._compileCount.get());
+		Assert.assertEquals(1, _registry.size());
+		Assert.assertEquals(5L, _registry.getSourceBytes());
+		Assert.assertEquals(1L, _registry.getMissCount());
+		Assert.assertEquals(2L, _registry.getHitCount());
+		Assert.assertTrue(_registry.getReport().contains(
+				"CountingScriptEngine shared.js 5 bytes "));
+	}
+
+	@Test
+	public void perEngine() throws Throwable {
+		CountingScriptEngine engine = new CountingScriptEngine(_repository);
+		CountingScriptEngine other = new CountingScriptEngine(_repository);
+		createInterceptor(engine).getCompiledScript(Runnable.class);
+		createInterceptor(other).getCompiledScript(Runnable.class);
+		Assert.assertEquals(1, engine._compileCount.get());
+		Assert.assertEquals(1, other._compileCount.get());
+		Assert.assertEquals(2, _registry.size());
+	}
+
+	@Test
+	public void changed() throws Throwable {
+		CountingScriptEngine engine = new CountingScriptEngine(_repository);
+		createInterceptor(engine).getCompiledScript(Runnable.class);
+		_repository.put("shared.js", "second", "UTF-8");
+		Assert.assertEquals("second",
+				createInterceptor(engine).getCompiledScript(Runnable.class));
+		Assert.assertEquals(2, engine._compileCount.get());
+		Assert.assertEquals(1, _registry.size());
+		Assert.assertEquals(6L, _registry.getSourceBytes());
+	}
+
+	@Test
+	public void compilesHashedSource() throws Throwable {
+		CountingScriptEngine engine = new CountingScriptEngine(_repository);
+		ScriptSource source = engine.getScriptSource(Runnable.class);
+		_repository.put("shared.js", "second", "UTF-8");
+		Assert.assertEquals("first", _registry.compile(engine, source));
+		Assert.assertEquals("second", _registry.compile(
+				engine, engine.getScriptSource(Comparable.class)));
+		Assert.assertEquals(2, engine._compileCount.get());
+	}
+
+	@Test
+	public void olderDoesNotReplaceLatest() throws Throwable {
+		CountingScriptEngine engine = new CountingScriptEngine(_repository);
+		ScriptSource older = engine.getScriptSource(Runnable.class);
+		_repository.put("shared.js", "second", "UTF-8");
+		ScriptSource newer = engine.getScriptSource(Runnable.class);
+		Assert.assertEquals("second", _registry.compile(engine, newer));
+		// 古い内容のコンパイルが後から終わった場合。
+		Assert.assertEquals("first", _registry.compile(engine, older));
+		Assert.assertEquals(6L, _registry.getSourceBytes());
+		Assert.assertEquals("second", _registry.compile(engine, newer));
+		Assert.assertEquals(2, engine._compileCount.get());
+	}
+
+}
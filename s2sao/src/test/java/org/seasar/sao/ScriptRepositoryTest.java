@@ -0,0 +1,179 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptRepositoryTest {
+
+	private File _dir;
+
+	@Before
+	public void setUp() throws Exception {
+		_dir = File.createTempFile("s2sao", "");
+		_dir.delete();
+		_dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for(File file : _dir.listFiles()) {
+			file.delete();
+		}
+		_dir.delete();
+	}
+
+	private File write(String name, byte[] content, long lastModified)
+			throws Exception {
+		File file = new File(_dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		file.setLastModified(lastModified);
+		return file;
+	}
+
+	@Test
+	public void directory() throws Exception {
+		long now = System.currentTimeMillis() - 60000;
+		write("small.js", "small".getBytes(), now);
+		byte[] large = new byte[256 * 1024];
+		Arrays.fill(large, (byte) 'x');
+		write("large.js", large, now);
+		DirectoryScriptRepository repository =
+			new DirectoryScriptRepository(_dir.getPath());
+
+		ScriptSource small = repository.getSource("small.js");
+		Assert.assertEquals("small", new String(small.getBytes()));
+		Assert.assertEquals(ScriptEngineUtil.hash("small".getBytes()),
+				small.getHash());
+		Assert.assertEquals(now / 1000, small.getLastModified() / 1000);
+		Assert.assertFalse(small.isModified());
+
+		ScriptSource heap = repository.getSource("large.js");
+		Assert.assertFalse(heap.getContent().isDirect());
+		Assert.assertTrue(Arrays.equals(large, heap.getBytes()));
+		Assert.assertTrue(new File(_dir, "large.js").delete());
+		Assert.assertTrue(Arrays.equals(large, heap.getBytes()));
+
+		write("small.js", "changed".getBytes(), now + 2000);
+		Assert.assertTrue(small.isModified());
+		Assert.assertEquals("small", new String(small.getBytes()));
+		Assert.assertEquals("changed",
+				new String(repository.getSource("small.js").getBytes()));
+
+		Assert.assertNull(repository.getSource("missing.js"));
+		File outside = File.createTempFile("s2sao", ".js");
+		try {
+			Assert.assertNull(repository.getSource("../" + outside.getName()));
+		} finally {
+			outside.delete();
+		}
+	}
+
+	@Test
+	public void memory() throws Exception {
+		MemoryScriptRepository repository = new MemoryScriptRepository();
+		Assert.assertNull(repository.getSource("a.js"));
+		ScriptSource first = repository.put("a.js", "first", "UTF-8");
+		Assert.assertSame(first, repository.getSource("a.js"));
+		Assert.assertFalse(first.isModified());
+		ScriptSource second = repository.put("a.js", "second".getBytes());
+		Assert.assertTrue(first.isModified());
+		Assert.assertFalse(second.isModified());
+		Assert.assertFalse(first.getHash().equals(second.getHash()));
+		repository.remove("a.js");
+		Assert.assertTrue(second.isModified());
+	}
+
+	@Test
+	public void classpath() throws Exception {
+		ScriptRepository repository = new ClasspathScriptRepository();
+		ScriptSource source = repository.getSource("org/seasar/sao/rhino/Counter.js");
+		Assert.assertNotNull(source);
+		Assert.assertEquals("org/seasar/sao/rhino/Counter.js", source.getPath());
+		Assert.assertEquals(ScriptEngineUtil.hash(source.getBytes()), source.getHash());
+		Assert.assertFalse(source.isModified());
+		Assert.assertNull(repository.getSource("org/seasar/sao/missing.js"));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void scriptStream() throws Exception {
+		InputStream stream = ScriptEngineUtil.getScriptStream(
+				"org/seasar/sao/rhino/Counter.js");
+		try {
+			Assert.assertTrue(Arrays.equals(new ClasspathScriptRepository()
+					.getSource("org/seasar/sao/rhino/Counter.js").getBytes(),
+					ScriptEngineUtil.readFully(stream)));
+		} finally {
+			stream.close();
+		}
+		Assert.assertNull(ScriptEngineUtil.getScriptStream(
+				"org/seasar/sao/missing.js"));
+	}
+
+	private File writeJar(String name, String entry, byte[] content,
+			long lastModified) throws Exception {
+		File file = new File(_dir, name);
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			out.putNextEntry(new JarEntry(entry));
+			out.write(content);
+			out.closeEntry();
+		} finally {
+			out.close();
+		}
+		file.setLastModified(lastModified);
+		return file;
+	}
+
+	@Test
+	public void jar() throws Exception {
+		long now = System.currentTimeMillis() - 60000;
+		File jar = writeJar("scripts.jar", "a.js", "first".getBytes(), now);
+		ClassLoader loader = new URLClassLoader(
+				new URL[] { jar.toURI().toURL() }, null);
+		ScriptRepository repository = new ClasspathScriptRepository(loader);
+		ScriptSource source = repository.getSource("a.js");
+		Assert.assertEquals("first", new String(source.getBytes()));
+		Assert.assertEquals(now / 1000, source.getLastModified() / 1000);
+		Assert.assertFalse(source.isModified());
+		writeJar("scripts.jar", "a.js", "second".getBytes(), now + 2000);
+		Assert.assertTrue(source.isModified());
+		Assert.assertEquals("second",
+				new String(repository.getSource("a.js").getBytes()));
+	}
+
+}
@@ -0,0 +1,11 @@
+def count
+  counter.next
+end
+
+def inner
+  child.inner.next
+end
+
+def late
+  lateCounter.next
+end
@@ -0,0 +1,5 @@
+LABEL = "first"
+
+def name
+  LABEL
+end
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.jruby.RubyModule;
+import org.jruby.ast.Node;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+import org.seasar.sao.MemoryScriptRepository;
+import org.seasar.sao.S2SaoInterceptor;
+import org.seasar.sao.ScriptBudgetExceededException;
+import org.seasar.sao.ScriptRegistry;
+
+/**
+ * @author bowez
+ */
+public class JRubyScriptEngineTest {
+
+    S2Container container;
+    JRubyScriptEngine engine;
+    
+    @Before
+    public void setUp() {
+        container = new S2ContainerImpl();
+        engine = new JRubyScriptEngine(container);
+    }
+    
+    @Test
+    public void isolation() throws Throwable {
+        Object first = engine.compile(First.class);
+        Object second = engine.compile(Second.class);
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first", engine.invoke(first, method, new Object[0], String.class));
+        Assert.assertEquals("second", engine.invoke(second, method, new Object[0], String.class));
+        Assert.assertFalse(engine.getRuntime().getTopSelf().respondsTo("name"));
+    }
+    
+    @Test
+    public void astCache() throws Throwable {
+        engine.compile(First.class);
+        Node node = engine.astCache.get("org/seasar/sao/jruby/First.rb").node;
+        engine.compile(First.class);
+        Assert.assertSame(node, engine.astCache.get("org/seasar/sao/jruby/First.rb").node);
+        Assert.assertNotSame(node, engine.getNode(new MemoryScriptRepository().put(
+                "org/seasar/sao/jruby/First.rb", "def name\n  'changed'\nend\n".getBytes())));
+    }
+    
+    @Test
+    public void pooled() throws Throwable {
+        engine.setPoolSize(2);
+        Object first = engine.compile(First.class);
+        Object second = engine.compile(Second.class);
+        Assert.assertTrue(first instanceof PooledScript);
+        Method method = First.class.getMethod("name");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("first", engine.invoke(first, method, new Object[0], String.class));
+            Assert.assertEquals("second", engine.invoke(second, method, new Object[0], String.class));
+        }
+        RubyRuntimePool pool = engine.getPool();
+        Assert.assertEquals(2, pool.getIdleCount());
+        List<RubyRuntimePool.PooledRuntime> runtimes =
+            new ArrayList<RubyRuntimePool.PooledRuntime>(pool.idle);
+        Assert.assertNotSame(runtimes.get(0).ruby, runtimes.get(1).ruby);
+        Assert.assertNotSame(runtimes.get(0).scripts.get(first).self,
+                runtimes.get(1).scripts.get(first).self);
+        // プールモードでは共有のランタイムを作りません。
+        Assert.assertNull(engine.jRubyRuntime);
+    }
+    
+    @Test
+    public void function() throws Throwable {
+        Object first = engine.compile(First.class);
+        Method method = First.class.getMethod("name");
+        RubyFunction function = (RubyFunction) engine.getFunction(first, method);
+        Assert.assertNotNull(function.method);
+        Assert.assertEquals("first",
+                engine.invokeFunction(first, function, new Object[0], String.class));
+        Assert.assertNull(engine.getFunction(first, Object.class.getMethod("wait")));
+        
+        engine.setPoolSize(2);
+        Object pooled = engine.compile(First.class);
+        function = (RubyFunction) engine.getFunction(pooled, method);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("first",
+                    engine.invokeFunction(pooled, function, new Object[0], String.class));
+        }
+    }
+    
+    @Test
+    public void componentAccessors() throws Throwable {
+        container.register(RubyComponentUtilTest.Counter.class, "counter");
+        S2Container child = new S2ContainerImpl();
+        child.setNamespace("child");
+        child.register(RubyComponentUtilTest.Counter.class, "inner");
+        container.include(child);
+        Object compiled = engine.compile(Components.class);
+        RubyModule module = engine.getRuntime().getModule("S2Container");
+        Assert.assertTrue(module.getMethods().containsKey("counter"));
+        Assert.assertTrue(module.getMethods().containsKey("child"));
+        Assert.assertFalse(module.getMethods().containsKey("lateCounter"));
+        Assert.assertEquals(1L, engine.invoke(compiled,
+                Components.class.getMethod("count"), new Object[0], Long.class));
+        Assert.assertEquals(2L, engine.invoke(compiled,
+                Components.class.getMethod("count"), new Object[0], Long.class));
+        Assert.assertEquals(1L, engine.invoke(compiled,
+                Components.class.getMethod("inner"), new Object[0], Long.class));
+        container.register(RubyComponentUtilTest.Counter.class, "lateCounter");
+        Assert.assertEquals(1L, engine.invoke(compiled,
+                Components.class.getMethod("late"), new Object[0], Long.class));
+    }
+    
+    @Test
+    public void lazyBootstrap() throws Throwable {
+        Assert.assertNull(engine.jRubyRuntime);
+        engine.bootstrap();
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first",
+                engine.invoke(engine.compile(First.class), method, new Object[0], String.class));
+        Assert.assertSame(engine.bootstrap.get(), engine.getRuntime());
+    }
+    
+    @Test
+    public void budgetThroughInterceptor() throws Throwable {
+        S2SaoInterceptor interceptor = new S2SaoInterceptor();
+        interceptor.setScriptEngine(engine);
+        interceptor.setScriptRegistry(new ScriptRegistry());
+        final Method loop = Looper.class.getMethod("loop");
+        MethodInvocation invocation = new MethodInvocation() {
+            public Method getMethod() {
+                return loop;
+            }
+            public Object[] getArguments() {
+                return new Object[0];
+            }
+            public Object proceed() {
+                throw new IllegalStateException();
+            }
+            public Object getThis() {
+                return this;
+            }
+            public AccessibleObject getStaticPart() {
+                return loop;
+            }
+        };
+        long start = System.currentTimeMillis();
+        try {
+            interceptor.invoke(invocation);
+            Assert.fail();
+        } catch (ScriptBudgetExceededException e) {
+            Assert.assertEquals(ScriptBudgetExceededException.WALL_TIME, e.getKind());
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        Assert.assertEquals(1L, interceptor.getBudgetExceededCount());
+        // 打ち切った後も、同じスレッドでの上限の無い呼び出しは影響を受けない。
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first",
+                engine.invoke(engine.compile(First.class), method, new Object[0], String.class));
+    }
+    
+    @Test
+    public void lateInterrupt() throws Throwable {
+        Object first = engine.compile(First.class);
+        Method method = First.class.getMethod("name");
+        JRubyScriptEngine.BudgetInterrupter interrupter =
+            new JRubyScriptEngine.BudgetInterrupter(engine.getRuntime());
+        // 呼び出しが戻る間際に上限を超えた場合です。
+        interrupter.run();
+        interrupter.finish();
+        interrupter.run();
+        Assert.assertEquals("first", engine.invoke(first, method, new Object[0], String.class));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.runtime.Arity;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author bowez
+ */
+public class JavaComponentCallbackTest {
+
+    public static class Target {
+        public String add(int a, int b) {
+            return "int:" + (a + b);
+        }
+        public String add(double a, double b) {
+            return "double:" + (a + b);
+        }
+        public String add(String a, String b) {
+            return "string:" + a + b;
+        }
+        public String put(Object value) {
+            return "object";
+        }
+        public String put(CharSequence value) {
+            return "chars";
+        }
+    }
+    
+    JavaComponentCallback callback = new JavaComponentCallback(null, Arity.required(1));
+    
+    Object call(Object target, String name, Object... args) throws Exception {
+        JavaComponentCallback.Invoker invoker =
+            callback.getInvoker(target.getClass(), name, args);
+        Assert.assertNotNull(invoker.method);
+        return invoker.invoke(target, args);
+    }
+    
+    @Test
+    public void overload() throws Exception {
+        Target target = new Target();
+        Assert.assertEquals("int:3", call(target, "add", new Long(1), new Long(2)));
+        Assert.assertEquals("double:3.5", call(target, "add", new Double(1.5), new Double(2)));
+        Assert.assertEquals("string:ab", call(target, "add", "a", "b"));
+        Assert.assertEquals("chars", call(target, "put", "a"));
+        Assert.assertEquals("object", call(target, "put", new Long(1)));
+        Assert.assertEquals("object", call(target, "put", new Object[] {null}));
+    }
+    
+    @Test
+    public void noMethod() {
+        Assert.assertNull(callback.getInvoker(
+                Target.class, "add", new Object[] {new Long(1)}).method);
+        Assert.assertNull(callback.getInvoker(
+                Target.class, "remove", new Object[0]).method);
+    }
+    
+    @Test
+    public void callSite() {
+        Object[] args = new Object[] {new Long(1), new Long(2)};
+        Assert.assertSame(callback.getInvoker(Target.class, "add", args),
+                callback.getInvoker(Target.class, "add", args));
+    }
+    
+    @Test
+    public void leastRecentlyUsed() {
+        Object[] args = new Object[] {new Long(1), new Long(2)};
+        JavaComponentCallback.Invoker add = callback.getInvoker(Target.class, "add", args);
+        for (int i = 0; i < JavaComponentCallback.MAX_CALL_SITES * 2; i++) {
+            callback.getInvoker(Target.class, "missing" + i, new Object[0]);
+            Assert.assertSame(add, callback.getInvoker(Target.class, "add", args));
+        }
+        Assert.assertEquals(JavaComponentCallback.MAX_CALL_SITES, callback.callSites.size());
+    }
+    
+    @Test
+    public void accessible() throws Exception {
+        List<String> list = new ArrayList<String>();
+        Object iterator = list.iterator();
+        Assert.assertEquals(Boolean.FALSE, call(iterator, "hasNext"));
+    }
+
+}
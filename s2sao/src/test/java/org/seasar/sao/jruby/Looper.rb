@@ -0,0 +1,6 @@
+def loop
+  count = 0
+  while true
+    count += 1
+  end
+end
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jruby;
+
+import org.jruby.IRuby;
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.deployer.InstanceDefFactory;
+import org.seasar.framework.container.impl.ComponentDefImpl;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+
+/**
+ * @author bowez
+ */
+public class RubyComponentUtilTest {
+
+    public static class Counter {
+        int count;
+        
+        public int next() {
+            return ++count;
+        }
+    }
+    
+    IRuby runtime;
+    S2Container container;
+    
+    @Before
+    public void setUp() {
+        runtime = Ruby.getDefaultInstance();
+        container = new S2ContainerImpl();
+        container.register(Counter.class, "counter");
+        ComponentDef def = new ComponentDefImpl(Counter.class, "prototype");
+        def.setInstanceDef(InstanceDefFactory.PROTOTYPE);
+        container.register(def);
+    }
+    
+    @Test
+    public void singleton() {
+        IRubyObject counter =
+            RubyComponentUtil.convertComponentToRuby(runtime, container, "counter");
+        Assert.assertEquals("1", counter.callMethod("next").toString());
+        Assert.assertSame(counter,
+                RubyComponentUtil.convertComponentToRuby(runtime, container, "counter"));
+        Assert.assertEquals("2", counter.callMethod("next").toString());
+    }
+    
+    @Test
+    public void prototype() {
+        IRubyObject first =
+            RubyComponentUtil.convertComponentToRuby(runtime, container, "prototype");
+        IRubyObject second =
+            RubyComponentUtil.convertComponentToRuby(runtime, container, "prototype");
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.getMetaClass(), second.getMetaClass());
+        Assert.assertTrue(first.isKindOf(RubyComponentUtil.getComponentProxy(runtime)));
+        Assert.assertEquals("1", first.callMethod("next").toString());
+        Assert.assertEquals("1", second.callMethod("next").toString());
+    }
+
+}
@@ -0,0 +1,5 @@
+LABEL = "second"
+
+def name
+  LABEL
+end
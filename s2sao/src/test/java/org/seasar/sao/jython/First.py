@@ -0,0 +1,4 @@
+label = "first"
+
+def name():
+  return label
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyObject;
+import org.seasar.sao.MemoryScriptRepository;
+import org.seasar.sao.S2SaoInterceptor;
+import org.seasar.sao.ScriptBudgetExceededException;
+import org.seasar.sao.ScriptRegistry;
+import org.seasar.sao.ScriptSource;
+
+/**
+ * @author bowez
+ */
+public class JythonScriptEngineTest {
+
+    JythonScriptEngine engine;
+    
+    @Before
+    public void setUp() {
+        engine = new JythonScriptEngine();
+    }
+    
+    @Test
+    public void moduleNamespace() throws Throwable {
+        Object first = engine.compile(First.class);
+        Object second = engine.compile(Second.class);
+        Assert.assertNotSame(first, second);
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first", engine.invoke(first, method, new Object[0], String.class));
+        Assert.assertEquals("second", engine.invoke(second, method, new Object[0], String.class));
+        Assert.assertEquals("org.seasar.sao.jython.First",
+                ((PyObject) first).__finditem__("__name__").toString());
+    }
+    
+    @Test
+    public void codeCache() throws Throwable {
+        PyObject first = (PyObject) engine.compile(First.class);
+        JythonScriptEngine.CompiledCode cached =
+            engine.codeCache.get("org/seasar/sao/jython/First.py");
+        Assert.assertNotNull(cached);
+        PyObject again = (PyObject) engine.compile(First.class);
+        Assert.assertNotSame(first, again);
+        Assert.assertSame(cached, engine.codeCache.get("org/seasar/sao/jython/First.py"));
+        Assert.assertNotSame(first.__finditem__("name"), again.__finditem__("name"));
+        // 同じ内容なら、取得元が異なってもキャッシュしたコードを使う。
+        byte[] content = engine.getScriptSource(First.class).getBytes();
+        MemoryScriptRepository repository = new MemoryScriptRepository();
+        Assert.assertSame(cached.code, engine.getCode(repository.put(
+                "org/seasar/sao/jython/First.py", content)));
+        Assert.assertNotSame(cached.code, engine.getCode(repository.put(
+                "org/seasar/sao/jython/First.py",
+                "def name():\n  return 'changed'\n".getBytes())));
+    }
+
+    @Test
+    public void pooled() throws Throwable {
+        engine.setPoolSize(2);
+        Object compiled = engine.compile(First.class);
+        Assert.assertTrue(compiled instanceof PooledModule);
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first", engine.invoke(compiled, method, new Object[0], String.class));
+        PyInterpreterPool pool = engine.getPool();
+        Assert.assertEquals(2, pool.getIdleCount());
+        List<PyInterpreterPool.Interpreter> interpreters =
+            new ArrayList<PyInterpreterPool.Interpreter>(pool.idle);
+        PyObject first = interpreters.get(0).modules.get(compiled).dict;
+        PyObject second = interpreters.get(1).modules.get(compiled).dict;
+        Assert.assertNotSame(first, second);
+        Assert.assertNotSame(interpreters.get(0).systemState, interpreters.get(1).systemState);
+        Assert.assertSame(engine.getSystemState().modules, interpreters.get(0).systemState.modules);
+    }
+    
+    @Test
+    public void compileSource() throws Throwable {
+        ScriptSource source = new MemoryScriptRepository().put(
+                "org/example/shared.py", "name = __name__\n".getBytes());
+        PyObject module = (PyObject) engine.compile(source);
+        Assert.assertEquals("org.example.shared", module.__finditem__("name").toString());
+        Assert.assertEquals("org.example.shared", JythonScriptEngine.getModuleName("org/example/shared"));
+    }
+    
+    @Test
+    public void pooledNested() throws Throwable {
+        engine.setPoolSize(1);
+        PyInterpreterPool pool = engine.getPool();
+        PyInterpreterPool.Interpreter outer = pool.checkout();
+        PyInterpreterPool.Interpreter inner = pool.checkout();
+        Assert.assertSame(outer, inner);
+        Assert.assertEquals(0, pool.getIdleCount());
+        pool.checkin(inner);
+        Assert.assertEquals(0, pool.getIdleCount());
+        pool.checkin(outer);
+        Assert.assertEquals(1, pool.getIdleCount());
+    }
+    
+    @Test
+    public void lazyBootstrap() throws Throwable {
+        Assert.assertFalse(engine.bootstrap.isDone());
+        engine.bootstrap();
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first",
+                engine.invoke(engine.compile(First.class), method, new Object[0], String.class));
+        Assert.assertTrue(engine.bootstrap.isDone());
+    }
+    
+    @Test
+    public void budgetThroughInterceptor() throws Throwable {
+        S2SaoInterceptor interceptor = new S2SaoInterceptor();
+        interceptor.setScriptEngine(engine);
+        interceptor.setScriptRegistry(new ScriptRegistry());
+        final Method loop = Looper.class.getMethod("loop");
+        MethodInvocation invocation = new MethodInvocation() {
+            public Method getMethod() {
+                return loop;
+            }
+            public Object[] getArguments() {
+                return new Object[0];
+            }
+            public Object proceed() {
+                throw new IllegalStateException();
+            }
+            public Object getThis() {
+                return this;
+            }
+            public AccessibleObject getStaticPart() {
+                return loop;
+            }
+        };
+        long start = System.currentTimeMillis();
+        try {
+            interceptor.invoke(invocation);
+            Assert.fail();
+        } catch (ScriptBudgetExceededException e) {
+            Assert.assertEquals(ScriptBudgetExceededException.WALL_TIME, e.getKind());
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        Assert.assertEquals(1L, interceptor.getBudgetExceededCount());
+        // 打ち切った後も、同じスレッドでの上限の無い呼び出しは影響を受けない。
+        Method method = First.class.getMethod("name");
+        Assert.assertEquals("first",
+                engine.invoke(engine.compile(First.class), method, new Object[0], String.class));
+    }
+
+}
@@ -0,0 +1,4 @@
+def loop():
+  count = 0
+  while 1:
+    count += 1
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.jython;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.core.PySystemState;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.deployer.InstanceDefFactory;
+import org.seasar.framework.container.impl.ComponentDefImpl;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+
+/**
+ * @author bowez
+ */
+public class PyContainerStringMapTest {
+
+    S2ContainerImpl container;
+    PyContainerStringMap map;
+    
+    @Before
+    public void setUp() {
+        PySystemState.initialize();
+        container = new S2ContainerImpl();
+        container.register(StringBuffer.class, "singleton");
+        ComponentDefImpl def = new ComponentDefImpl(StringBuilder.class, "prototype");
+        def.setInstanceDef(InstanceDefFactory.PROTOTYPE);
+        container.register(def);
+        map = new PyContainerStringMap(container);
+    }
+    
+    @Test
+    public void item() {
+        PyObject value = Py.newString("value");
+        map.__setitem__("local", value);
+        Assert.assertSame(value, map.__finditem__(new String("local")));
+        Assert.assertSame(value, map.__finditem__(Py.newString("local")));
+        Assert.assertEquals(1, map.__len__());
+        map.__delitem__(new String("local"));
+        Assert.assertNull(map.__finditem__("local"));
+        Assert.assertEquals(0, map.__len__());
+    }
+    
+    @Test
+    public void singleton() {
+        PyObject first = map.__finditem__("singleton");
+        Assert.assertTrue(first.__tojava__(Object.class) instanceof StringBuffer);
+        Assert.assertSame(first, map.__finditem__(new String("singleton")));
+        Assert.assertEquals(0, map.__len__());
+    }
+    
+    @Test
+    public void prototype() {
+        Object first = map.__finditem__("prototype").__tojava__(Object.class);
+        Assert.assertTrue(first instanceof StringBuilder);
+        Assert.assertNotSame(first, map.__finditem__("prototype").__tojava__(Object.class));
+    }
+    
+    @Test
+    public void instance() {
+        S2ContainerImpl child = new S2ContainerImpl();
+        child.setNamespace("child");
+        container.include(child);
+        PyObject first = map.__finditem__("child");
+        Assert.assertTrue(first instanceof PyContainerWrapper);
+        Assert.assertSame(first, map.__finditem__("child"));
+    }
+    
+    @Test
+    public void notComponent() {
+        Assert.assertNull(map.__finditem__("len"));
+        Assert.assertTrue(map.index.bindings.containsKey("len"));
+        container.register(Object.class, "len");
+        // 記録済みの名前は次の呼び出しの開始時まで確かめません。
+        Assert.assertNull(map.__finditem__("len"));
+        map.validate();
+        Assert.assertNotNull(map.__finditem__("len"));
+    }
+    
+    @Test
+    public void replaced() {
+        ReplaceableContainer replaceable = new ReplaceableContainer();
+        replaceable.register(StringBuffer.class, "first");
+        PyContainerStringMap replaceableMap = new PyContainerStringMap(replaceable);
+        Assert.assertNotNull(replaceableMap.__finditem__("first"));
+        Assert.assertNull(replaceableMap.__finditem__("second"));
+        replaceable.replace(0, new ComponentDefImpl(StringBuilder.class, "second"));
+        Assert.assertEquals(1, replaceable.getComponentDefSize());
+        replaceableMap.validate();
+        Assert.assertNull(replaceableMap.__finditem__("first"));
+        PyObject second = replaceableMap.__finditem__("second");
+        Assert.assertTrue(second.__tojava__(Object.class) instanceof StringBuilder);
+    }
+    
+    /**
+     * S2ContainerImplには登録の削除が無いため、同じ数のまま
+     * ComponentDefを入れ替えて削除の後の追加を再現します。
+     */
+    static class ReplaceableContainer extends S2ContainerImpl {
+        final List<ComponentDef> defs = new ArrayList<ComponentDef>();
+        
+        public void register(ComponentDef componentDef) {
+            componentDef.setContainer(this);
+            defs.add(componentDef);
+        }
+        
+        public void register(Class componentClass, String componentName) {
+            register(new ComponentDefImpl(componentClass, componentName));
+        }
+        
+        void replace(int index, ComponentDef componentDef) {
+            componentDef.setContainer(this);
+            defs.set(index, componentDef);
+        }
+        
+        public int getComponentDefSize() {
+            return defs.size();
+        }
+        
+        public ComponentDef getComponentDef(int index) {
+            return defs.get(index);
+        }
+        
+        public boolean hasComponentDef(Object componentKey) {
+            return find(componentKey) != null;
+        }
+        
+        public ComponentDef getComponentDef(Object componentKey) {
+            return find(componentKey);
+        }
+        
+        ComponentDef find(Object componentKey) {
+            for (ComponentDef def : defs) {
+                if (componentKey.equals(def.getComponentName())) {
+                    return def;
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,4 @@
+label = "second"
+
+def name():
+  return label
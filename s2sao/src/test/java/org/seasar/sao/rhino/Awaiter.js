@@ -0,0 +1,17 @@
+function load(value) {
+	var result;
+	try {
+		result = suspend(value);
+	} catch(e) {
+		result = -1;
+	}
+	return result;
+}
+
+function twice(value) {
+	return load(value) * 2;
+}
+
+function twiceNow(value) {
+	return twice(value);
+}
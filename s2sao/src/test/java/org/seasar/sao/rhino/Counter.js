@@ -0,0 +1,7 @@
+function increment() {
+	if(typeof count == "undefined") {
+		count = 0;
+	}
+	count++;
+	return count;
+}
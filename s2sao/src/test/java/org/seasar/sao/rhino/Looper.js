@@ -0,0 +1,10 @@
+function loop() {
+	var i = 0;
+	while(true) {
+		try {
+			i++;
+		} catch(e) {
+		}
+	}
+	return i;
+}
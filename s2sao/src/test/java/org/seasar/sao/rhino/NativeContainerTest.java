@@ -0,0 +1,162 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Scriptable;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.deployer.InstanceDefFactory;
+import org.seasar.framework.container.impl.ComponentDefImpl;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class NativeContainerTest {
+
+	private S2ContainerImpl _container;
+	private NativeContainer _native;
+	
+	@Before
+	public void setUp() {
+		_container = new S2ContainerImpl();
+		_container.register(StringBuffer.class, "singleton");
+		ComponentDefImpl def = new ComponentDefImpl(StringBuilder.class, "prototype");
+		def.setInstanceDef(InstanceDefFactory.PROTOTYPE);
+		_container.register(def);
+		_native = new NativeContainer(_container);
+	}
+	
+	@Test
+	public void singleton() {
+		Object first = _native.get("singleton", _native);
+		Assert.assertTrue(first instanceof StringBuffer);
+		Assert.assertSame(first, _native.get("singleton", _native));
+		Assert.assertTrue(_native.has("singleton", _native));
+	}
+	
+	@Test
+	public void prototype() {
+		Object first = _native.get("prototype", _native);
+		Assert.assertTrue(first instanceof StringBuilder);
+		Assert.assertNotSame(first, _native.get("prototype", _native));
+	}
+	
+	@Test
+	public void instance() {
+		S2ContainerImpl child = new S2ContainerImpl();
+		child.setNamespace("child");
+		_container.include(child);
+		Object first = _native.get("child", _native);
+		Assert.assertSame(child, first);
+		Assert.assertSame(first, _native.get("child", _native));
+	}
+	
+	@Test
+	public void notComponent() {
+		Assert.assertSame(Scriptable.NOT_FOUND, _native.get("unknown", _native));
+		Assert.assertFalse(_native.has("unknown", _native));
+		_container.register(Object.class, "unknown");
+		// 記録済みの名前は次の呼び出しの開始時まで確かめない。
+		Assert.assertFalse(_native.has("unknown", _native));
+		_native.validate();
+		Assert.assertTrue(_native.has("unknown", _native));
+		Assert.assertNotNull(_native.get("unknown", _native));
+	}
+	
+	@Test
+	public void getIds() {
+		Object[] ids = _native.getIds();
+		Assert.assertEquals(2, ids.length);
+		Assert.assertEquals("singleton", ids[0]);
+		ids[0] = "overwritten";
+		Assert.assertEquals("singleton", _native.getIds()[0]);
+		_container.register(Object.class, "added");
+		ids = _native.getIds();
+		Assert.assertEquals(3, ids.length);
+		Assert.assertEquals("added", ids[2]);
+	}
+	
+	@Test
+	public void replaced() {
+		ReplaceableContainer container = new ReplaceableContainer();
+		container.register(StringBuffer.class, "first");
+		NativeContainer nativeContainer = new NativeContainer(container);
+		Assert.assertTrue(nativeContainer.get("first", nativeContainer) instanceof StringBuffer);
+		Assert.assertSame(Scriptable.NOT_FOUND, nativeContainer.get("second", nativeContainer));
+		container.replace(0, new ComponentDefImpl(StringBuilder.class, "second"));
+		Assert.assertEquals(1, container.getComponentDefSize());
+		nativeContainer.validate();
+		Assert.assertSame(Scriptable.NOT_FOUND, nativeContainer.get("first", nativeContainer));
+		Assert.assertTrue(nativeContainer.get("second", nativeContainer) instanceof StringBuilder);
+		Assert.assertEquals("second", nativeContainer.getIds()[0]);
+	}
+	
+	/**
+	 * S2ContainerImplは登録の削除を持たないので、削除の後の追加を
+	 * 同じ数のままComponentDefを入れ替えることで再現する。
+	 */
+	private static class ReplaceableContainer extends S2ContainerImpl {
+
+		private List<ComponentDef> _defs = new ArrayList<ComponentDef>();
+
+		public void register(ComponentDef componentDef) {
+			componentDef.setContainer(this);
+			_defs.add(componentDef);
+		}
+
+		public void register(Class componentClass, String componentName) {
+			register(new ComponentDefImpl(componentClass, componentName));
+		}
+
+		void replace(int index, ComponentDef componentDef) {
+			componentDef.setContainer(this);
+			_defs.set(index, componentDef);
+		}
+
+		public int getComponentDefSize() {
+			return _defs.size();
+		}
+
+		public ComponentDef getComponentDef(int index) {
+			return _defs.get(index);
+		}
+
+		public boolean hasComponentDef(Object componentKey) {
+			return find(componentKey) != null;
+		}
+
+		public ComponentDef getComponentDef(Object componentKey) {
+			return find(componentKey);
+		}
+
+		private ComponentDef find(Object componentKey) {
+			for(ComponentDef def : _defs) {
+				if(componentKey.equals(def.getComponentName())) {
+					return def;
+				}
+			}
+			return null;
+		}
+
+	}
+	
+}
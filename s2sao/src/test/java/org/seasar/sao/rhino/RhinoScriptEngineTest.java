@@ -1,55 +1,500 @@
-/*
- * Copyright 2004-2006 the Seasar Foundation and the Others.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
- * either express or implied. See the License for the specific language
- * governing permissions and limitations under the License.
- */
-package org.seasar.sao.rhino;
-
-import java.lang.reflect.Method;
-
-import org.junit.Assert;
-import org.junit.Before;
-import org.junit.Test;
-import org.seasar.sao.rhino.RhinoScriptEngine;
-import org.seasar.sao.sample.Dummy;
-import org.seasar.sao.sample.Speaker;
-
-/**
- * @author Masataka Kurihara (Gluegent,Inc.)
- */
-public class RhinoScriptEngineTest {
-
-	private RhinoScriptEngine _engine;
-	
-	@Before
-	public void setUp() {
-		_engine = new RhinoScriptEngine();
-	}
-	
-	@Test
-	public void getScriptFilePath() {
-		Assert.assertEquals("org/seasar/sao/sample/Speaker.js",
-				_engine.getScriptFilePath(Speaker.class));
-		Assert.assertEquals("org/seasar/sao/sample/Speaker.js",
-				_engine.getScriptFilePath(Dummy.class));
-	}
-	
-	@Test
-	public void getScriptMethodName() throws Exception {
-		Method say = Speaker.class.getMethod("say", String.class);
-		Assert.assertEquals("say", _engine.getScriptMethodName(say));
-		Method greeting = Speaker.class.getMethod("greeting");
-		Assert.assertEquals("hello", _engine.getScriptMethodName(greeting));
-	}
-	
-}
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.seasar.sao.ExecutionBudget;
+import org.seasar.sao.MemoryScriptRepository;
+import org.seasar.sao.S2SaoInterceptor;
+import org.seasar.sao.ScriptBudgetExceededException;
+import org.seasar.sao.ScriptFuture;
+import org.seasar.sao.ScriptRegistry;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.Scriptable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+import org.seasar.sao.rhino.RhinoScriptEngine;
+import org.seasar.sao.sample.Dummy;
+import org.seasar.sao.sample.Speaker;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class RhinoScriptEngineTest {
+
+	private RhinoScriptEngine _engine;
+	
+	@Before
+	public void setUp() {
+		_engine = new RhinoScriptEngine();
+	}
+	
+	@After
+	public void tearDown() {
+		_engine.destroy();
+	}
+	
+	@Test
+	public void getScriptFilePath() {
+		Assert.assertEquals("org/seasar/sao/sample/Speaker.js",
+				_engine.getScriptFilePath(Speaker.class));
+		Assert.assertEquals("org/seasar/sao/sample/Speaker.js",
+				_engine.getScriptFilePath(Dummy.class));
+	}
+	
+	@Test
+	public void getScriptMethodName() throws Exception {
+		Method say = Speaker.class.getMethod("say", String.class);
+		Assert.assertEquals("say", _engine.getScriptMethodName(say));
+		Method greeting = Speaker.class.getMethod("greeting");
+		Assert.assertEquals("hello", _engine.getScriptMethodName(greeting));
+	}
+	
+	@Test
+	public void getFunction() throws Throwable {
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Speaker.class);
+		Method greeting = Speaker.class.getMethod("greeting");
+		Object function = _engine.getFunction(compiled, greeting);
+		Assert.assertNotNull(function);
+		Assert.assertEquals("hello!", _engine.invokeFunction(
+				compiled, function, new Object[0], String.class));
+		Method toString = Object.class.getMethod("toString");
+		Assert.assertNull(_engine.getFunction(compiled, toString));
+	}
+	
+	@Test
+	public void enterReusesThreadContext() {
+		Context first = _engine.enter();
+		Context.exit();
+		Context second = _engine.enter();
+		try {
+			Assert.assertSame(first, second);
+			Assert.assertSame(second, _engine.enter());
+			Context.exit();
+			Assert.assertTrue(second.getWrapFactory() instanceof S2WrapFactory);
+		} finally {
+			Context.exit();
+		}
+		Assert.assertNull(Context.getCurrentContext());
+	}
+	
+	@Test
+	public void compileProfile() throws Throwable {
+		_engine.setOptimizationLevel(9);
+		_engine.setGeneratingDebug(false);
+		_engine.setGeneratingSource(false);
+		Context cx = _engine.enter();
+		try {
+			Assert.assertEquals(9, cx.getOptimizationLevel());
+			Assert.assertFalse(cx.isGeneratingDebug());
+			Assert.assertFalse(cx.isGeneratingSource());
+		} finally {
+			Context.exit();
+		}
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Speaker.class);
+		Method greeting = Speaker.class.getMethod("greeting");
+		Assert.assertEquals("hello!", _engine.invoke(
+				compiled, greeting, new Object[0], String.class));
+	}
+	
+	@Test
+	public void tiering() throws Throwable {
+		_engine.setOptimizationLevel(9);
+		_engine.setGeneratingSource(false);
+		_engine.setTieringThreshold(3);
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable compiled = (Scriptable) _engine.compile(Speaker.class);
+		Method greeting = Speaker.class.getMethod("greeting");
+		RhinoFunction function =
+			(RhinoFunction) _engine.getFunction(compiled, greeting);
+		Object interpreted = function.getFunction();
+		for(int i = 0; i < 3; i++) {
+			Assert.assertEquals("hello!", _engine.invokeFunction(
+					compiled, function, new Object[0], String.class));
+		}
+		for(int i = 0; i < 100 && !function.isPromoted(); i++) {
+			Thread.sleep(50);
+		}
+		Assert.assertTrue(function.isPromoted());
+		Assert.assertNotSame(interpreted, function.getFunction());
+		Assert.assertFalse(interpreted.getClass()
+				== function.getFunction().getClass());
+		Assert.assertSame(function.getFunction(),
+				compiled.get("hello", compiled));
+		Assert.assertEquals("hello!", _engine.invokeFunction(
+				compiled, function, new Object[0], String.class));
+		try {
+			compiled.put("hello", compiled, "modified");
+			Assert.fail();
+		} catch(EvaluatorException e) {
+		}
+		ExecutorService executor = _engine.getTieringExecutor();
+		_engine.destroy();
+		Assert.assertTrue(executor.isShutdown());
+	}
+	
+	private void awaitPromotion(RhinoFunction function)
+			throws InterruptedException {
+		for(int i = 0; i < 100 && !function.isPromoted(); i++) {
+			Thread.sleep(50);
+		}
+		Assert.assertTrue(function.isPromoted());
+	}
+
+	@Test
+	public void tieringKeepsLineNumbers() throws Throwable {
+		MemoryScriptRepository repository = new MemoryScriptRepository();
+		repository.put("org/seasar/sao/rhino/Counter.js",
+				"var label = 'counter';\n\n"
+				+ "function increment() { if(label) {\n"
+				+ "  throw 'boom';\n"
+				+ "} }\n"
+				+ "function other() { return '}'; }\n", "UTF-8");
+		_engine.setScriptRepository(repository);
+		_engine.setOptimizationLevel(9);
+		_engine.setTieringThreshold(1);
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable compiled = (Scriptable) _engine.compile(Counter.class);
+		RhinoFunction function = (RhinoFunction) _engine.getFunction(
+				compiled, Counter.class.getMethod("increment"));
+		Object interpreted = function.getFunction();
+		try {
+			_engine.invokeFunction(compiled, function, new Object[0],
+					Integer.TYPE);
+			Assert.fail();
+		} catch(JavaScriptException e) {
+			Assert.assertEquals(4, e.lineNumber());
+		}
+		awaitPromotion(function);
+		Assert.assertNotSame(interpreted, function.getFunction());
+		try {
+			_engine.invokeFunction(compiled, function, new Object[0],
+					Integer.TYPE);
+			Assert.fail();
+		} catch(JavaScriptException e) {
+			Assert.assertEquals(4, e.lineNumber());
+			Assert.assertEquals("org/seasar/sao/rhino/Counter.js",
+					e.sourceName());
+		}
+	}
+
+	@Test
+	public void tieringCountsPerFunction() throws Throwable {
+		_engine.setOptimizationLevel(9);
+		_engine.setTieringThreshold(3);
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable compiled = (Scriptable) _engine.compile(Speaker.class);
+		Method greeting = Speaker.class.getMethod("greeting");
+		// 同じスクリプトメソッドに束縛された、2つのSAOメソッドのハンドル
+		RhinoFunction first =
+			(RhinoFunction) _engine.getFunction(compiled, greeting);
+		RhinoFunction second =
+			(RhinoFunction) _engine.getFunction(compiled, greeting);
+		_engine.invokeFunction(compiled, first, new Object[0], String.class);
+		_engine.invokeFunction(compiled, first, new Object[0], String.class);
+		_engine.invokeFunction(compiled, second, new Object[0], String.class);
+		awaitPromotion(second);
+		Assert.assertFalse(first.isPromoted());
+		Assert.assertEquals("hello!", _engine.invokeFunction(
+				compiled, first, new Object[0], String.class));
+		Assert.assertTrue(first.isPromoted());
+		Assert.assertSame(second.getFunction(), first.getFunction());
+	}
+
+	private Object evaluate(Scriptable scope, String source) {
+		Context cx = _engine.enter();
+		try {
+			return cx.evaluateString(scope, source, "test", 1, null);
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	@Test
+	public void sharedScope() throws Throwable {
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable speaker = (Scriptable) _engine.compile(Speaker.class);
+		Scriptable dummy = (Scriptable) _engine.compile(Dummy.class);
+		Assert.assertNotSame(speaker, dummy);
+		Assert.assertSame(speaker.getPrototype().getPrototype(),
+				dummy.getPrototype().getPrototype());
+		Assert.assertFalse(speaker.has("Object", speaker));
+		Assert.assertEquals(new Double(2),
+				evaluate(speaker, "Math.max(1, 2)"));
+		Assert.assertEquals("ABC", evaluate(dummy, "'abc'.toUpperCase()"));
+		Assert.assertEquals("undefined", evaluate(speaker, "typeof noSuchName"));
+		Assert.assertEquals("a", Context.toString(evaluate(speaker,
+				"new java.lang.StringBuffer('a').toString()")));
+	}
+	
+	@Test
+	public void adapterClassCache() throws Throwable {
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable speaker = (Scriptable) _engine.compile(Speaker.class);
+		Scriptable dummy = (Scriptable) _engine.compile(Dummy.class);
+		String source = "new java.lang.Runnable({ run: function() {} })";
+		Object first = Context.jsToJava(evaluate(speaker, source), Object.class);
+		Object second = Context.jsToJava(evaluate(speaker, source), Object.class);
+		Object third = Context.jsToJava(evaluate(dummy, source), Object.class);
+		Assert.assertNotSame(first, second);
+		Assert.assertSame(first.getClass(), second.getClass());
+		Assert.assertSame(first.getClass(), third.getClass());
+		Assert.assertNotNull(_engine.getClassCache());
+	}
+	
+	@Test
+	public void executionBudget() throws Throwable {
+		_engine.setOptimizationLevel(-1);
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Looper.class);
+		Method loop = Looper.class.getMethod("loop");
+		ExecutionBudget.Meter meter = new ExecutionBudget(100, 0).start();
+		try {
+			_engine.invoke(compiled, loop, new Object[0], int.class);
+			Assert.fail();
+		} catch(ScriptBudgetExceededException e) {
+			Assert.assertTrue(meter.isExceeded());
+		} finally {
+			meter.stop();
+		}
+	}
+	
+	@Test
+	public void executionBudgetCompiled() throws Throwable {
+		// 既定の最適化レベルでも、上限付きのSAOはインタプリタモードでロードする。
+		_engine.setContainer(new S2ContainerImpl());
+		S2SaoInterceptor interceptor = new S2SaoInterceptor();
+		interceptor.setScriptEngine(_engine);
+		interceptor.setScriptRegistry(new ScriptRegistry());
+		final Method loop = Looper.class.getMethod("loop");
+		MethodInvocation invocation = new MethodInvocation() {
+			public Method getMethod() {
+				return loop;
+			}
+			public Object[] getArguments() {
+				return new Object[0];
+			}
+			public Object proceed() {
+				throw new IllegalStateException();
+			}
+			public Object getThis() {
+				return this;
+			}
+			public AccessibleObject getStaticPart() {
+				return loop;
+			}
+		};
+		long start = System.currentTimeMillis();
+		try {
+			interceptor.invoke(invocation);
+			Assert.fail();
+		} catch(ScriptBudgetExceededException e) {
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+		Assert.assertEquals(1L, interceptor.getBudgetExceededCount());
+		
+		// 上限の無いSAOは従来どおり最適化レベルに従う。
+		Assert.assertTrue(((SaoGlobalScope) _engine.compileInterruptible(
+				_engine.getScriptSource(Looper.class))).isInterpretedOnly());
+		Assert.assertFalse(((SaoGlobalScope) _engine.compile(
+				Speaker.class)).isInterpretedOnly());
+	}
+	
+	private FutureTask<Object> value(final Object value) {
+		return new FutureTask<Object>(new Callable<Object>() {
+			public Object call() throws Exception {
+				if(value instanceof Exception) {
+					throw (Exception) value;
+				}
+				return value;
+			}
+		});
+	}
+	
+	@Test
+	public void async() throws Throwable {
+		_engine.setAsyncEnabled(true);
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Awaiter.class);
+		Method twice = Awaiter.class.getMethod("twice", Future.class);
+		FutureTask<Object> task = value(new Integer(21));
+		Future<?> result = (Future<?>) _engine.invoke(
+				compiled, twice, new Object[] { task }, Future.class);
+		Assert.assertTrue(result instanceof ScriptFuture);
+		Assert.assertFalse(result.isDone());
+		task.run();
+		Assert.assertEquals(new Double(42), result.get(5, TimeUnit.SECONDS));
+		task = value(new IllegalStateException());
+		result = (Future<?>) _engine.invoke(
+				compiled, twice, new Object[] { task }, Future.class);
+		task.run();
+		Assert.assertEquals(new Double(-2), result.get(5, TimeUnit.SECONDS));
+		result = (Future<?>) _engine.invoke(compiled, twice,
+				new Object[] { ScriptFuture.completed(new Integer(1)) },
+				Future.class);
+		Assert.assertTrue(result.isDone());
+		Assert.assertEquals(new Double(2), result.get());
+	}
+	
+	@Test
+	public void asyncPollsOnlyWhileWaiting() throws Throwable {
+		_engine.setAsyncEnabled(true);
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Awaiter.class);
+		AsyncSupport support = _engine.getAsyncSupport();
+		Assert.assertFalse(support.isPolling());
+		Method twice = Awaiter.class.getMethod("twice", Future.class);
+		FutureTask<Object> task = value(new Integer(21));
+		Future<?> result = (Future<?>) _engine.invoke(
+				compiled, twice, new Object[] { task }, Future.class);
+		Assert.assertTrue(support.isPolling());
+		task.run();
+		Assert.assertEquals(new Double(42), result.get(5, TimeUnit.SECONDS));
+		long limit = System.currentTimeMillis() + 5000;
+		while(support.isPolling() && System.currentTimeMillis() < limit) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(support.isPolling());
+		result = (Future<?>) _engine.invoke(compiled, twice,
+				new Object[] { value(new Integer(1)) }, Future.class);
+		Assert.assertTrue(support.isPolling());
+		_engine.destroy();
+		Assert.assertTrue(support.isShutdown());
+		Assert.assertFalse(support.isPolling());
+		Assert.assertTrue(result.isCancelled());
+	}
+	
+	@Test
+	public void asyncBlocking() throws Throwable {
+		_engine.setAsyncEnabled(true);
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Awaiter.class);
+		Method twiceNow = Awaiter.class.getMethod("twiceNow", Future.class);
+		final ScriptFuture future = new ScriptFuture();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						Thread.sleep(50);
+					} catch(InterruptedException e) {
+					}
+					future.complete(new Integer(5));
+				}
+			});
+			Assert.assertEquals(new Integer(10), _engine.invoke(compiled,
+					twiceNow, new Object[] { future }, int.class));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private Object increment(Object compiled) throws Throwable {
+		Method increment = Counter.class.getMethod("increment");
+		return _engine.invoke(compiled, increment, new Object[0], int.class);
+	}
+	
+	@Test
+	public void concurrencyShared() throws Throwable {
+		_engine.setContainer(new S2ContainerImpl());
+		Object compiled = _engine.compile(Counter.class);
+		try {
+			increment(compiled);
+			Assert.fail();
+		} catch(EvaluatorException e) {
+		}
+	}
+	
+	@Test
+	public void concurrencyInvocation() throws Throwable {
+		_engine.setConcurrencyMode(RhinoScriptEngine.CONCURRENCY_INVOCATION);
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable compiled = (Scriptable) _engine.compile(Counter.class);
+		Assert.assertEquals(new Integer(1), increment(compiled));
+		Assert.assertEquals(new Integer(1), increment(compiled));
+		Assert.assertFalse(compiled.has("count", compiled));
+	}
+	
+	@Test
+	public void concurrencyThread() throws Throwable {
+		_engine.setConcurrencyMode(RhinoScriptEngine.CONCURRENCY_THREAD);
+		_engine.setContainer(new S2ContainerImpl());
+		final Scriptable compiled = (Scriptable) _engine.compile(Counter.class);
+		Assert.assertEquals(new Integer(1), increment(compiled));
+		Assert.assertEquals(new Integer(2), increment(compiled));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Object other = executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					try {
+						return increment(compiled);
+					} catch(Exception e) {
+						throw e;
+					} catch(Throwable t) {
+						throw new RuntimeException(t);
+					}
+				}
+			}).get();
+			Assert.assertEquals(new Integer(1), other);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(new Integer(3), increment(compiled));
+		Assert.assertFalse(compiled.has("count", compiled));
+	}
+	
+	@Test
+	public void concurrencyThreadReleasesReplacedGlobal() throws Throwable {
+		_engine.setConcurrencyMode(RhinoScriptEngine.CONCURRENCY_THREAD);
+		_engine.setContainer(new S2ContainerImpl());
+		Scriptable compiled = (Scriptable) _engine.compile(Counter.class);
+		Assert.assertEquals(new Integer(1), increment(compiled));
+		WeakReference<Scriptable> replaced =
+			new WeakReference<Scriptable>(compiled);
+		// 再ロードで置き換えられた後も、呼び出したスレッドは生き続ける。
+		compiled = (Scriptable) _engine.compile(Counter.class);
+		Assert.assertEquals(new Integer(1), increment(compiled));
+		for(int i = 0; i < 50 && replaced.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull(replaced.get());
+		Assert.assertEquals(new Integer(2), increment(compiled));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void concurrencyModeUnknown() {
+		_engine.setConcurrencyMode("none");
+	}
+	
+}
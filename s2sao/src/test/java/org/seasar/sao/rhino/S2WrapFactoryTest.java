@@ -0,0 +1,124 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class S2WrapFactoryTest {
+
+	private Context _cx;
+	private Scriptable _scope;
+	
+	@Before
+	public void setUp() {
+		_cx = new S2ContextFactory().enterContext();
+		_scope = _cx.initStandardObjects();
+	}
+	
+	@After
+	public void tearDown() {
+		Context.exit();
+	}
+	
+	private Object evaluate(String source, Object value) {
+		ScriptableObject.putProperty(_scope, "a",
+				Context.javaToJS(value, _scope));
+		return _cx.evaluateString(_scope, source, "test", 1, null);
+	}
+	
+	@Test
+	public void intArray() {
+		int[] array = new int[] { 1, 2, 3 };
+		Assert.assertEquals(new Double(6), evaluate(
+				"var s = 0; for(var i = 0; i < a.length; i++) s += a[i]; s",
+				array));
+		evaluate("a[1] = 20; a[2] = '30'", array);
+		Assert.assertEquals(20, array[1]);
+		Assert.assertEquals(30, array[2]);
+		Assert.assertTrue(Context.jsToJava(evaluate("a", array),
+				int[].class) == array);
+	}
+	
+	@Test
+	public void otherArrays() {
+		double[] doubles = new double[] { 0.5 };
+		evaluate("a[0] = a[0] * 3", doubles);
+		Assert.assertEquals(1.5, doubles[0], 0);
+		char[] chars = new char[] { 'a' };
+		Assert.assertEquals(new Double(98), evaluate("a[0] + 1", chars));
+		boolean[] booleans = new boolean[] { false };
+		evaluate("a[0] = !a[0]", booleans);
+		Assert.assertTrue(booleans[0]);
+		Assert.assertEquals("undefined", evaluate("typeof a[1]", booleans));
+	}
+	
+	@Test
+	public void byteBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(4);
+		buffer.position(2);
+		evaluate("for(var i = 0; i < a.length; i++) a[i] = i - 1", buffer);
+		Assert.assertEquals(-1, (int) buffer.get(0));
+		Assert.assertEquals(2, (int) buffer.get(3));
+		Assert.assertEquals(new Double(4), evaluate("a[3] + a.position()", buffer));
+	}
+	
+	@Test
+	public void set() {
+		LinkedHashSet<String> set = new LinkedHashSet<String>(
+				Arrays.asList("a", "b", "c"));
+		Assert.assertEquals("abc", evaluate(
+				"var s = ''; for each(var e in a) s += e; s", set));
+		Assert.assertEquals("3c", evaluate("a.length + a[2]", set));
+		Assert.assertEquals("a0b1c2", evaluate(
+				"var s = ''; a.forEach(function(e, i) { s += e + i; }); s",
+				set));
+		Assert.assertEquals(Boolean.TRUE, evaluate("a.contains('b')", set));
+	}
+	
+	@Test
+	public void lazyIterator() {
+		final int[] count = new int[1];
+		Iterator<Integer> iterator = new Iterator<Integer>() {
+			public boolean hasNext() {
+				return count[0] < 1000000;
+			}
+			public Integer next() {
+				return new Integer(count[0]++);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		Assert.assertEquals("3undefined3", evaluate(
+				"var s = a[1] + a[2]; s + typeof a[0] + a[3]", iterator));
+		Assert.assertEquals(4, count[0]);
+	}
+	
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004-2006 the Seasar Foundation and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.sao.rhino;
+
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+import org.seasar.sao.ExecutionBudget;
+import org.seasar.sao.ScriptBudgetExceededException;
+
+/**
+ * @author Masataka Kurihara (Gluegent,Inc.)
+ */
+public class ScriptProfilerTest {
+
+	private RhinoScriptEngine _engine;
+	private ScriptProfiler _profiler;
+
+	@Before
+	public void setUp() {
+		_profiler = new ScriptProfiler();
+		_profiler.setSamplingInterval(1);
+		_engine = new RhinoScriptEngine();
+		_engine.setOptimizationLevel(-1);
+		_engine.setContainer(new S2ContainerImpl());
+		_engine.setProfiler(_profiler);
+	}
+
+	@After
+	public void tearDown() {
+		_profiler.shutdown();
+	}
+
+	private void loop() throws Throwable {
+		Object compiled = _engine.compile(Looper.class);
+		Method loop = Looper.class.getMethod("loop");
+		ExecutionBudget.Meter meter = new ExecutionBudget(200, 0).start();
+		try {
+			_engine.invoke(compiled, loop, new Object[0], int.class);
+			Assert.fail();
+		} catch(ScriptBudgetExceededException e) {
+		} finally {
+			meter.stop();
+		}
+	}
+
+	@Test
+	public void profile() throws Throwable {
+		_engine.enableProfiling(Looper.class);
+		loop();
+		_engine.disableProfiling(Looper.class);
+		Assert.assertTrue(_profiler.getSampleCount() > 0);
+		String report = _profiler.getReport(3);
+		Assert.assertTrue(report, report.indexOf(
+				"loop (org/seasar/sao/rhino/Looper.js:") >= 0);
+		StringWriter writer = new StringWriter();
+		_profiler.writeCollapsedStacks(writer);
+		String[] stacks = writer.toString().split("\n");
+		Assert.assertTrue(stacks.length > 0);
+		for(String stack : stacks) {
+			Assert.assertTrue(stack, stack.matches(
+					"loop \\(org/seasar/sao/rhino/Looper\\.js:\\d+\\) \\d+"));
+		}
+		_profiler.reset();
+		Assert.assertEquals(0, (int) _profiler.getSampleCount());
+	}
+
+	@Test
+	public void notEnabled() throws Throwable {
+		_engine.enableProfiling(Counter.class);
+		loop();
+		Assert.assertEquals(0, (int) _profiler.getSampleCount());
+	}
+
+}